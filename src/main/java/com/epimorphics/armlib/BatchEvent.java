@@ -0,0 +1,98 @@
+/******************************************************************
+ * File:        BatchEvent.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib;
+
+import java.util.Optional;
+
+import org.apache.jena.atlas.json.JsonNumber;
+import org.apache.jena.atlas.json.JsonObject;
+
+/**
+ * Notification of a change in the state of a batch request, see {@link BatchListener}.
+ * Carries the status of the request as at the change.
+ */
+public class BatchEvent {
+    
+    /**
+     * The kinds of change.
+     * <ol>
+     *   <li><b>Submitted</b> - the request has been added to the queue</li>
+     *   <li><b>Started</b> - a worker has claimed the request</li>
+     *   <li><b>Progress</b> - the worker has reported progress, see {@link #getProgress()}</li>
+     *   <li><b>Requeued</b> - the request has been returned to the queue, after an abort or loss of its lease</li>
+     *   <li><b>Completed</b> - the request has been processed</li>
+     *   <li><b>Failed</b> - the request could not be completed</li>
+     *   <li><b>Status</b> - not a change, the current status of the request when a client starts following it</li>
+     * </ol>
+     */
+    public static enum EventType {Submitted, Started, Progress, Requeued, Completed, Failed, Status};
+
+    protected EventType type;
+    protected BatchStatus status;
+    protected long time;
+    protected Optional<Double> progress = Optional.empty();
+
+    public BatchEvent(EventType type, BatchStatus status) {
+        this.type = type;
+        this.status = status;
+        this.time = System.currentTimeMillis();
+    }
+
+    public EventType getType() {
+        return type;
+    }
+
+    /**
+     * Return the key that identifies the request which has changed
+     */
+    public String getKey() {
+        return status.getKey();
+    }
+
+    /**
+     * Return the status of the request as at the change
+     */
+    public BatchStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Time at which the change was observed
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * For Progress events, the fraction of the request completed so far, between 0 and 1
+     */
+    public Optional<Double> getProgress() {
+        return progress;
+    }
+
+    public void setProgress(double progress) {
+        this.progress = Optional.of(progress);
+    }
+
+    public JsonObject asJson() {
+        JsonObject o = status.asJson();
+        o.put("event", type.toString());
+        o.put("time", time);
+        if (progress.isPresent()) {
+            o.put("progress", JsonNumber.value(progress.get()));
+        }
+        return o;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + getKey();
+    }
+}
@@ -0,0 +1,38 @@
+/******************************************************************
+ * File:        BatchHandler.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib;
+
+import java.io.OutputStream;
+
+/**
+ * Application supplied processing for batch requests, run by a worker pool
+ * (see {@link com.epimorphics.armlib.impl.BatchWorkerPool}) which takes requests
+ * from the queue and uploads the results to the cache.
+ */
+public interface BatchHandler {
+
+    /**
+     * Generate the result of the request, writing it to the given stream. The caller
+     * closes the stream. Throwing an exception marks the request as failed.
+     * <p>
+     * Handlers are run on virtual threads and should respond to interruption, which
+     * is used to abandon the request on shutdown or if the claim on it has been lost.
+     * </p>
+     */
+    public void generate(BatchRequest request, OutputStream out) throws Exception;
+
+    /**
+     * Return the suffix to use for the cached result of the request,
+     * or null to use the cache manager's default.
+     */
+    public default String getSuffix(BatchRequest request) {
+        return null;
+    }
+}
@@ -0,0 +1,24 @@
+/******************************************************************
+ * File:        BatchListener.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib;
+
+/**
+ * Receives notifications of changes to the state of batch requests, registered
+ * with a {@link QueueManager} or {@link RequestManager}.
+ * <p>
+ * Listeners are called synchronously on the thread making the change, 
+ * so should be quick and must not block.
+ * </p>
+ */
+@FunctionalInterface
+public interface BatchListener {
+
+    public void onEvent(BatchEvent event);
+}
@@ -25,7 +25,7 @@ import com.epimorphics.json.JsonUtil;
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
 public class BatchStatus {
-    public static enum StatusFlag {Unknown, Pending, InProgress, Failed, Completed};
+    public static enum StatusFlag {Unknown, Pending, InProgress, Failed, Completed, Rejected};
     
     protected StatusFlag status;
     protected String     key;
@@ -34,6 +34,7 @@ public class BatchStatus {
     protected Optional<Integer> positionInQueue = Optional.empty();
     protected Optional<Long>    estimatedTime = Optional.empty();
     protected Optional<Long>    eta = Optional.empty();
+    protected Optional<Long>    retryAfter = Optional.empty();
     
     public BatchStatus(String key, String url, StatusFlag status) {
         this.key = key;
@@ -65,6 +66,7 @@ public class BatchStatus {
      *   <li><b>InProgress</b> - processing of the request has started</li>
      *   <li><b>Failed</b> - the request could not be completed</li>
      *   <li><b>Completed</b> - the request has been processed and the result is available for download</li>
+     *   <li><b>Rejected</b> - the request was not queued because the queue is at capacity, see {@link #getRetryAfter()}</li>
      * </ol> 
      */
     public StatusFlag getStatus() {
@@ -75,6 +77,13 @@ public class BatchStatus {
         this.status = status;
     }
 
+    /**
+     * True if the request is queued or in progress, so its status may still change
+     */
+    public boolean isActive() {
+        return status == StatusFlag.Pending || status == StatusFlag.InProgress;
+    }
+
     /**
      * Return the URL from which the completed result can be obtained when it is available.
      */
@@ -136,6 +145,18 @@ public class BatchStatus {
         this.estimatedTime = Optional.of(estimatedTime);
     }
     
+    /**
+     * Return a hint for how long (in ms) the client should wait before resubmitting
+     * a Rejected request.
+     */
+    public Optional<Long> getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = Optional.of(retryAfter);
+    }
+    
     public JsonObject asJson() {
         JsonObject o = JsonUtil.makeJson("key", key, "status", status.toString());
         if (url != null) {
@@ -147,6 +168,9 @@ public class BatchStatus {
         if (eta.isPresent()) {
             o.put("eta", eta.get());
         }
+        if (retryAfter.isPresent()) {
+            o.put("retryAfter", retryAfter.get());
+        }
         if (started.isPresent()) {
             o.put("started",  new SimpleDateFormat().format( new Date( started.get() ) ) );
         }
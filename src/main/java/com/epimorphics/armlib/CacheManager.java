@@ -60,6 +60,15 @@ public interface CacheManager {
      */
     public boolean isReady(String requestKey);
     
+    /**
+     * Return true if the result of the given request is available, used when there is other
+     * evidence that it should be. Implementations which answer <code>isReady</code> from 
+     * a local index which may be out of date should check the cache itself.
+     */
+    public default boolean confirmReady(String requestKey) {
+        return isReady(requestKey);
+    }
+    
     /**
      * Return the result of the request as an InputStream.
      * If the cache is set to be compressed, the result will be gzip encoded.
@@ -9,12 +9,14 @@
 
 package com.epimorphics.armlib;
 
+import java.io.IOException;
 import java.io.OutputStream;
 
 /**
  * Support for asynchronous upload. The upload will take place in a separate thread
  * from the producer who initiates the upload and supplies the data. The producer
- * must close the Pipe's outputstream otherwise the thread will last forever.
+ * must close the Pipe's outputstream otherwise the upload will wait until the
+ * implementation times it out, if it does.
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
@@ -29,6 +31,20 @@ public interface Pipe {
     /**
      * Wait for the upload to be consumed.
      * This should only be called after the producer has closed the stream;
+     * Implementations may throw an unchecked exception if the upload failed.
      */
     public void waitForCompletion() throws InterruptedException;
+    
+    /**
+     * Abandon the upload, used instead of closing the stream when the producer fails
+     * part way through. Implementations should make sure no partial result is cached,
+     * the default just closes the stream.
+     */
+    public default void abort() {
+        try {
+            getSource().close();
+        } catch (IOException e) {
+            // Abandoning anyway
+        }
+    }
 }
@@ -9,7 +9,14 @@
 
 package com.epimorphics.armlib;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
 
 /**
  * QueueManager implementations allow a set of (possibly long-running) batch requests to be queued
@@ -37,11 +44,85 @@ public interface QueueManager {
      */
     public BatchStatus getStatus(String requestKey);
     
+    /**
+     * Retrieve the status of each of a set of requests, as a map from request key to status.
+     * Unknown requests are included with status Unknown. The default implementation looks
+     * up each request in turn, implementations backed by a remote store should override it
+     * to batch the lookups.
+     */
+    public default Map<String, BatchStatus> getStatuses(Collection<String> requestKeys) {
+        Map<String, BatchStatus> statuses = new HashMap<>();
+        for (String key : requestKeys) {
+            statuses.put(key, getStatus(key));
+        }
+        return statuses;
+    }
+    
+    /**
+     * Retrieve information on the status of a request, for pending requests this includes
+     * the position in the queue and the cumulative estimated time of the requests up to 
+     * and including this one. The default implementation walks the queue up to the request, 
+     * implementations which maintain an ordered index should override it.
+     */
+    public default BatchStatus getFullStatus(String requestKey) {
+        BatchStatus status = getStatus(requestKey);
+        if (status.getStatus() == StatusFlag.Pending) {
+            long eta = 0;
+            int position = 0;
+            Iterator<BatchStatus> queue = queueIterator();
+            while (queue.hasNext()) {
+                BatchStatus s = queue.next();
+                position++;
+                if (s.getEstimatedTime().isPresent()) {
+                    eta += s.getEstimatedTime().get();
+                }
+                if (s.getKey().equals(requestKey)) {
+                    status.setEta(eta);
+                    status.setPositionInQueue(position);
+                    break;
+                }
+            }
+        }
+        return status;
+    }
+    
     /**
      * Return information on all the requests in the queue
      */
     public List<BatchStatus> getQueue();
     
+    /**
+     * Iterate over the requests in the queue in order, as for {@link #getQueue()}. The default
+     * implementation lists the whole queue, implementations with large queues should override
+     * it to fetch the queue incrementally.
+     */
+    public default Iterator<BatchStatus> queueIterator() {
+        return getQueue().iterator();
+    }
+    
+    /**
+     * Return summary statistics on the current queue contents. The default implementation
+     * lists the queue and looks up each request, implementations should override it
+     * with something cheaper if they can. Callers on a busy path, such as admission control,
+     * should reuse a recent snapshot rather than call this for each request.
+     */
+    public default QueueStatistics getQueueStatistics() {
+        int size = 0;
+        long total = 0;
+        Map<String, Integer> byURI = new HashMap<>();
+        Iterator<BatchStatus> queue = queueIterator();
+        while (queue.hasNext()) {
+            BatchStatus s = queue.next();
+            size++;
+            total += s.getEstimatedTime().orElse(0L);
+            BatchRequest request = findRequest(s.getKey());
+            if (request != null) {
+                byURI.merge(request.getRequestURI(), 1, Integer::sum);
+            }
+        }
+        return new QueueStatistics(size, total, byURI);
+    }
+    
     /**
      * Retrieve a submitted request from its key, or return null if there is no such request.
      * Processed requests will remain available for a (configuarable) period after completion.
@@ -61,6 +142,24 @@ public interface QueueManager {
      * Returns null if no request is waiting
      */
     public BatchRequest nextRequest(); 
+
+    /**
+     * Claim up to max requests for processing, marking each as InProgress. Waits up to the
+     * timeout (in ms) for at least one request to be available and then returns whatever is
+     * available at that point, in queue order. Returns an empty list if nothing arrived in time.
+     * The default implementation makes repeated single claims, implementations should
+     * override it if they can claim a batch more cheaply.
+     * @throws InterruptedException 
+     */
+    public default List<BatchRequest> nextRequests(int max, long timeout) throws InterruptedException {
+        List<BatchRequest> claimed = new ArrayList<>();
+        BatchRequest next = nextRequest(timeout);
+        while (next != null) {
+            claimed.add(next);
+            next = claimed.size() < max ? nextRequest() : null;
+        }
+        return claimed;
+    }
     
     /**
      * Mark the request as having been completed, removing it from the queue entirely
@@ -78,6 +177,42 @@ public interface QueueManager {
      */
     public void failRequest(String key);
     
+    /**
+     * Heartbeat from the worker processing a request, extending its claim on the request.
+     * Returns false if the request is no longer in progress, for example because the lease
+     * expired and the request was returned to the queue, in which case the worker should
+     * stop processing it. Implementations which don't support leases just check the status.
+     */
+    public default boolean renewLease(String key) {
+        return getStatus(key).getStatus() == StatusFlag.InProgress;
+    }
+
+    /**
+     * Return any in-progress requests whose lease has expired to the pending queue, or mark
+     * them as failed if they have used up their allowed attempts. Normally called periodically
+     * by the implementation itself. Returns the number of requests affected.
+     */
+    public default int requeueExpiredLeases() {
+        return 0;
+    }
+
+    /**
+     * Report progress on an in-progress request, as a fraction between 0 and 1, 
+     * so that listeners can be notified. Ignored by implementations which don't support events.
+     */
+    public default void reportProgress(String key, double progress) {
+    }
+
+    /**
+     * Register a listener to be notified of changes to the state of requests. 
+     * Implementations which don't support events never call the listener.
+     */
+    public default void addListener(BatchListener listener) {
+    }
+
+    public default void removeListener(BatchListener listener) {
+    }
+
     /**
      * Remove old completed request records (may not be implemented in all cases)
      * @param cutoff timestamp before which records should be discarded
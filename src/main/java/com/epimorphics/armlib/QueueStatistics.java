@@ -0,0 +1,64 @@
+/******************************************************************
+ * File:        QueueStatistics.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ * 
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Summary of the current contents of a request queue, used for admission control.
+ * Counts include both pending and in-progress requests.
+ */
+public class QueueStatistics {
+    protected int size;
+    protected long totalEstimatedTime;
+    protected Map<String, Integer> sizeByRequestURI;
+    
+    public QueueStatistics(int size, long totalEstimatedTime, Map<String, Integer> sizeByRequestURI) {
+        this.size = size;
+        this.totalEstimatedTime = totalEstimatedTime;
+        this.sizeByRequestURI = sizeByRequestURI;
+    }
+
+    /**
+     * Number of requests in the queue
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Sum of the estimated times (in ms) of all the requests in the queue
+     */
+    public long getTotalEstimatedTime() {
+        return totalEstimatedTime;
+    }
+
+    /**
+     * Number of requests in the queue for the given request URI
+     */
+    public int getSize(String requestURI) {
+        return sizeByRequestURI.getOrDefault(requestURI, 0);
+    }
+    
+    public Map<String, Integer> getSizeByRequestURI() {
+        return Collections.unmodifiableMap(sizeByRequestURI);
+    }
+
+    /**
+     * Return a copy of these statistics with the given request added to the queue
+     */
+    public QueueStatistics plus(BatchRequest request) {
+        Map<String, Integer> byURI = new HashMap<>(sizeByRequestURI);
+        byURI.merge(request.getRequestURI(), 1, Integer::sum);
+        return new QueueStatistics(size + 1, totalEstimatedTime + request.getEstimatedTime(), byURI);
+    }
+}
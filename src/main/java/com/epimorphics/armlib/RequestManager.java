@@ -10,6 +10,7 @@
 package com.epimorphics.armlib;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Provides an interface for how client applications can submit batch requests
@@ -31,7 +32,8 @@ public interface RequestManager {
      * Submit a request for processing. If the result of a matching request already
      * exist then the status will contain sufficient information to retrieve the cached
      * result. If a matching request is already in progress it will be returned.
-     * Otherwise the request will be added to the processing queue for future action
+     * Otherwise the request will be added to the processing queue for future action,
+     * unless the queue is at capacity in which case a Rejected status is returned.
      */
     public BatchStatus submit(BatchRequest request);
     
@@ -57,4 +59,40 @@ public interface RequestManager {
      */
     public List<BatchStatus> getQueue();
 
+    /**
+     * Register a listener to be notified of changes to the state of requests. The
+     * default implementation registers it directly with the queue manager.
+     */
+    public default void addListener(BatchListener listener) {
+        getQueueManager().addListener(listener);
+    }
+
+    public default void removeListener(BatchListener listener) {
+        getQueueManager().removeListener(listener);
+    }
+
+    /**
+     * Return a future which completes with the final status of the request once it has
+     * completed or failed, or straight away if it already has or is unknown. Cancelling
+     * the returned future only affects that caller. The default implementation polls 
+     * the status once a second for each caller, implementations should override it 
+     * with something cheaper.
+     */
+    public default CompletableFuture<BatchStatus> awaitCompletion(String requestKey) {
+        CompletableFuture<BatchStatus> future = new CompletableFuture<>();
+        Thread.ofVirtual().start( () -> {
+            try {
+                BatchStatus status = getStatus(requestKey);
+                while ( ! future.isDone() && status.isActive() ) {
+                    Thread.sleep(1000);
+                    status = getStatus(requestKey);
+                }
+                future.complete(status);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
 }
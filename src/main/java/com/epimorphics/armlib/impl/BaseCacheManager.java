@@ -13,20 +13,71 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.zip.GZIPOutputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.appbase.core.Startup;
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.CacheManager;
 import com.epimorphics.armlib.Pipe;
 import com.epimorphics.util.EpiException;
 
-public abstract class BaseCacheManager extends ComponentBase implements CacheManager {
+/**
+ * Common support for cache managers.
+ * <p>
+ * If <code>useKeyFilter</code> is set, a {@link KeyFilter} of the names of the cached results
+ * is built in the background at startup, by listing the cache, and this node's uploads are 
+ * added to it as they complete. While the filter is available a check for a result which is 
+ * definitely not in the filter is answered without consulting the cache. The filter is sized 
+ * for <code>keyFilterCapacity</code> results, it is rebuilt after a clear and every
+ * <code>keyFilterRebuildInterval</code>, which also drops results that have since been removed.
+ * </p>
+ * <p>
+ * Results uploaded by other nodes sharing the cache are not in the filter until it is
+ * next rebuilt, so until then this node may report them as not ready. Callers which have 
+ * other evidence that a result may exist, such as the queue reporting it as completed or
+ * having no record of it, use {@link #confirmReady(String)} which bypasses the filter. 
+ * A submit of a request which is not in the filter goes straight to the queue, so one whose
+ * queue record has already expired may be run again if another node cached its result since
+ * the last rebuild. The rebuild interval should be well under the queue's completed retention.
+ * </p>
+ */
+public abstract class BaseCacheManager extends ComponentBase implements CacheManager, Startup, Shutdown {
+    static Logger log = LoggerFactory.getLogger( BaseCacheManager.class );
+    
     protected String defaultSuffix = "csv";
     protected boolean compress = false;
     
+    protected boolean useKeyFilter = false;
+    protected long keyFilterCapacity = 2000000;
+    protected double keyFilterFalsePositiveRate = 0.01;
+    protected long keyFilterRebuildInterval = 15 * 60 * 1000;
+    protected volatile KeyFilter keyFilter;
+    protected volatile KeyFilter keyFilterBuilding;
+    protected ScheduledExecutorService keyFilterExecutor;
+    
+    protected static final int GZIP_BUFFER = 8192;
+    protected int pipeChunkSize = 64 * 1024;
+    protected int pipeChunks = 16;
+    protected long pipeTimeout = 0;
+    protected Semaphore uploadSlots;
+    protected final Set<PipeImpl> activePipes = ConcurrentHashMap.newKeySet();
+    protected ScheduledExecutorService watchdog;
+    
     public void setDefaultSuffix(String defaultSuffix) {
         this.defaultSuffix = defaultSuffix;
     }
@@ -41,6 +92,221 @@ public abstract class BaseCacheManager extends ComponentBase implements CacheMan
         return compress;
     }
     
+    /**
+     * Set to true to keep a local filter of cached results so that most checks for 
+     * results which are not cached need no remote call. Default is false.
+     */
+    public void setUseKeyFilter(boolean useKeyFilter) {
+        this.useKeyFilter = useKeyFilter;
+    }
+    
+    /**
+     * Number of cached results the key filter is sized for, default is two million
+     */
+    public void setKeyFilterCapacity(long keyFilterCapacity) {
+        this.keyFilterCapacity = keyFilterCapacity;
+    }
+    
+    /**
+     * Fraction of checks for uncached results which the filter may fail to rule out, default is 0.01
+     */
+    public void setKeyFilterFalsePositiveRate(double keyFilterFalsePositiveRate) {
+        this.keyFilterFalsePositiveRate = keyFilterFalsePositiveRate;
+    }
+    
+    /**
+     * Interval in ms at which to rebuild the key filter, picking up results uploaded by
+     * other nodes and forgetting removed ones, 0 to only build at startup and after a clear.
+     * Default is 15 minutes.
+     */
+    public void setKeyFilterRebuildInterval(long keyFilterRebuildInterval) {
+        this.keyFilterRebuildInterval = keyFilterRebuildInterval;
+    }
+    
+    /**
+     * Size in bytes of each chunk buffered between a producer writing to a
+     * pipe and the upload, default is 64KB
+     */
+    public void setPipeChunkSize(int pipeChunkSize) {
+        this.pipeChunkSize = pipeChunkSize;
+    }
+    
+    /**
+     * Number of chunks each pipe may buffer before the producer has to wait
+     * for the upload to catch up, default is 16
+     */
+    public void setPipeChunks(int pipeChunks) {
+        this.pipeChunks = pipeChunks;
+    }
+    
+    /**
+     * Time in ms after which a pipe whose producer has written nothing, and through which
+     * no data has passed, is aborted so that a producer which never closes its pipe doesn't
+     * leave the upload waiting forever. Only counts once the upload has started, so time 
+     * spent waiting for one of <code>maxConcurrentUploads</code> is not included. This must
+     * allow for the longest a producer may take to compute its output. Default is 0, no limit.
+     */
+    public void setPipeTimeout(long pipeTimeout) {
+        this.pipeTimeout = pipeTimeout;
+    }
+    
+    /**
+     * Maximum number of piped uploads to run at once, further uploads wait for
+     * one to finish while their producers fill the pipe buffers. Default is 0, no limit.
+     */
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.uploadSlots = maxConcurrentUploads > 0 ? new Semaphore(maxConcurrentUploads) : null;
+    }
+    
+    @Override
+    public void startup(App app) {
+        super.startup(app);
+        if (useKeyFilter) {
+            keyFilterExecutor = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-key-filter");
+                t.setDaemon(true);
+                return t;
+            });
+            if (keyFilterRebuildInterval > 0) {
+                keyFilterExecutor.scheduleWithFixedDelay(this::rebuildKeyFilter, 0, keyFilterRebuildInterval, TimeUnit.MILLISECONDS);
+            } else {
+                keyFilterExecutor.execute(this::rebuildKeyFilter);
+            }
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        if (keyFilterExecutor != null) {
+            keyFilterExecutor.shutdownNow();
+            keyFilterExecutor = null;
+        }
+        synchronized (this) {
+            if (watchdog != null) {
+                watchdog.shutdownNow();
+                watchdog = null;
+            }
+        }
+    }
+    
+    /**
+     * Start checking for abandoned pipes, if not already doing so
+     */
+    protected synchronized void startWatchdog() {
+        if (watchdog == null && pipeTimeout > 0) {
+            watchdog = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-pipe-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = Math.max(1, Math.min(pipeTimeout / 4, 60 * 1000));
+            watchdog.scheduleWithFixedDelay(this::checkPipes, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    protected void checkPipes() {
+        long now = System.currentTimeMillis();
+        for (PipeImpl pipe : activePipes) {
+            pipe.checkIdle(now);
+        }
+    }
+    
+    /**
+     * List the names (key.suffix) of all the cached results, persistent and temporary,
+     * used to build the key filter
+     */
+    protected abstract void listResults(Consumer<String> names);
+    
+    /**
+     * Build a new key filter from a listing of the cache and then switch to it. Uploads 
+     * which complete during the listing are added to the new filter as well as the old.
+     */
+    protected void rebuildKeyFilter() {
+        KeyFilter filter = new KeyFilter(keyFilterCapacity, keyFilterFalsePositiveRate);
+        keyFilterBuilding = filter;
+        try {
+            long start = System.currentTimeMillis();
+            listResults( filter::add );
+            if (keyFilterBuilding == filter) {
+                keyFilter = filter;
+                log.info("Built cache key filter in {} ms", System.currentTimeMillis() - start);
+            }
+        } catch (Exception e) {
+            log.error("Failed to build cache key filter, checking the cache directly", e);
+            keyFilter = null;
+        } finally {
+            if (keyFilterBuilding == filter) {
+                keyFilterBuilding = null;
+            }
+        }
+    }
+    
+    /**
+     * Stop using the key filter, after clearing the cache, and schedule a rebuild
+     */
+    protected void resetKeyFilter() {
+        keyFilter = null;
+        keyFilterBuilding = null;
+        ScheduledExecutorService executor = keyFilterExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(this::rebuildKeyFilter);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+    
+    /**
+     * Record a result which has been uploaded in the key filter
+     */
+    protected void recordResult(String requestKey, String suffix) {
+        String name = requestKey + "." + suffix;
+        KeyFilter filter = keyFilter;
+        if (filter != null) {
+            filter.add(name);
+        }
+        filter = keyFilterBuilding;
+        if (filter != null) {
+            filter.add(name);
+        }
+    }
+    
+    /**
+     * True if the key filter shows that the result is certainly not in the cache,
+     * false if it might be or there is no filter
+     */
+    protected boolean definitelyAbsent(String requestKey, String suffix) {
+        KeyFilter filter = keyFilter;
+        return filter != null && ! filter.mightContain(requestKey + "." + suffix);
+    }
+    
+    /**
+     * Check whether the result is ready while bypassing the key filter, which may not
+     * yet include results uploaded by other nodes
+     */
+    @Override
+    public boolean confirmReady(String requestKey) {
+        boolean ready = checkReady(requestKey);
+        if (ready) {
+            recordResult(requestKey, defaultSuffix);
+        }
+        return ready;
+    }
+    
+    @Override
+    public boolean isReady(String requestKey) {
+        if (definitelyAbsent(requestKey, defaultSuffix)) {
+            return false;
+        }
+        return checkReady(requestKey);
+    }
+    
+    /**
+     * Check the cache itself for the result with the default suffix
+     */
+    protected abstract boolean checkReady(String requestKey);
+    
     @Override
     public void upload(BatchRequest request, File result) {
         upload(request, defaultSuffix, result);
@@ -62,20 +328,31 @@ public abstract class BaseCacheManager extends ComponentBase implements CacheMan
     
     protected abstract void upload(BatchRequest request, String suffix, InputStream result);
 
+    /**
+     * Pipe which runs the upload on a virtual thread, reading from a {@link ChunkRing}. 
+     * An aborted pipe makes the upload see a read error rather than the end of the stream,
+     * so the cache implementations discard the partial result. If <code>pipeTimeout</code>
+     * is set, a pipe whose producer stops writing, without closing or aborting it, 
+     * is aborted by the watchdog. A producer blocked on a full ring is not counted as stopped.
+     */
     public class PipeImpl implements Pipe, Runnable {
-        protected Thread runner;
         protected BatchRequest request;
         protected String suffix;
         protected OutputStream source;
-        protected PipedInputStream  sink;
+        protected ChunkRing ring;
+        protected final CountDownLatch done = new CountDownLatch(1);
+        protected volatile boolean aborted = false;
+        protected volatile boolean timedOut = false;
+        protected volatile boolean started = false;
+        protected int lastWriteCount;
+        protected volatile RuntimeException failure;
         
         public PipeImpl(BatchRequest request, String suffix) {
             this.request = request;
             this.suffix = suffix;
-            PipedOutputStream out = new PipedOutputStream();
+            ring = new ChunkRing(pipeChunkSize, pipeChunks);
             try {
-                sink = new PipedInputStream(out);
-                source = compress ? new GZIPOutputStream(out) : out;
+                source = compress ? new GZIPOutputStream(ring.getOutputStream(), GZIP_BUFFER) : ring.getOutputStream();
             } catch (IOException e) {
                 throw new EpiException("Failed to create pipe", e);
             }
@@ -90,19 +367,77 @@ public abstract class BaseCacheManager extends ComponentBase implements CacheMan
         }
         
         public void start() {
-            runner = new Thread(this);
-            runner.start();
+            activePipes.add(this);
+            startWatchdog();
+            Thread.ofVirtual().name("armlib-upload-" + request.getKey()).start(this);
         }
 
         @Override
         public void run() {
-            upload(request, suffix, sink);
+            boolean acquired = false;
+            try {
+                if (uploadSlots != null) {
+                    uploadSlots.acquire();
+                    acquired = true;
+                }
+                ring.touch();
+                started = true;
+                upload(request, suffix, ring.getInputStream());
+            } catch (InterruptedException e) {
+                failure = new EpiException("Upload interrupted for " + request.getKey(), e);
+                ring.abort();
+            } catch (RuntimeException e) {
+                failure = e;
+                // Stop the producer, which may be blocked on a full ring 
+                ring.abort();
+                if ( ! aborted ) {
+                    log.error("Upload failed for " + request.getKey(), e);
+                }
+            } finally {
+                if (acquired) {
+                    uploadSlots.release();
+                }
+                activePipes.remove(this);
+                done.countDown();
+            }
         }
 
         @Override
         public void waitForCompletion() throws InterruptedException {
-            runner.join();
-        }        
+            done.await();
+            if (timedOut) {
+                throw new EpiException("Upload timed out for " + request.getKey());
+            }
+            if (failure != null && ! aborted) {
+                throw new EpiException("Upload failed for " + request.getKey(), failure);
+            }
+        }
+        
+        @Override
+        public void abort() {
+            aborted = true;
+            // Abandons any buffered data, including any gzip trailer
+            ring.abort();
+        }
+        
+        /**
+         * Abort the pipe if the upload has started but nothing has been written or
+         * passed through it for the timeout. A producer waiting for a slow upload to
+         * free space in the ring is not idle.
+         */
+        protected void checkIdle(long now) {
+            int writes = ring.getWriteCount();
+            if (writes != lastWriteCount || ring.isWaitingForSpace()) {
+                lastWriteCount = writes;
+                ring.touch();
+                return;
+            }
+            if (started && ! timedOut && ! ring.isAborted() && now - ring.getLastActivity() > pipeTimeout) {
+                log.warn("Upload of " + request.getKey() + " abandoned, no data for " + pipeTimeout + " ms");
+                timedOut = true;
+                ring.abort();
+            }
+        }
 
     }
 
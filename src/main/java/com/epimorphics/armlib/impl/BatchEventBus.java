@@ -0,0 +1,54 @@
+/******************************************************************
+ * File:        BatchEventBus.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchListener;
+
+/**
+ * Set of listeners to which events are delivered, used by the queue and request managers.
+ * A failing listener is logged and does not stop delivery to the others.
+ */
+public class BatchEventBus {
+    static Logger log = LoggerFactory.getLogger( BatchEventBus.class );
+
+    protected final List<BatchListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(BatchListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BatchListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * True if anyone is listening, so callers can skip building events nobody will see
+     */
+    public boolean hasListeners() {
+        return ! listeners.isEmpty();
+    }
+
+    public void publish(BatchEvent event) {
+        for (BatchListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (Exception e) {
+                log.error("Listener failed on event " + event, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/******************************************************************
+ * File:        BatchEventResource.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.AppConfig;
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchListener;
+import com.epimorphics.armlib.RequestManager;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+
+/**
+ * Server-Sent Events stream of changes to batch requests, for dashboards and clients which 
+ * would otherwise poll the status. Each event is named after its type (Submitted, Started, 
+ * Progress, Requeued, Completed, Failed) and carries the JSON form of the {@link BatchEvent}.
+ * Use the optional <code>key</code> parameter to follow a single request, the stream then starts 
+ * with a Status event giving the request's current status, so a client following a request
+ * which has already finished still hears about it. A comment is sent on an otherwise idle
+ * stream every <code>KEEP_ALIVE</code> ms, which keeps proxies from dropping the connection
+ * and detects clients which have gone away.
+ * <p>
+ * Applications enable this by registering the class with their Jersey configuration.
+ * It uses the RequestManager configured in the application.
+ * </p>
+ */
+@Path("/batch/events")
+public class BatchEventResource {
+    static Logger log = LoggerFactory.getLogger( BatchEventResource.class );
+
+    protected static final long KEEP_ALIVE = 15 * 1000;
+
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void subscribe(@Context SseEventSink sink, @Context Sse sse, @QueryParam("key") String key) {
+        RequestManager requestManager = AppConfig.getApp().getA(RequestManager.class);
+        if (requestManager == null) {
+            throw new ServiceUnavailableException("No request manager configured");
+        }
+        new Subscription(requestManager, sink, sse, key, KEEP_ALIVE).start();
+    }
+
+    /**
+     * Forwards events to one client until the connection is closed. Events are queued
+     * and sent from a separate virtual thread so a slow client never holds up the queue, 
+     * a client which falls too far behind is disconnected.
+     */
+    protected static class Subscription implements BatchListener {
+        protected static final int BACKLOG = 1000;
+
+        protected final RequestManager requestManager;
+        protected final SseEventSink sink;
+        protected final Sse sse;
+        protected final String key;
+        protected final long keepAlive;
+        protected final BlockingQueue<BatchEvent> backlog = new ArrayBlockingQueue<>(BACKLOG);
+        protected Thread runner;
+
+        public Subscription(RequestManager requestManager, SseEventSink sink, Sse sse, String key, long keepAlive) {
+            this.requestManager = requestManager;
+            this.sink = sink;
+            this.sse = sse;
+            this.key = key;
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * Register for events and start sending them
+         */
+        public void start() {
+            requestManager.addListener(this);
+            runner = Thread.ofVirtual().name("armlib-sse").start(this::run);
+        }
+
+        @Override
+        public void onEvent(BatchEvent event) {
+            if (sink.isClosed() || key != null && ! key.equals(event.getKey())) {
+                return;
+            }
+            if ( ! backlog.offer(event) ) {
+                log.warn("Event stream client too slow, disconnecting");
+                sink.close();
+            }
+        }
+
+        protected void run() {
+            try {
+                if (key != null) {
+                    // Registered first so no change is missed, earlier events are covered by the status
+                    long now = System.currentTimeMillis();
+                    send( new BatchEvent(EventType.Status, requestManager.getStatus(key)) );
+                    backlog.removeIf( e -> e.getTime() < now );
+                }
+                while ( ! sink.isClosed() ) {
+                    BatchEvent event = backlog.poll(keepAlive, TimeUnit.MILLISECONDS);
+                    if (sink.isClosed()) {
+                        break;
+                    }
+                    if (event == null) {
+                        sink.send( sse.newEventBuilder().comment("keep-alive").build() ).toCompletableFuture().join();
+                    } else {
+                        send(event);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Shutting down
+            } catch (Exception e) {
+                log.debug("Closing event stream after failed send: {}", e.getMessage());
+            } finally {
+                requestManager.removeListener(this);
+                sink.close();
+            }
+        }
+
+        protected void send(BatchEvent event) {
+            OutboundSseEvent message = sse.newEventBuilder()
+                    .name( event.getType().name() )
+                    .mediaType( MediaType.APPLICATION_JSON_TYPE )
+                    .data( String.class, event.asJson().toString() )
+                    .build();
+            sink.send(message).toCompletableFuture().join();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/******************************************************************
+ * File:        BatchWorkerPool.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.appbase.core.Startup;
+import com.epimorphics.armlib.BatchHandler;
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.CacheManager;
+import com.epimorphics.armlib.Pipe;
+import com.epimorphics.armlib.QueueManager;
+import com.epimorphics.util.EpiException;
+
+/**
+ * Takes requests from a queue manager, runs them through a {@link BatchHandler} and
+ * uploads the results to a cache manager, marking each request as finished or failed.
+ * <p>
+ * Each request runs on its own virtual thread. At most <code>concurrency</code> requests
+ * are generated at once. A request stops counting against that limit as soon as its
+ * result has been generated, so the next request is claimed while the upload of the
+ * last one completes. Up to <code>maxUploads</code> (default the same as <code>concurrency</code>)
+ * such uploads may be outstanding.
+ * </p>
+ * <p>
+ * On shutdown requests which are still being generated are interrupted and returned to the
+ * queue, uploads in progress are given <code>shutdownTimeout</code> to complete. If
+ * <code>renewInterval</code> is set then the lease on each request is renewed at that interval
+ * (see {@link QueueManager#renewLease(String)}) until it is finished or failed, including while 
+ * its result uploads. Generation of a request whose lease has been lost is abandoned.
+ * </p>
+ */
+public class BatchWorkerPool extends ComponentBase implements Startup, Shutdown {
+    static Logger log = LoggerFactory.getLogger( BatchWorkerPool.class );
+
+    protected QueueManager queueManager;
+    protected CacheManager cacheManager;
+    protected BatchHandler handler;
+
+    protected int concurrency = 4;
+    protected int maxUploads = -1;
+    protected long pollTimeout = 1000;
+    protected long renewInterval = 0;
+    protected long shutdownTimeout = 30 * 1000;
+
+    protected volatile boolean running = false;
+    protected Thread dispatcher;
+    protected ScheduledExecutorService heartbeat;
+    protected Semaphore generating;
+    protected Semaphore inFlight;
+    protected final ConcurrentHashMap<String, Worker> workers = new ConcurrentHashMap<>();
+
+    protected final AtomicInteger active = new AtomicInteger();
+    protected final AtomicInteger uploading = new AtomicInteger();
+    protected final AtomicLong completedCount = new AtomicLong();
+    protected final AtomicLong failedCount = new AtomicLong();
+    protected final AtomicLong abortedCount = new AtomicLong();
+    protected final LongAdder busyTime = new LongAdder();
+    protected long startedAt;
+
+    public void setQueueManager(QueueManager queueManager) {
+        this.queueManager = queueManager;
+    }
+
+    public void setCacheManager(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    public void setHandler(BatchHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Maximum number of requests being generated at once, default is 4
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Maximum number of generated results which may still be uploading while
+     * further requests are generated, default is the same as the concurrency
+     */
+    public void setMaxUploads(int maxUploads) {
+        this.maxUploads = maxUploads;
+    }
+
+    /**
+     * Time in ms for which to wait on the queue before checking for shutdown
+     */
+    public void setPollTimeout(long pollTimeout) {
+        this.pollTimeout = pollTimeout;
+    }
+
+    /**
+     * Interval in ms at which to renew the leases on in-progress requests, default is 0 (never).
+     * Should be comfortably less than the lease duration configured on the queue manager.
+     */
+    public void setRenewInterval(long renewInterval) {
+        this.renewInterval = renewInterval;
+    }
+
+    /**
+     * Time in ms to wait for uploads to complete on shutdown
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    @Override
+    public void startup(App app) {
+        super.startup(app);
+        if (queueManager == null || cacheManager == null || handler == null) {
+            throw new EpiException("Worker pool needs a queue manager, a cache manager and a handler");
+        }
+        generating = new Semaphore(concurrency);
+        inFlight = new Semaphore(concurrency + uploadSlots());
+        startedAt = System.nanoTime();
+        running = true;
+        dispatcher = Thread.ofVirtual().name("armlib-dispatcher").start(this::dispatch);
+        if (renewInterval > 0) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-lease-renewal");
+                t.setDaemon(true);
+                return t;
+            });
+            heartbeat.scheduleWithFixedDelay(this::renewLeases, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if ( ! running ) return;
+        running = false;
+        try {
+            dispatcher.interrupt();
+            dispatcher.join(shutdownTimeout);
+            for (Worker worker : workers.values()) {
+                worker.cancelGeneration();
+            }
+            int permits = concurrency + uploadSlots();
+            if (inFlight.tryAcquire(permits, shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                inFlight.release(permits);
+            } else {
+                log.warn("Uploads still running after {}ms, abandoning them", shutdownTimeout);
+                workers.values().forEach( Worker::cancel );
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.values().forEach( Worker::cancel );
+        } finally {
+            // Leases are kept until the uploads allowed to finish have done so
+            if (heartbeat != null) {
+                heartbeat.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Number of requests currently being generated
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Number of requests whose results have been generated and are being uploaded
+     */
+    public int getUploadingCount() {
+        return uploading.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of requests returned to the queue or abandoned, because of shutdown or loss of the lease
+     */
+    public long getAbortedCount() {
+        return abortedCount.get();
+    }
+
+    /**
+     * Proportion of the available generation capacity used since startup, counting
+     * only generation which has finished.
+     */
+    public double getUtilization() {
+        long elapsed = System.nanoTime() - startedAt;
+        if (elapsed <= 0 || concurrency <= 0) {
+            return 0;
+        }
+        return (double) busyTime.sum() / ((double) elapsed * concurrency);
+    }
+
+    protected int uploadSlots() {
+        return maxUploads < 0 ? concurrency : maxUploads;
+    }
+
+    /**
+     * Waits for a free slot, then claims enough requests to fill all the slots which
+     * are free at that point with one call to the queue manager.
+     */
+    protected void dispatch() {
+        while (running) {
+            int slots = 0;
+            try {
+                inFlight.acquire();
+                try {
+                    generating.acquire();
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                slots = 1;
+                while (inFlight.tryAcquire()) {
+                    if (generating.tryAcquire()) {
+                        slots++;
+                    } else {
+                        inFlight.release();
+                        break;
+                    }
+                }
+                for (BatchRequest request : queueManager.nextRequests(slots, pollTimeout)) {
+                    start(request);
+                    slots--;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Failed to take next request from queue", e);
+                try {
+                    Thread.sleep(pollTimeout);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } finally {
+                generating.release(slots);
+                inFlight.release(slots);
+            }
+        }
+    }
+
+    protected void start(BatchRequest request) {
+        Worker worker = new Worker(request);
+        worker.thread = Thread.ofVirtual().name("armlib-worker-" + request.getKey()).unstarted( () -> process(worker) );
+        workers.put(request.getKey(), worker);
+        worker.thread.start();
+    }
+
+    protected void process(Worker worker) {
+        BatchRequest request = worker.request;
+        String key = request.getKey();
+        long start = System.nanoTime();
+        active.incrementAndGet();
+        boolean generated = false;
+        Pipe pipe = null;
+        try {
+            String suffix = handler.getSuffix(request);
+            pipe = suffix == null ? cacheManager.upload(request) : cacheManager.upload(request, suffix);
+            handler.generate(request, pipe.getSource());
+            if (worker.cancelled) {
+                // Handler ignored the interrupt, the result may be incomplete
+                throw new InterruptedException();
+            }
+            pipe.getSource().close();
+            generated = true;
+            endGeneration(start);
+            uploading.incrementAndGet();
+            if ( ! worker.startUpload() ) {
+                // Cancelled just as generation finished
+                throw new InterruptedException();
+            }
+            pipe.waitForCompletion();
+            if (worker.revoked) {
+                log.warn("Lease on {} lost during upload, finishing it anyway", key);
+            }
+            queueManager.finishRequest(key);
+            completedCount.incrementAndGet();
+        } catch (Exception e) {
+            if ( ! generated && pipe != null ) {
+                pipe.abort();
+            }
+            if (worker.revoked && ! worker.uploading) {
+                log.warn("Lease lost, abandoned request {}", key);
+                abortedCount.incrementAndGet();
+            } else if (worker.cancelled || ! running) {
+                log.info("Returning interrupted request to queue: {}", key);
+                queueManager.abortRequest(key);
+                abortedCount.incrementAndGet();
+            } else {
+                log.error("Failed to process request " + key, e);
+                queueManager.failRequest(key);
+                failedCount.incrementAndGet();
+            }
+        } finally {
+            if ( ! generated ) {
+                endGeneration(start);
+            } else {
+                uploading.decrementAndGet();
+            }
+            workers.remove(key, worker);
+            inFlight.release();
+        }
+    }
+
+    protected void endGeneration(long start) {
+        active.decrementAndGet();
+        busyTime.add( System.nanoTime() - start );
+        generating.release();
+    }
+
+    /**
+     * Renew the leases of all requests until they are finished or failed, including 
+     * while their results are uploading. Generation of a request whose lease has been
+     * lost is abandoned, but an upload is left to complete since the result is good.
+     */
+    protected void renewLeases() {
+        for (Worker worker : workers.values()) {
+            try {
+                if ( ! queueManager.renewLease(worker.request.getKey()) ) {
+                    worker.revoked = true;
+                    worker.cancelGeneration();
+                }
+            } catch (Exception e) {
+                log.error("Failed to renew lease on " + worker.request.getKey(), e);
+            }
+        }
+    }
+
+    protected static class Worker {
+        final BatchRequest request;
+        Thread thread;
+        volatile boolean uploading = false;
+        volatile boolean cancelled = false;
+        volatile boolean revoked = false;
+
+        Worker(BatchRequest request) {
+            this.request = request;
+        }
+
+        void cancel() {
+            cancelled = true;
+            thread.interrupt();
+        }
+
+        /**
+         * Cancel the request unless its result is already being uploaded
+         */
+        synchronized void cancelGeneration() {
+            if ( ! uploading ) {
+                cancel();
+            }
+        }
+
+        /**
+         * Move on to uploading, returns false if the request has already been cancelled
+         */
+        synchronized boolean startUpload() {
+            if (cancelled) {
+                return false;
+            }
+            uploading = true;
+            return true;
+        }
+    }
+}
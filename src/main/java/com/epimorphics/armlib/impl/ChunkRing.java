@@ -0,0 +1,275 @@
+/******************************************************************
+ * File:        ChunkRing.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipe between a producer thread writing to an output stream and a consumer thread
+ * reading from an input stream, passing whole chunks between them. The producer fills
+ * a chunk and hands it over, then carries on with a free one, so the threads only
+ * synchronize once per chunk rather than on every write. A fixed number of chunks
+ * is allocated as needed and reused, once all are full the producer waits for the
+ * consumer to return one.
+ * <p>
+ * Either side may abort, after which the consumer sees a read error rather than the end of
+ * the stream, and the producer a write error.
+ * </p>
+ */
+public class ChunkRing {
+    protected static final byte[] NONE = new byte[0];
+
+    protected final int chunkSize;
+    protected final int maxChunks;
+    protected final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<>();
+    protected final BlockingQueue<byte[]> free = new LinkedBlockingQueue<>();
+    protected int allocated = 0;
+    protected volatile boolean aborted = false;
+    protected volatile boolean waitingForSpace = false;
+    protected volatile long lastActivity = System.currentTimeMillis();
+    protected final AtomicInteger writes = new AtomicInteger();
+    protected final Output output = new Output();
+    protected final Input input = new Input();
+
+    /**
+     * A chunk of data, the final chunk has end set and may be empty
+     */
+    protected record Chunk(byte[] data, int length, boolean end) {}
+
+    /**
+     * @param chunkSize size in bytes of each chunk
+     * @param maxChunks number of chunks, including those being filled and read
+     */
+    public ChunkRing(int chunkSize, int maxChunks) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = Math.max(2, maxChunks);
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Abandon the transfer, waking both sides
+     */
+    public void abort() {
+        aborted = true;
+        filled.offer( new Chunk(NONE, 0, true) );
+        free.offer(NONE);
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Time at which a chunk was last passed in either direction, or activity was recorded
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Number of writes by the producer, which wraps, for callers checking whether it is
+     * still writing between chunks
+     */
+    public int getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * True while the producer is waiting for the consumer to free a chunk, so has not stalled itself
+     */
+    public boolean isWaitingForSpace() {
+        return waitingForSpace;
+    }
+
+    /**
+     * Record activity, such as the reader being ready to start or more writes having been seen
+     */
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    protected byte[] nextFree() throws IOException {
+        byte[] chunk = free.poll();
+        if (chunk == null) {
+            synchronized (this) {
+                if (allocated < maxChunks) {
+                    allocated++;
+                    return new byte[chunkSize];
+                }
+            }
+            waitingForSpace = true;
+            try {
+                chunk = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                waitingForSpace = false;
+                touch();
+            }
+        }
+        checkAborted();
+        return chunk;
+    }
+
+    protected void checkAborted() throws IOException {
+        if (aborted) {
+            throw new IOException("Upload aborted");
+        }
+    }
+
+    protected class Output extends OutputStream {
+        protected byte[] current;
+        protected int length = 0;
+        protected boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current == null || length == current.length) {
+                nextChunk();
+            }
+            current[length++] = (byte) b;
+            countWrite();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null || length == current.length) {
+                    nextChunk();
+                }
+                int n = Math.min(len, current.length - length);
+                System.arraycopy(b, off, current, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+            countWrite();
+        }
+
+        /**
+         * Only the producer updates the count, so an ordered store is enough and 
+         * much cheaper per write than reading the clock
+         */
+        protected void countWrite() {
+            writes.lazySet( writes.get() + 1 );
+        }
+
+        protected void nextChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            checkAborted();
+            if (current != null) {
+                filled.offer( new Chunk(current, length, false) );
+                lastActivity = System.currentTimeMillis();
+            }
+            current = nextFree();
+            length = 0;
+        }
+
+        /**
+         * Data is only passed on a chunk at a time, so this has no effect
+         */
+        @Override
+        public void flush() throws IOException {
+            checkAborted();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            checkAborted();
+            filled.offer( new Chunk(current == null ? NONE : current, length, true) );
+            lastActivity = System.currentTimeMillis();
+            current = null;
+        }
+    }
+
+    protected class Input extends InputStream {
+        protected Chunk current;
+        protected int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            if ( ! available(true) ) {
+                return -1;
+            }
+            return current.data()[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if ( ! available(true) ) {
+                return -1;
+            }
+            int n = Math.min(len, current.length() - position);
+            System.arraycopy(current.data(), position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return available(false) ? current.length() - position : 0;
+        }
+
+        /**
+         * Make sure there is unread data in the current chunk, returning false at the end
+         * of the stream or if wait is false and none is ready yet
+         */
+        protected boolean available(boolean wait) throws IOException {
+            while (current == null || position == current.length()) {
+                checkAborted();
+                if (current != null) {
+                    if (current.end()) {
+                        return false;
+                    }
+                    free.offer( current.data() );
+                    current = null;
+                }
+                Chunk next;
+                try {
+                    next = wait ? filled.take() : filled.poll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (next == null) {
+                    return false;
+                }
+                current = next;
+                position = 0;
+                lastActivity = System.currentTimeMillis();
+            }
+            checkAborted();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/******************************************************************
+ * File:        CompletedIndex.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Completed (or failed) queue entries grouped into buckets by finish time.
+ * Expiring everything older than a cutoff drops whole buckets and only needs to
+ * check individual entries in the single bucket that straddles the cutoff, so the
+ * cost is proportional to the number of entries expired rather than the total held.
+ */
+public class CompletedIndex {
+    protected final long bucketWidth;
+    protected final ConcurrentSkipListMap<Long, Set<QueueEntry>> buckets = new ConcurrentSkipListMap<>();
+    protected final AtomicInteger size = new AtomicInteger();
+    
+    /**
+     * @param bucketWidth width of each time bucket in ms
+     */
+    public CompletedIndex(long bucketWidth) {
+        this.bucketWidth = bucketWidth;
+    }
+    
+    public void add(QueueEntry entry) {
+        if (buckets.computeIfAbsent(bucketFor(entry), b -> ConcurrentHashMap.newKeySet()).add(entry)) {
+            size.incrementAndGet();
+        }
+    }
+    
+    public void remove(QueueEntry entry) {
+        Set<QueueEntry> bucket = buckets.get( bucketFor(entry) );
+        if (bucket != null && bucket.remove(entry)) {
+            size.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Remove all entries which finished before the cutoff, passing each to the consumer.
+     * Returns the number removed.
+     */
+    public int expire(long cutoff, Consumer<QueueEntry> expired) {
+        int count = 0;
+        long cutoffBucket = Math.floorDiv(cutoff, bucketWidth);
+        Map.Entry<Long, Set<QueueEntry>> first;
+        while ((first = buckets.firstEntry()) != null && first.getKey() < cutoffBucket) {
+            if (buckets.remove(first.getKey(), first.getValue())) {
+                for (QueueEntry entry : first.getValue()) {
+                    size.decrementAndGet();
+                    expired.accept(entry);
+                    count++;
+                }
+            }
+        }
+        Set<QueueEntry> boundary = buckets.get(cutoffBucket);
+        if (boundary != null) {
+            for (QueueEntry entry : boundary) {
+                if (entry.getFinished() < cutoff && boundary.remove(entry)) {
+                    size.decrementAndGet();
+                    expired.accept(entry);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    public int size() {
+        return size.get();
+    }
+    
+    /**
+     * Return a snapshot of the entries, approximately in order of finish time
+     */
+    public List<QueueEntry> entries() {
+        List<QueueEntry> result = new ArrayList<>( size() );
+        for (Set<QueueEntry> bucket : buckets.values()) {
+            result.addAll(bucket);
+        }
+        return result;
+    }
+    
+    protected long bucketFor(QueueEntry entry) {
+        return Math.floorDiv(entry.getFinished(), bucketWidth);
+    }
+}
@@ -0,0 +1,420 @@
+/******************************************************************
+ * File:        DynAsyncQueueManager.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+import com.epimorphics.util.EpiException;
+
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClientBuilder;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+
+/**
+ * Variant of {@link DynQueueManager} which makes the calls on the request path, submitting
+ * requests, looking up their status and claiming them, through the non-blocking
+ * {@link DynamoDbAsyncClient} with the Netty HTTP client. A caller can use the
+ * <code>CompletableFuture</code> methods to avoid holding a thread for each round trip.
+ * <p>
+ * The corresponding synchronous <code>QueueManager</code> methods just wait for the futures.
+ * Table setup, finishing requests, leases, cleanup and the change feed are not latency
+ * sensitive and still use the blocking client. Blocking calls needed on the async paths, 
+ * such as scanning for work before the status index is ready, are made on a separate
+ * set of virtual threads.
+ * </p>
+ */
+public class DynAsyncQueueManager extends DynQueueManager {
+    /** Time in ms beyond the timeout to wait for a claim in flight to complete */
+    protected static final long CLAIM_GRACE = 30 * 1000;
+
+    protected DynamoDbAsyncClient asyncClient;
+    protected ExecutorService blockingExecutor;
+    protected int maxConcurrency = 50;
+
+    /**
+     * Maximum number of concurrent requests to DynamoDB from the async client, default is 50
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void startup(App app) {
+        DynamoDbAsyncClientBuilder builder = DynamoDbAsyncClient.builder()
+                .httpClientBuilder( NettyNioAsyncHttpClient.builder().maxConcurrency(maxConcurrency) )
+                .region(region);
+        if (localTestEndpoint != null) {
+            builder.endpointOverride(URI.create(localTestEndpoint));
+        }
+        asyncClient = builder.build();
+        blockingExecutor = Executors.newThreadPerTaskExecutor( Thread.ofVirtual().name("armlib-dyn-blocking-", 0).factory() );
+        super.startup(app);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        if (asyncClient != null) {
+            asyncClient.close();
+            asyncClient = null;
+        }
+        if (blockingExecutor != null) {
+            blockingExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #submit(BatchRequest)}
+     */
+    public CompletableFuture<BatchStatus> submitAsync(BatchRequest request) {
+        return submitAsync(request, false, 0);
+    }
+
+    /**
+     * Asynchronous version of {@link #resubmit(BatchRequest)}
+     */
+    public CompletableFuture<BatchStatus> resubmitAsync(BatchRequest request) {
+        return submitAsync(request, true, 0);
+    }
+
+    protected CompletableFuture<BatchStatus> submitAsync(BatchRequest request, boolean force, int attempt) {
+        String key = request.getKey();
+        DynQueueEntry entry = new DynQueueEntry(request);
+        return asyncClient.transactWriteItems( submitTransaction(entry, force) )
+                .thenApply( r -> {
+                    publish(EventType.Submitted, entry, StatusFlag.Pending);
+                    return new BatchStatus(key, StatusFlag.Pending);
+                })
+                .exceptionallyCompose( e -> {
+                    if ( ! (unwrap(e) instanceof TransactionCanceledException) ) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                    return findAsync(key).thenCompose( existing -> {
+                        if (isExistingSubmission(existing, force)) {
+                            return CompletableFuture.completedFuture( existing.getBatchStatus() );
+                        } else if (attempt + 1 < TRANSITION_RETRIES) {
+                            // Conflict with a concurrent change, try again
+                            return submitAsync(request, force, attempt + 1);
+                        }
+                        return CompletableFuture.failedFuture( new EpiException("Failed to submit request after repeated conflicts: " + key) );
+                    });
+                });
+    }
+
+    /**
+     * Asynchronous version of {@link #getStatus(String)}
+     */
+    public CompletableFuture<BatchStatus> getStatusAsync(String requestKey) {
+        return getStatusesAsync( Collections.singletonList(requestKey) ).thenApply( statuses -> statuses.get(requestKey) );
+    }
+
+    /**
+     * Asynchronous version of {@link #getStatuses(Collection)}. Uses the status cache,
+     * if enabled, and reads the rest in BatchGetItem calls of up to 50 keys.
+     */
+    public CompletableFuture<Map<String, BatchStatus>> getStatusesAsync(Collection<String> requestKeys) {
+        DynStatusCache cache = statusCache;
+        long now = System.currentTimeMillis();
+        Map<String, DynQueueEntry> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : requestKeys) {
+            DynStatusCache.Cached cached = cache == null ? null : cache.get(key, now);
+            if (cached == null) {
+                missing.add(key);
+            } else if (cached.entry() != null) {
+                found.put(key, cached.entry());
+            }
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
+        CompletableFuture<Map<String, DynQueueEntry>> lookup = missing.isEmpty() 
+                ? CompletableFuture.completedFuture( Collections.emptyMap() ) : findAllAsync(missing);
+        return lookup.thenApply( fetched -> {
+            for (String key : missing) {
+                DynQueueEntry entry = fetched.get(key);
+                if (cache != null) {
+                    cache.put(key, entry, stamp, now);
+                }
+                if (entry != null) {
+                    found.put(key, entry);
+                }
+            }
+            Map<String, BatchStatus> statuses = new HashMap<>();
+            for (String key : requestKeys) {
+                statuses.put(key, statusOf(key, found.get(key)));
+            }
+            return statuses;
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #findRequest(String)}
+     */
+    public CompletableFuture<BatchRequest> findRequestAsync(String key) {
+        return findAsync(key).thenApply( entry -> entry == null ? null : entry.getBatchRequest() );
+    }
+
+    /**
+     * Asynchronous version of {@link #nextRequest()}, completes with null if no request is waiting.
+     * If the future is cancelled before the claim completes, a request claimed after all
+     * is returned to the queue.
+     */
+    public CompletableFuture<BatchRequest> nextRequestAsync() {
+        CompletableFuture<BatchRequest> result = new CompletableFuture<>();
+        handOff(claimNext(), result);
+        return result;
+    }
+
+    /**
+     * Asynchronous version of {@link #nextRequest(long)}. Retries every <code>checkInterval</code>
+     * without holding a thread in between, completes with null if nothing arrived before the timeout.
+     * If the future is cancelled the retries stop, and a request claimed after all is returned to the queue.
+     */
+    public CompletableFuture<BatchRequest> nextRequestAsync(long timeout) {
+        CompletableFuture<BatchRequest> result = new CompletableFuture<>();
+        handOff(nextRequestBefore(System.currentTimeMillis() + timeout, result), result);
+        return result;
+    }
+
+    protected CompletableFuture<BatchRequest> nextRequestBefore(long deadline, CompletableFuture<BatchRequest> result) {
+        return claimNext().thenCompose( next -> {
+            long remaining = deadline - System.currentTimeMillis();
+            if (next != null || remaining <= 0 || result.isDone()) {
+                return CompletableFuture.completedFuture(next);
+            }
+            return CompletableFuture.supplyAsync( () -> null,
+                        CompletableFuture.delayedExecutor(Math.min(checkInterval, remaining), TimeUnit.MILLISECONDS) )
+                    .thenCompose( x -> nextRequestBefore(deadline, result) );
+        });
+    }
+
+    /**
+     * Claim the first pending request, if any. Until the status index is active, checking 
+     * on it and the scan which replaces it use the blocking client, so are run on their own
+     * threads rather than holding up the async client's threads.
+     */
+    protected CompletableFuture<BatchRequest> claimNext() {
+        if ( ! statusIndexActive ) {
+            return CompletableFuture.supplyAsync( this::useStatusIndex, blockingExecutor )
+                    .thenCompose( active -> active ? claimFromIndex() 
+                            : CompletableFuture.supplyAsync( () -> super.nextRequest(), blockingExecutor ) );
+        }
+        return claimFromIndex();
+    }
+
+    protected CompletableFuture<BatchRequest> claimFromIndex() {
+        return asyncClient.query( statusQuery(StatusFlag.Pending, claimLookahead) )
+                .thenCompose( response -> claimFirst( response.items().stream()
+                        .map(DynQueueEntry::fromItemMap)
+                        .collect(Collectors.toList())
+                        .iterator() ) );
+    }
+
+    /**
+     * Pass the outcome of a claim on to the future returned to the caller. If the caller
+     * has already given up on it, any request claimed is aborted so that it goes back to
+     * the queue rather than being left in progress with nobody working on it.
+     */
+    protected void handOff(CompletableFuture<BatchRequest> claim, CompletableFuture<BatchRequest> result) {
+        claim.whenComplete( (request, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if ( ! result.complete(request) && request != null ) {
+                releaseClaim( request.getKey() );
+            }
+        });
+    }
+
+    protected void releaseClaim(String key) {
+        try {
+            blockingExecutor.execute( () -> {
+                try {
+                    abortRequest(key);
+                } catch (Exception e) {
+                    log.error("Failed to return abandoned claim to the queue: " + key, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Shutting down, could not return abandoned claim to the queue: " + key);
+        }
+    }
+
+    /**
+     * Try to claim each candidate in turn, stopping at the first success
+     */
+    protected CompletableFuture<BatchRequest> claimFirst(Iterator<DynQueueEntry> candidates) {
+        if ( ! candidates.hasNext() ) {
+            return CompletableFuture.completedFuture(null);
+        }
+        DynQueueEntry entry = candidates.next();
+        return asyncClient.updateItem( claimRequest(entry) )
+                .thenApply( r -> {
+                    remember(entry);
+                    publish(EventType.Started, entry, StatusFlag.InProgress);
+                    return entry.getBatchRequest();
+                })
+                .exceptionallyCompose( e -> {
+                    if (unwrap(e) instanceof ConditionalCheckFailedException) {
+                        // Claimed or changed by someone else since it was read, try the next
+                        return claimFirst(candidates);
+                    }
+                    return CompletableFuture.failedFuture(e);
+                });
+    }
+
+    /**
+     * Look up a request in the queue and completed tables in a single round trip
+     */
+    protected CompletableFuture<DynQueueEntry> findAsync(String key) {
+        return findAllAsync( Collections.singletonList(key) ).thenApply( found -> found.get(key) );
+    }
+
+    /**
+     * Asynchronous version of {@link #findAll(Collection)}, the BatchGetItem calls for
+     * each group of keys are issued together
+     */
+    protected CompletableFuture<Map<String, DynQueueEntry>> findAllAsync(Collection<String> requestKeys) {
+        Map<String, DynQueueEntry> queued = new ConcurrentHashMap<>();
+        Map<String, DynQueueEntry> completed = new ConcurrentHashMap<>();
+        CompletableFuture<?>[] batches = batchGetKeys(requestKeys).stream()
+                .map( batch -> batchGetAsync(batchGetItems(batch), 0, queued, completed) )
+                .toArray( CompletableFuture[]::new );
+        return CompletableFuture.allOf(batches).thenApply( x -> {
+            completed.putAll(queued);
+            return completed;
+        });
+    }
+
+    /**
+     * Read the pending keys, retrying any left unprocessed with backoff without holding a thread
+     */
+    protected CompletableFuture<Void> batchGetAsync(Map<String, KeysAndAttributes> pending, int attempt,
+            Map<String, DynQueueEntry> queued, Map<String, DynQueueEntry> completed) {
+        if (pending.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (attempt > UNPROCESSED_RETRIES) {
+            return CompletableFuture.failedFuture( new EpiException("Gave up looking up requests after repeated throttling") );
+        }
+        BatchGetItemRequest request = BatchGetItemRequest.builder().requestItems(pending).build();
+        CompletableFuture<BatchGetItemResponse> call = attempt == 0 ? asyncClient.batchGetItem(request)
+                : CompletableFuture.supplyAsync( () -> null,
+                        CompletableFuture.delayedExecutor(batchGetBackoff(attempt), TimeUnit.MILLISECONDS) )
+                    .thenCompose( x -> asyncClient.batchGetItem(request) );
+        return call.thenCompose( response -> 
+                batchGetAsync(collectFound(response, queued, completed), attempt + 1, queued, completed) );
+    }
+
+    @Override
+    public BatchStatus submit(BatchRequest request) {
+        return await( submitAsync(request) );
+    }
+
+    @Override
+    public BatchStatus resubmit(BatchRequest request) {
+        return await( resubmitAsync(request) );
+    }
+
+    @Override
+    public BatchStatus getStatus(String requestKey) {
+        return await( getStatusAsync(requestKey) );
+    }
+
+    @Override
+    public Map<String, BatchStatus> getStatuses(Collection<String> requestKeys) {
+        return await( getStatusesAsync(requestKeys) );
+    }
+
+    @Override
+    public BatchRequest findRequest(String key) {
+        return await( findRequestAsync(key) );
+    }
+
+    @Override
+    protected DynQueueEntry find(String requestKey) {
+        return await( findAsync(requestKey) );
+    }
+
+    @Override
+    protected Map<String, DynQueueEntry> findAll(Collection<String> requestKeys) {
+        return await( findAllAsync(requestKeys) );
+    }
+
+    @Override
+    public BatchRequest nextRequest() {
+        return await( nextRequestAsync() );
+    }
+
+    @Override
+    public BatchRequest nextRequest(long timeout) throws InterruptedException {
+        CompletableFuture<BatchRequest> next = nextRequestAsync(timeout);
+        try {
+            return next.get(timeout + CLAIM_GRACE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Any request claimed after this is returned to the queue
+            next.cancel(false);
+            throw e;
+        } catch (TimeoutException e) {
+            next.cancel(false);
+            log.warn("Timed out waiting for a claim to complete");
+            return null;
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    protected static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    protected static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new EpiException(e);
+    }
+
+    protected static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
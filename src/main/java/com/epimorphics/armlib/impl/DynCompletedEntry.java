@@ -20,6 +20,8 @@ import java.util.Map;
  */
 public class DynCompletedEntry extends DynQueueEntry {
     protected Long finished;
+    protected Long expiresAt;
+    protected String statusShard;
 
     public DynCompletedEntry() {
     }
@@ -34,6 +36,7 @@ public class DynCompletedEntry extends DynQueueEntry {
         this.setCreated(entry.getCreated());
         this.setStatusStr(entry.getStatusStr());
         this.setStarted(entry.getStarted());
+        this.setAttempts(entry.getAttempts());
         this.finished = System.currentTimeMillis();
     }
 
@@ -45,12 +48,44 @@ public class DynCompletedEntry extends DynQueueEntry {
         this.finished = finished;
     }
 
+    /**
+     * Time, in seconds since the epoch as DynamoDB TTL requires, after which the record may be removed
+     */
+    public Long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Key of the entry in the sharded completed time index, the status and a shard number
+     */
+    public String getStatusShard() {
+        return statusShard;
+    }
+
+    public void setStatusShard(String statusShard) {
+        this.statusShard = statusShard;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt != null && expiresAt * 1000 < now;
+    }
+
     @Override
     public Map<String, AttributeValue> toItemMap() {
         Map<String, AttributeValue> item = super.toItemMap();
         if (finished != null) {
             item.put("Finished", AttributeValue.builder().n(finished.toString()).build());
         }
+        if (expiresAt != null) {
+            item.put("ExpiresAt", AttributeValue.builder().n(expiresAt.toString()).build());
+        }
+        if (statusShard != null) {
+            item.put("StatusShard", AttributeValue.builder().s(statusShard).build());
+        }
         return item;
     }
 
@@ -59,6 +94,12 @@ public class DynCompletedEntry extends DynQueueEntry {
         if (item.containsKey("Finished")) {
             entry.setFinished(Long.valueOf(item.get("Finished").n()));
         }
+        if (item.containsKey("ExpiresAt")) {
+            entry.setExpiresAt(Long.valueOf(item.get("ExpiresAt").n()));
+        }
+        if (item.containsKey("StatusShard")) {
+            entry.setStatusShard(item.get("StatusShard").s());
+        }
         return entry;
     }
 }
\ No newline at end of file
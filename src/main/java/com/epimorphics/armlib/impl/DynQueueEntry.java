@@ -31,6 +31,10 @@ public class DynQueueEntry implements Comparable<DynQueueEntry> {
     protected String statusStr;
     protected Long started;
     protected Integer version;
+    protected String owner;
+    protected Long leaseExpiry;
+    protected Integer attempts;
+    protected Double progress;
 
     public DynQueueEntry() {
     }
@@ -42,6 +46,9 @@ public class DynQueueEntry implements Comparable<DynQueueEntry> {
         this.estimatedTime = request.getEstimatedTime();
         this.sticky = request.isSticky();
         this.created = System.currentTimeMillis();
+        // Always explicit so the entry appears in the status index
+        this.statusStr = StatusFlag.Pending.name();
+        this.version = 0;
     }
 
     public StatusFlag getStatus() {
@@ -135,6 +142,9 @@ public class DynQueueEntry implements Comparable<DynQueueEntry> {
         this.started = started;
     }
 
+    /**
+     * Count of changes of state, used to make conditional updates
+     */
     public Integer getVersion() {
         return version;
     }
@@ -143,6 +153,50 @@ public class DynQueueEntry implements Comparable<DynQueueEntry> {
         this.version = version;
     }
 
+    /**
+     * Identity of the node which has claimed an in-progress entry
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Time at which the claim on an in-progress entry expires unless renewed
+     */
+    public Long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    public void setLeaseExpiry(Long leaseExpiry) {
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    /**
+     * Number of times the entry has been claimed
+     */
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Last progress reported for an in-progress entry, as a fraction between 0 and 1
+     */
+    public Double getProgress() {
+        return progress;
+    }
+
+    public void setProgress(Double progress) {
+        this.progress = progress;
+    }
+
     public Map<String, AttributeValue> toItemMap() {
         Map<String, AttributeValue> item = new HashMap<>();
         item.put("Key", AttributeValue.builder().s(key).build());
@@ -154,20 +208,29 @@ public class DynQueueEntry implements Comparable<DynQueueEntry> {
         if (statusStr != null) item.put("Status", AttributeValue.builder().s(statusStr).build());
         if (started != null) item.put("Started", AttributeValue.builder().n(started.toString()).build());
         if (version != null) item.put("Version", AttributeValue.builder().n(version.toString()).build());
+        if (owner != null) item.put("Owner", AttributeValue.builder().s(owner).build());
+        if (leaseExpiry != null) item.put("LeaseExpiry", AttributeValue.builder().n(leaseExpiry.toString()).build());
+        if (attempts != null) item.put("Attempts", AttributeValue.builder().n(attempts.toString()).build());
+        if (progress != null) item.put("Progress", AttributeValue.builder().n(progress.toString()).build());
         return item;
     }
 
     public static DynQueueEntry fromItemMap(Map<String, AttributeValue> item) {
         DynQueueEntry entry = new DynQueueEntry();
         entry.setKey(item.get("Key").s());
-        entry.setRequestURI(item.get("RequestURI").s());
-        entry.setParameters(item.get("Parameters").s());
+        // May be left out of a projection
+        if (item.containsKey("RequestURI")) entry.setRequestURI(item.get("RequestURI").s());
+        if (item.containsKey("Parameters")) entry.setParameters(item.get("Parameters").s());
         if (item.containsKey("EstimatedTime")) entry.setEstimatedTime(Long.valueOf(item.get("EstimatedTime").n()));
         if (item.containsKey("Sticky")) entry.setSticky(item.get("Sticky").bool());
         if (item.containsKey("Created")) entry.setCreated(Long.valueOf(item.get("Created").n()));
         if (item.containsKey("Status")) entry.setStatusStr(item.get("Status").s());
         if (item.containsKey("Started")) entry.setStarted(Long.valueOf(item.get("Started").n()));
         if (item.containsKey("Version")) entry.setVersion(Integer.valueOf(item.get("Version").n()));
+        if (item.containsKey("Owner")) entry.setOwner(item.get("Owner").s());
+        if (item.containsKey("LeaseExpiry")) entry.setLeaseExpiry(Long.valueOf(item.get("LeaseExpiry").n()));
+        if (item.containsKey("Attempts")) entry.setAttempts(Integer.valueOf(item.get("Attempts").n()));
+        if (item.containsKey("Progress")) entry.setProgress(Double.valueOf(item.get("Progress").n()));
         return entry;
     }
 
@@ -11,11 +11,17 @@ package com.epimorphics.armlib.impl;
 
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
 import com.epimorphics.appbase.core.Startup;
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchListener;
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.BatchStatus;
 import com.epimorphics.armlib.BatchStatus.StatusFlag;
 import com.epimorphics.armlib.QueueManager;
+import com.epimorphics.armlib.QueueStatistics;
+import com.epimorphics.util.EpiException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
@@ -24,26 +30,70 @@ import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
- * Non-persistent, non-distributed, implementation of queue manager. Only 
- * useful for test/development.
+ * Distributed implementation of queue manager using AWS DynamoDB tables for the
+ * queue and for the record of completed requests.
+ * <p>
+ * Pending requests are found through the <code>QueueIndexByStatus</code> index and claimed
+ * by an update conditional on their <code>Version</code>. Other transitions move the entry 
+ * between the two tables in a single transaction.
+ * </p>
+ * <p>
+ * Claims can carry a renewable lease, expired leases are requeued by any node. Completed 
+ * records can be expired by DynamoDB TTL and are indexed by finish time under a sharded key.
+ * </p>
+ * <p>
+ * Status lookups can be answered from a short-lived local cache. Changes made by other
+ * nodes are reported to listeners by polling the queue. See the README for configuration.
+ * </p>
  */
-public class DynQueueManager extends ComponentBase implements QueueManager, Startup {
+public class DynQueueManager extends ComponentBase implements QueueManager, Startup, Shutdown {
     public static final String QUEUE_TABLE_BASE = "Queue";
     public static final String COMPLETED_TABLE_BASE = "Completed";
     public static final String COMPLETED_TIME_INDEX = "CompletedIndexByTime";
+    public static final String COMPLETED_SHARD_INDEX = "CompletedIndexByShard";
+    public static final String QUEUE_STATUS_INDEX = "QueueIndexByStatus";
 
     public static final String KEY_ATTRIBUTE = "Key";
     public static final String STATUS_ATTRIBUTE = "Status";
     public static final String FINISHED_ATTRIBUTE = "Finished";
+    public static final String EXPIRES_ATTRIBUTE = "ExpiresAt";
+    public static final String SHARD_ATTRIBUTE = "StatusShard";
+    public static final String CREATED_ATTRIBUTE = "Created";
+    public static final String REQUEST_URI_ATTRIBUTE = "RequestURI";
+    public static final String ESTIMATED_TIME_ATTRIBUTE = "EstimatedTime";
+    public static final String STARTED_ATTRIBUTE = "Started";
+    public static final String OWNER_ATTRIBUTE = "Owner";
+    public static final String LEASE_ATTRIBUTE = "LeaseExpiry";
+    public static final String ATTEMPTS_ATTRIBUTE = "Attempts";
+    public static final String PROGRESS_ATTRIBUTE = "Progress";
+    public static final String VERSION_ATTRIBUTE = "Version";
     
     static Logger log = LoggerFactory.getLogger( DynQueueManager.class );
     
     protected long checkInterval = 1000;
+    protected int claimLookahead = 5;
+    protected long completedRetention = 0;
+    protected int cleanupThreads = 8;
+    protected int completedShards = 8;
+    protected boolean dropLegacyIndex = false;
+    protected long statusCacheTTL = 0;
+    protected int statusCacheSize = 10000;
     protected String localTestEndpoint;
     
     public String tablePrefix = "";
@@ -54,10 +104,146 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
 //    protected DynamoDBMapper mapper;
     protected Region region = Region.EU_WEST_1;
     
+    protected long leaseDuration = 0;
+    protected long leaseCheckInterval = 30 * 1000;
+    protected int maxAttempts = 0;
+    protected String owner = ManagementFactory.getRuntimeMXBean().getName();
+    protected ScheduledExecutorService scheduler;
+    
+    protected final ConcurrentHashMap<String, DynQueueEntry> claimed = new ConcurrentHashMap<>();
+    
+    protected DynStatusCache statusCache;
+    
+    protected volatile boolean statusIndexActive = false;
+    protected volatile long statusIndexChecked = 0;
+    
+    protected long eventPollInterval = 5 * 1000;
+    protected BatchEventBus events = new BatchEventBus();
+    protected final ConcurrentHashMap<String, Seen> known = new ConcurrentHashMap<>();
+    protected volatile boolean feedStarted = false;
+    protected boolean feedPrimed = false;
+    
+    /**
+     * Last state of a request reported to listeners
+     */
+    protected record Seen(StatusFlag status, Double progress, Long created) {
+        boolean isFinished() {
+            return status == StatusFlag.Completed || status == StatusFlag.Failed;
+        }
+    }
+    
     public void setCheckInterval(long checkInterval) {
         this.checkInterval = checkInterval;
     }
     
+    /**
+     * Number of the oldest pending entries read by a single claim, so that a claim 
+     * which loses a race for the oldest can try the next. Default is 5.
+     */
+    public void setClaimLookahead(int claimLookahead) {
+        this.claimLookahead = claimLookahead;
+    }
+    
+    /**
+     * Time in ms for which a claim on a request lasts unless renewed by the worker.
+     * Default is 0, claims never expire.
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+    
+    /**
+     * Time in ms for which records of completed or failed requests are kept, after which 
+     * DynamoDB's TTL removes them. Default is 0 (keep until explicitly removed).
+     */
+    public void setCompletedRetention(long completedRetention) {
+        this.completedRetention = completedRetention;
+    }
+    
+    /**
+     * Maximum number of deletes in flight in {@link #removeOldCompletedRequests(long)}, default is 8
+     */
+    public void setCleanupThreads(int cleanupThreads) {
+        this.cleanupThreads = cleanupThreads;
+    }
+    
+    /**
+     * Number of shards of the completed time index, default is 8. All nodes must use the 
+     * same value, it may be increased later but must never be reduced.
+     */
+    public void setCompletedShards(int completedShards) {
+        this.completedShards = completedShards;
+    }
+    
+    /**
+     * If true, remove the unsharded index from a completed table created by an earlier release
+     * once its replacement has been built. Only set this once no nodes running the earlier
+     * release remain. Default is false.
+     */
+    public void setDropLegacyIndex(boolean dropLegacyIndex) {
+        this.dropLegacyIndex = dropLegacyIndex;
+    }
+    
+    /**
+     * Time in ms for which a status lookup may be reused. This bounds how long a change
+     * made by another node can go unnoticed, changes made by this node are seen straight 
+     * away. Default is 0, no caching.
+     */
+    public void setStatusCacheTTL(long statusCacheTTL) {
+        this.statusCacheTTL = statusCacheTTL;
+    }
+    
+    /**
+     * Maximum number of requests whose status is cached, default is 10000
+     */
+    public void setStatusCacheSize(int statusCacheSize) {
+        this.statusCacheSize = statusCacheSize;
+    }
+    
+    /**
+     * Number of status lookups answered from the status cache
+     */
+    public long getStatusCacheHits() {
+        return statusCache == null ? 0 : statusCache.getHits();
+    }
+    
+    /**
+     * Number of status lookups which had to read DynamoDB while the status cache is enabled
+     */
+    public long getStatusCacheMisses() {
+        return statusCache == null ? 0 : statusCache.getMisses();
+    }
+    
+    /**
+     * Interval in ms between checks for expired leases
+     */
+    public void setLeaseCheckInterval(long leaseCheckInterval) {
+        this.leaseCheckInterval = leaseCheckInterval;
+    }
+    
+    /**
+     * Maximum number of times a request may be claimed. A request whose lease expires
+     * on its last attempt is failed rather than requeued. Default is 0, no limit.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+    
+    /**
+     * Interval in ms at which to poll for changes made by other nodes while there are listeners,
+     * 0 to only report changes made by this node
+     */
+    public void setEventPollInterval(long eventPollInterval) {
+        this.eventPollInterval = eventPollInterval;
+    }
+    
+    /**
+     * Identity recorded against claims made by this node, defaults to the JVM name (pid@host)
+     */
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+    
     public void setLocalTestEndpoint(String endpoint) {
         this.localTestEndpoint = endpoint;
     }
@@ -87,6 +273,43 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
                 .dynamoDbClient(client)
                 .build();
         initDB();
+        if (statusCacheTTL > 0) {
+            statusCache = new DynStatusCache(statusCacheSize, statusCacheTTL);
+        }
+        if (leaseDuration > 0) {
+            scheduler().scheduleWithFixedDelay(this::reap, leaseCheckInterval, leaseCheckInterval, TimeUnit.MILLISECONDS);
+        }
+        if (events.hasListeners()) {
+            startChangeFeed();
+        }
+    }
+    
+    @Override
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        feedStarted = false;
+    }
+    
+    protected synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-dyn-queue");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+    
+    protected void reap() {
+        try {
+            requeueExpiredLeases();
+        } catch (Exception e) {
+            log.error("Failed to requeue expired leases", e);
+        }
     }
 
     private void initDB() {
@@ -96,28 +319,215 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
 
         if (!existingTables.contains(getQueueTableName())) {
             createQueueTable();
+        } else {
+            ensureStatusIndex();
         }
 
         if (!existingTables.contains(getCompletedTableName())) {
             createCompletedTable();
+        } else {
+            ensureShardIndex();
+        }
+        
+        if (completedRetention > 0) {
+            ensureTimeToLive();
         }
     }
+    
+    private void ensureTimeToLive() {
+        TimeToLiveDescription ttl = client.describeTimeToLive(DescribeTimeToLiveRequest.builder()
+                .tableName(getCompletedTableName())
+                .build()).timeToLiveDescription();
+        TimeToLiveStatus status = ttl.timeToLiveStatus();
+        if (status == TimeToLiveStatus.ENABLED || status == TimeToLiveStatus.ENABLING) {
+            if ( ! EXPIRES_ATTRIBUTE.equals(ttl.attributeName()) ) {
+                log.warn("TTL on table {} uses attribute {} not {}, old records will not expire", 
+                        getCompletedTableName(), ttl.attributeName(), EXPIRES_ATTRIBUTE);
+            }
+            return;
+        }
+        log.info("Enabling TTL on table: {}", getCompletedTableName());
+        client.updateTimeToLive(UpdateTimeToLiveRequest.builder()
+                .tableName(getCompletedTableName())
+                .timeToLiveSpecification(TimeToLiveSpecification.builder()
+                        .attributeName(EXPIRES_ATTRIBUTE)
+                        .enabled(true)
+                        .build())
+                .build());
+    }
 
     private void createQueueTable() {
         log.info("Creating table: {}", getQueueTableName());
         CreateTableRequest request = CreateTableRequest.builder()
                 .tableName(getQueueTableName())
                 .keySchema(KeySchemaElement.builder().attributeName(KEY_ATTRIBUTE).keyType(KeyType.HASH).build())
-                .attributeDefinitions(AttributeDefinition.builder()
-                        .attributeName(KEY_ATTRIBUTE)
-                        .attributeType(ScalarAttributeType.S)
-                        .build())
+                .attributeDefinitions(
+                        AttributeDefinition.builder()
+                                .attributeName(KEY_ATTRIBUTE)
+                                .attributeType(ScalarAttributeType.S)
+                                .build(),
+                        AttributeDefinition.builder()
+                                .attributeName(STATUS_ATTRIBUTE)
+                                .attributeType(ScalarAttributeType.S)
+                                .build(),
+                        AttributeDefinition.builder()
+                                .attributeName(CREATED_ATTRIBUTE)
+                                .attributeType(ScalarAttributeType.N)
+                                .build()
+                )
+                .globalSecondaryIndexes(statusIndex())
                 .provisionedThroughput(ProvisionedThroughput.builder()
                         .readCapacityUnits(5L)
                         .writeCapacityUnits(5L)
                         .build())
                 .build();
         client.createTable(request);
+        statusIndexActive = true;
+    }
+    
+    /**
+     * Index of queue entries by status and creation time. Projects all attributes so that
+     * a claim can be made straight from the query results.
+     */
+    private GlobalSecondaryIndex statusIndex() {
+        return GlobalSecondaryIndex.builder()
+                .indexName(QUEUE_STATUS_INDEX)
+                .keySchema(
+                        KeySchemaElement.builder().attributeName(STATUS_ATTRIBUTE).keyType(KeyType.HASH).build(),
+                        KeySchemaElement.builder().attributeName(CREATED_ATTRIBUTE).keyType(KeyType.RANGE).build()
+                )
+                .projection(Projection.builder().projectionType(ProjectionType.ALL).build())
+                .provisionedThroughput(ProvisionedThroughput.builder()
+                        .readCapacityUnits(5L)
+                        .writeCapacityUnits(5L)
+                        .build())
+                .build();
+    }
+    
+    /**
+     * Add the status index to a queue table created by an earlier version. Entries written 
+     * by earlier versions may have no status, which would leave them out of the index,
+     * so they are given an explicit Pending status.
+     */
+    private void ensureStatusIndex() {
+        TableDescription table = client.describeTable(DescribeTableRequest.builder()
+                .tableName(getQueueTableName())
+                .build()).table();
+        if (table.hasGlobalSecondaryIndexes()) {
+            for (GlobalSecondaryIndexDescription index : table.globalSecondaryIndexes()) {
+                if (QUEUE_STATUS_INDEX.equals(index.indexName())) {
+                    statusIndexActive = index.indexStatus() == IndexStatus.ACTIVE;
+                    return;
+                }
+            }
+        }
+        log.info("Adding index {} to table {}", QUEUE_STATUS_INDEX, getQueueTableName());
+        GlobalSecondaryIndex index = statusIndex();
+        client.updateTable(UpdateTableRequest.builder()
+                .tableName(getQueueTableName())
+                .attributeDefinitions(
+                        AttributeDefinition.builder()
+                                .attributeName(STATUS_ATTRIBUTE)
+                                .attributeType(ScalarAttributeType.S)
+                                .build(),
+                        AttributeDefinition.builder()
+                                .attributeName(CREATED_ATTRIBUTE)
+                                .attributeType(ScalarAttributeType.N)
+                                .build()
+                )
+                .globalSecondaryIndexUpdates(GlobalSecondaryIndexUpdate.builder()
+                        .create(CreateGlobalSecondaryIndexAction.builder()
+                                .indexName(index.indexName())
+                                .keySchema(index.keySchema())
+                                .projection(index.projection())
+                                .provisionedThroughput(index.provisionedThroughput())
+                                .build())
+                        .build())
+                .build());
+        ScanRequest scan = ScanRequest.builder()
+                .tableName(getQueueTableName())
+                .filterExpression("attribute_not_exists(#status)")
+                .projectionExpression("#key")
+                .expressionAttributeNames(Map.of("#key", KEY_ATTRIBUTE, "#status", STATUS_ATTRIBUTE))
+                .build();
+        int count = 0;
+        for (Map<String, AttributeValue> item : client.scanPaginator(scan).items()) {
+            try {
+                client.updateItem(UpdateItemRequest.builder()
+                        .tableName(getQueueTableName())
+                        .key(Collections.singletonMap(KEY_ATTRIBUTE, item.get(KEY_ATTRIBUTE)))
+                        .updateExpression("SET #status = :pending")
+                        .conditionExpression("attribute_exists(#key) AND attribute_not_exists(#status)")
+                        .expressionAttributeNames(Map.of("#key", KEY_ATTRIBUTE, "#status", STATUS_ATTRIBUTE))
+                        .expressionAttributeValues(Map.of(":pending", AttributeValue.builder().s(StatusFlag.Pending.name()).build()))
+                        .build());
+                count++;
+            } catch (ConditionalCheckFailedException e) {
+                // Claimed or removed in the meantime
+            }
+        }
+        log.info("Set status on {} existing queue entries", count);
+    }
+    
+    /**
+     * True if the status index can be queried. While it is being built this is checked 
+     * at most once per <code>INDEX_CHECK_INTERVAL</code>.
+     */
+    protected boolean useStatusIndex() {
+        if ( ! statusIndexActive ) {
+            long now = System.currentTimeMillis();
+            if (now - statusIndexChecked > INDEX_CHECK_INTERVAL) {
+                statusIndexChecked = now;
+                try {
+                    TableDescription table = client.describeTable(DescribeTableRequest.builder()
+                            .tableName(getQueueTableName())
+                            .build()).table();
+                    statusIndexActive = table.hasGlobalSecondaryIndexes() && table.globalSecondaryIndexes().stream()
+                            .anyMatch( i -> QUEUE_STATUS_INDEX.equals(i.indexName()) && i.indexStatus() == IndexStatus.ACTIVE );
+                    if (statusIndexActive) {
+                        log.info("Index {} is now active", QUEUE_STATUS_INDEX);
+                    }
+                } catch (Exception e) {
+                    log.warn("Failed to check status of index {}: {}", QUEUE_STATUS_INDEX, e.getMessage());
+                }
+            }
+        }
+        return statusIndexActive;
+    }
+    
+    /**
+     * Query for the oldest entries with the given status
+     */
+    protected QueryRequest statusQuery(StatusFlag status, int limit) {
+        QueryRequest.Builder query = QueryRequest.builder()
+                .tableName(getQueueTableName())
+                .indexName(QUEUE_STATUS_INDEX)
+                .keyConditionExpression("#status = :status")
+                .expressionAttributeNames(Map.of("#status", STATUS_ATTRIBUTE))
+                .expressionAttributeValues(Map.of(":status", AttributeValue.builder().s(status.name()).build()))
+                .scanIndexForward(true);
+        if (limit > 0) {
+            query.limit(limit);
+        }
+        return query.build();
+    }
+    
+    /**
+     * Return up to limit of the oldest pending entries, in order of creation. The index is 
+     * eventually consistent so these may include entries which have just been claimed.
+     */
+    protected List<DynQueueEntry> pendingCandidates(int limit) {
+        if (useStatusIndex()) {
+            return client.query( statusQuery(StatusFlag.Pending, limit) )
+                    .items()
+                    .stream()
+                    .map(DynQueueEntry::fromItemMap)
+                    .collect(Collectors.toList());
+        }
+        return getRawQueue().stream()
+                .filter( e -> e.getStatus() == StatusFlag.Pending )
+                .limit(limit)
+                .collect(Collectors.toList());
     }
 
     private void createCompletedTable() {
@@ -131,7 +541,7 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
                                 .attributeType(ScalarAttributeType.S)
                                 .build(),
                         AttributeDefinition.builder()
-                                .attributeName(STATUS_ATTRIBUTE)
+                                .attributeName(SHARD_ATTRIBUTE)
                                 .attributeType(ScalarAttributeType.S)
                                 .build(),
                         AttributeDefinition.builder()
@@ -139,20 +549,7 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
                                 .attributeType(ScalarAttributeType.N)
                                 .build()
                 )
-                .globalSecondaryIndexes(GlobalSecondaryIndex.builder()
-                        .indexName(COMPLETED_TIME_INDEX)
-                        .keySchema(
-                                KeySchemaElement.builder().attributeName(STATUS_ATTRIBUTE).keyType(KeyType.HASH).build(),
-                                KeySchemaElement.builder().attributeName(FINISHED_ATTRIBUTE).keyType(KeyType.RANGE).build()
-                        )
-                        .projection(
-                                Projection.builder().projectionType(ProjectionType.INCLUDE).nonKeyAttributes(KEY_ATTRIBUTE).build()
-                        )
-                        .provisionedThroughput(ProvisionedThroughput.builder()
-                                .readCapacityUnits(3L)
-                                .writeCapacityUnits(1L)
-                                .build())
-                        .build())
+                .globalSecondaryIndexes(shardIndex())
                 .provisionedThroughput(ProvisionedThroughput.builder()
                         .readCapacityUnits(5L)
                         .writeCapacityUnits(5L)
@@ -160,55 +557,628 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
                 .build();
         client.createTable(request);
     }
+    
+    /**
+     * Index of completed records by sharded status and finish time, only used to find old records
+     */
+    private GlobalSecondaryIndex shardIndex() {
+        return GlobalSecondaryIndex.builder()
+                .indexName(COMPLETED_SHARD_INDEX)
+                .keySchema(
+                        KeySchemaElement.builder().attributeName(SHARD_ATTRIBUTE).keyType(KeyType.HASH).build(),
+                        KeySchemaElement.builder().attributeName(FINISHED_ATTRIBUTE).keyType(KeyType.RANGE).build()
+                )
+                .projection(Projection.builder().projectionType(ProjectionType.KEYS_ONLY).build())
+                .provisionedThroughput(ProvisionedThroughput.builder()
+                        .readCapacityUnits(3L)
+                        .writeCapacityUnits(1L)
+                        .build())
+                .build();
+    }
+    
+    /**
+     * Return the status of each index on the completed table
+     */
+    protected Map<String, IndexStatus> completedIndexes() {
+        TableDescription table = client.describeTable(DescribeTableRequest.builder()
+                .tableName(getCompletedTableName())
+                .build()).table();
+        Map<String, IndexStatus> indexes = new HashMap<>();
+        if (table.hasGlobalSecondaryIndexes()) {
+            for (GlobalSecondaryIndexDescription index : table.globalSecondaryIndexes()) {
+                indexes.put(index.indexName(), index.indexStatus());
+            }
+        }
+        return indexes;
+    }
+    
+    /**
+     * Add the sharded index to a completed table created by an earlier release. Existing records
+     * are given their shard key, and the old index dropped if configured, in the background.
+     */
+    private void ensureShardIndex() {
+        Map<String, IndexStatus> indexes = completedIndexes();
+        boolean created = false;
+        if ( ! indexes.containsKey(COMPLETED_SHARD_INDEX) ) {
+            log.info("Adding index {} to table {}", COMPLETED_SHARD_INDEX, getCompletedTableName());
+            GlobalSecondaryIndex index = shardIndex();
+            client.updateTable(UpdateTableRequest.builder()
+                    .tableName(getCompletedTableName())
+                    .attributeDefinitions(
+                            AttributeDefinition.builder()
+                                    .attributeName(SHARD_ATTRIBUTE)
+                                    .attributeType(ScalarAttributeType.S)
+                                    .build(),
+                            AttributeDefinition.builder()
+                                    .attributeName(FINISHED_ATTRIBUTE)
+                                    .attributeType(ScalarAttributeType.N)
+                                    .build()
+                    )
+                    .globalSecondaryIndexUpdates(GlobalSecondaryIndexUpdate.builder()
+                            .create(CreateGlobalSecondaryIndexAction.builder()
+                                    .indexName(index.indexName())
+                                    .keySchema(index.keySchema())
+                                    .projection(index.projection())
+                                    .provisionedThroughput(index.provisionedThroughput())
+                                    .build())
+                            .build())
+                    .build());
+            created = true;
+        }
+        if (created || (dropLegacyIndex && indexes.containsKey(COMPLETED_TIME_INDEX))) {
+            scheduler().execute(this::migrateCompleted);
+        }
+    }
+    
+    /**
+     * Give each completed record written by an earlier release its shard key, then
+     * if configured drop the old index once the new one is active.
+     */
+    protected void migrateCompleted() {
+        try {
+            ScanRequest scan = ScanRequest.builder()
+                    .tableName(getCompletedTableName())
+                    .filterExpression("attribute_not_exists(#shard) AND attribute_exists(#finished)")
+                    .projectionExpression("#key, #status")
+                    .expressionAttributeNames(Map.of(
+                            "#key", KEY_ATTRIBUTE, "#status", STATUS_ATTRIBUTE, 
+                            "#shard", SHARD_ATTRIBUTE, "#finished", FINISHED_ATTRIBUTE))
+                    .build();
+            int count = 0;
+            for (Map<String, AttributeValue> item : client.scanPaginator(scan).items()) {
+                String key = item.get(KEY_ATTRIBUTE).s();
+                StatusFlag status = StatusFlag.valueOf( item.get(STATUS_ATTRIBUTE).s() );
+                try {
+                    client.updateItem(UpdateItemRequest.builder()
+                            .tableName(getCompletedTableName())
+                            .key(keyOf(key))
+                            .updateExpression("SET #shard = :shard")
+                            .conditionExpression("attribute_exists(#key) AND attribute_not_exists(#shard)")
+                            .expressionAttributeNames(Map.of("#key", KEY_ATTRIBUTE, "#shard", SHARD_ATTRIBUTE))
+                            .expressionAttributeValues(Map.of(":shard", AttributeValue.builder().s(shardKey(status, key)).build()))
+                            .build());
+                    count++;
+                } catch (ConditionalCheckFailedException e) {
+                    // Removed or replaced in the meantime
+                }
+            }
+            log.info("Set shard key on {} existing completed records", count);
+            if (dropLegacyIndex) {
+                while (completedIndexes().get(COMPLETED_SHARD_INDEX) != IndexStatus.ACTIVE) {
+                    Thread.sleep(INDEX_CHECK_INTERVAL);
+                }
+                if (completedIndexes().containsKey(COMPLETED_TIME_INDEX)) {
+                    log.info("Removing index {} from table {}", COMPLETED_TIME_INDEX, getCompletedTableName());
+                    client.updateTable(UpdateTableRequest.builder()
+                            .tableName(getCompletedTableName())
+                            .globalSecondaryIndexUpdates(GlobalSecondaryIndexUpdate.builder()
+                                    .delete(DeleteGlobalSecondaryIndexAction.builder().indexName(COMPLETED_TIME_INDEX).build())
+                                    .build())
+                            .build());
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down, will resume on next startup
+        } catch (Exception e) {
+            log.error("Failed to migrate completed table " + getCompletedTableName(), e);
+        }
+    }
+    
+    /**
+     * The sharded index key for a record with the given status
+     */
+    protected String shardKey(StatusFlag status, String key) {
+        return status.name() + "#" + Math.floorMod(key.hashCode(), completedShards);
+    }
 
     @Override
     public BatchStatus submit(BatchRequest request) {
-        DynQueueEntry entry = find(request.getKey());
-        if (entry == null || entry.getStatus() == StatusFlag.Failed) {
-            if (entry != null) delete(entry.key);
-            entry = new DynQueueEntry(request);
-            saveEntry(entry, getQueueTableName());
-            return new BatchStatus(request.getKey(), StatusFlag.Pending);
-        } else {
-            return entry.getBatchStatus();
+        return submit(request, false);
+    }
+    
+    /**
+     * Add the request to the queue and clear out any record of an earlier failure, any expired 
+     * record or, if forced, any earlier completion, in one transaction. If the request is 
+     * already queued or has completed then the transaction is cancelled and the existing 
+     * status returned.
+     */
+    protected BatchStatus submit(BatchRequest request, boolean force) {
+        String key = request.getKey();
+        for (int attempt = 0; attempt < TRANSITION_RETRIES; attempt++) {
+            DynQueueEntry entry = new DynQueueEntry(request);
+            try {
+                client.transactWriteItems( submitTransaction(entry, force) );
+                publish(EventType.Submitted, entry, StatusFlag.Pending);
+                return new BatchStatus(key, StatusFlag.Pending);
+            } catch (TransactionCanceledException e) {
+                DynQueueEntry existing = find(key);
+                if (isExistingSubmission(existing, force)) {
+                    return existing.getBatchStatus();
+                }
+                // Conflict with a concurrent change, try again
+                log.debug("Submit of {} cancelled: {}", key, e.getMessage());
+            }
         }
+        throw new EpiException("Failed to submit request after repeated conflicts: " + key);
     }
+    
+    protected TransactWriteItemsRequest submitTransaction(DynQueueEntry entry, boolean force) {
+        Delete.Builder clear = Delete.builder()
+                .tableName(getCompletedTableName())
+                .key(keyOf(entry.getKey()));
+        if ( ! force ) {
+            // Failed and expired records are replaced
+            clear.conditionExpression("attribute_not_exists(#key) OR #status = :failed OR #expires < :now")
+                .expressionAttributeNames(Map.of("#key", KEY_ATTRIBUTE, "#status", STATUS_ATTRIBUTE, "#expires", EXPIRES_ATTRIBUTE))
+                .expressionAttributeValues(Map.of(
+                        ":failed", AttributeValue.builder().s(StatusFlag.Failed.name()).build(),
+                        ":now", AttributeValue.builder().n(Long.toString(System.currentTimeMillis() / 1000)).build()));
+        }
+        return TransactWriteItemsRequest.builder().transactItems(
+                TransactWriteItem.builder().put( Put.builder()
+                        .tableName(getQueueTableName())
+                        .item(entry.toItemMap())
+                        // A failed entry can be left behind by older versions which failed expired leases in place
+                        .conditionExpression("attribute_not_exists(#key) OR #status = :failed")
+                        .expressionAttributeNames(Map.of("#key", KEY_ATTRIBUTE, "#status", STATUS_ATTRIBUTE))
+                        .expressionAttributeValues(Map.of(":failed", AttributeValue.builder().s(StatusFlag.Failed.name()).build()))
+                        .build() ).build(),
+                TransactWriteItem.builder().delete( clear.build() ).build()
+                ).build();
+    }
+    
+    /**
+     * True if a cancelled submit was due to this existing entry for the request
+     */
+    protected static boolean isExistingSubmission(DynQueueEntry existing, boolean force) {
+        return existing != null && (existing.getStatus() != StatusFlag.Failed || force);
+    }
+    
+    /**
+     * Return all the entries in the queue, in order of creation
+     */
     public List<DynQueueEntry> getRawQueue() {
-        ScanRequest scanRequest = ScanRequest.builder()
-                .tableName(getQueueTableName())
-                .build();
-        return client.scan(scanRequest)
-                .items()
-                .stream()
-                .map(DynQueueEntry::fromItemMap)
-                .collect(Collectors.toList());
+        List<DynQueueEntry> entries = new ArrayList<>();
+        queueEntries().forEachRemaining( entries::add );
+        return entries;
+    }
+    
+    /**
+     * Iterate over the entries in the queue, in progress and pending together, in order 
+     * of creation. Once the status index is available this reads a page of each status
+     * at a time, so the whole queue is never held in memory. Only the given attributes 
+     * are read, or the whole entry if none are given. This is not a snapshot, an entry 
+     * which is claimed while the listing is in progress may be missed or appear twice.
+     */
+    public Iterator<DynQueueEntry> queueEntries(String... attributes) {
+        if (useStatusIndex()) {
+            return new MergedIterator( statusEntries(StatusFlag.InProgress, attributes), 
+                    statusEntries(StatusFlag.Pending, attributes) );
+        }
+        // Until the index is built the only option is to scan the lot and sort it
+        Map<String, String> names = new HashMap<>();
+        ScanRequest.Builder scan = ScanRequest.builder().tableName(getQueueTableName());
+        if (attributes.length > 0) {
+            scan.projectionExpression( projection(names, attributes) ).expressionAttributeNames(names);
+        }
+        List<DynQueueEntry> entries = new ArrayList<>();
+        for (Map<String, AttributeValue> item : client.scanPaginator(scan.build()).items()) {
+            entries.add( DynQueueEntry.fromItemMap(item) );
+        }
+        entries.sort(CREATED_ORDER);
+        return entries.iterator();
+    }
+    
+    protected Iterator<DynQueueEntry> statusEntries(StatusFlag status, String... attributes) {
+        QueryRequest query = statusQuery(status, 0);
+        if (attributes.length > 0) {
+            Map<String, String> names = new HashMap<>( query.expressionAttributeNames() );
+            query = query.toBuilder()
+                    .projectionExpression( projection(names, attributes) )
+                    .expressionAttributeNames(names)
+                    .build();
+        }
+        return client.queryPaginator(query).items().stream()
+                .map( DynQueueEntry::fromItemMap )
+                .iterator();
+    }
+    
+    protected static String projection(Map<String, String> names, String... attributes) {
+        List<String> placeholders = new ArrayList<>();
+        for (int i = 0; i < attributes.length; i++) {
+            names.put("#p" + i, attributes[i]);
+            placeholders.add("#p" + i);
+        }
+        return String.join(", ", placeholders);
+    }
+    
+    protected static final Comparator<DynQueueEntry> CREATED_ORDER = 
+            Comparator.comparing(DynQueueEntry::getCreated, Comparator.nullsLast(Comparator.naturalOrder()));
+    
+    /**
+     * Merge two iterators over entries which are each in order of creation
+     */
+    protected static class MergedIterator implements Iterator<DynQueueEntry> {
+        protected final Iterator<DynQueueEntry> left;
+        protected final Iterator<DynQueueEntry> right;
+        protected DynQueueEntry nextLeft;
+        protected DynQueueEntry nextRight;
+        
+        public MergedIterator(Iterator<DynQueueEntry> left, Iterator<DynQueueEntry> right) {
+            this.left = left;
+            this.right = right;
+            nextLeft = left.hasNext() ? left.next() : null;
+            nextRight = right.hasNext() ? right.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLeft != null || nextRight != null;
+        }
+
+        @Override
+        public DynQueueEntry next() {
+            if ( ! hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            DynQueueEntry next;
+            if (nextRight == null || (nextLeft != null && CREATED_ORDER.compare(nextLeft, nextRight) <= 0)) {
+                next = nextLeft;
+                nextLeft = left.hasNext() ? left.next() : null;
+            } else {
+                next = nextRight;
+                nextRight = right.hasNext() ? right.next() : null;
+            }
+            return next;
+        }
     }
     
     @Override
     public List<BatchStatus> getQueue() {
-        List<DynQueueEntry> entries = getRawQueue();
-        List<BatchStatus> state = new ArrayList<>( entries.size() );
-        for (DynQueueEntry entry : entries) {
-            state.add( entry.getBatchStatus() );
-        }
+        List<BatchStatus> state = new ArrayList<>();
+        queueIterator().forEachRemaining( state::add );
         return state;
     }    
     
+    /**
+     * Iterate over the queue in order, reading only the attributes needed for the status
+     */
+    @Override
+    public Iterator<BatchStatus> queueIterator() {
+        Iterator<DynQueueEntry> entries = queueEntries(KEY_ATTRIBUTE, STATUS_ATTRIBUTE, CREATED_ATTRIBUTE, 
+                STARTED_ATTRIBUTE, ESTIMATED_TIME_ATTRIBUTE);
+        return new Iterator<BatchStatus>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public BatchStatus next() {
+                return entries.next().getBatchStatus();
+            }
+        };
+    }
+    
+    @Override
+    public QueueStatistics getQueueStatistics() {
+        int size = 0;
+        long total = 0;
+        Map<String, Integer> byURI = new HashMap<>();
+        Iterator<DynQueueEntry> entries = queueEntries(KEY_ATTRIBUTE, REQUEST_URI_ATTRIBUTE, ESTIMATED_TIME_ATTRIBUTE);
+        while (entries.hasNext()) {
+            DynQueueEntry entry = entries.next();
+            size++;
+            if (entry.getEstimatedTime() != null) {
+                total += entry.getEstimatedTime();
+            }
+            byURI.merge(entry.getRequestURI(), 1, Integer::sum);
+        }
+        return new QueueStatistics(size, total, byURI);
+    }
+    
     @Override
     public BatchRequest nextRequest() {
-        for (DynQueueEntry entry : getRawQueue()) {
-            if (entry.getStatus() == StatusFlag.Pending) {
-                entry.setStarted();
-                BatchRequest request = entry.getBatchRequest(); 
+        for (DynQueueEntry entry : pendingCandidates(claimLookahead)) {
+            if (claim(entry)) {
+                remember(entry);
+                publish(EventType.Started, entry, StatusFlag.InProgress);
+                return entry.getBatchRequest();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Claim up to max requests with a single read of the index. The oldest pending entries 
+     * are claimed together in conditional transactions, any which were claimed by someone else
+     * in the meantime are dropped and the rest retried.
+     */
+    @Override
+    public List<BatchRequest> nextRequests(int max, long timeout) throws InterruptedException {
+        long count = 0;
+        List<BatchRequest> next = claimBatch(max);
+        while (next.isEmpty() && count < timeout) {
+            long sleep = Math.min(checkInterval, timeout - count);
+            Thread.sleep( sleep );
+            count += sleep;
+            next = claimBatch(max);
+        }
+        return next;
+    }
+    
+    protected List<BatchRequest> claimBatch(int max) {
+        List<DynQueueEntry> candidates = pendingCandidates(max);
+        List<BatchRequest> claimed = new ArrayList<>( candidates.size() );
+        for (int i = 0; i < candidates.size(); i += TRANSACTION_SIZE) {
+            List<DynQueueEntry> chunk = new ArrayList<>( candidates.subList(i, Math.min(candidates.size(), i + TRANSACTION_SIZE)) );
+            while ( ! chunk.isEmpty() ) {
+                long now = System.currentTimeMillis();
+                List<TransactWriteItem> items = new ArrayList<>( chunk.size() );
+                for (DynQueueEntry entry : chunk) {
+                    ClaimExpression claim = claimExpression(now, entry);
+                    items.add( TransactWriteItem.builder().update( Update.builder()
+                            .tableName(getQueueTableName())
+                            .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(entry.getKey()).build()))
+                            .updateExpression(claim.update())
+                            .conditionExpression(claim.condition())
+                            .expressionAttributeNames(claim.names())
+                            .expressionAttributeValues(claim.values())
+                            .build() ).build() );
+                }
                 try {
-                    saveEntry(entry, getQueueTableName());
-                } catch (ConditionalCheckFailedException e) {
-                    // This entry was started by someone else after all, skip it
+                    client.transactWriteItems( TransactWriteItemsRequest.builder().transactItems(items).build() );
+                    for (DynQueueEntry entry : chunk) {
+                        remember(entry);
+                        claimed.add( entry.getBatchRequest() );
+                        publish(EventType.Started, entry, StatusFlag.InProgress);
+                    }
+                    break;
+                } catch (TransactionCanceledException e) {
+                    // Drop the entries someone else claimed and retry the rest
+                    List<CancellationReason> reasons = e.cancellationReasons();
+                    List<DynQueueEntry> retry = new ArrayList<>();
+                    for (int r = 0; r < chunk.size(); r++) {
+                        String code = r < reasons.size() ? reasons.get(r).code() : null;
+                        if ( ! "ConditionalCheckFailed".equals(code) ) {
+                            retry.add( chunk.get(r) );
+                        }
+                    }
+                    if (retry.size() == chunk.size()) {
+                        // Not a lost race, e.g. a conflicting transaction, leave these for the next poll
+                        log.debug("Batch claim cancelled: {}", e.getMessage());
+                        break;
+                    }
+                    chunk = retry;
                 }
-                return request;
             }
         }
-        return null;
+        return claimed;
+    }
+    
+    /**
+     * Claim a pending entry for this node. Returns false if it was claimed, finished,
+     * removed or otherwise changed by someone else since it was read.
+     */
+    protected boolean claim(DynQueueEntry entry) {
+        try {
+            client.updateItem( claimRequest(entry) );
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            // This entry was started by someone else after all, skip it
+            return false;
+        }
+    }
+    
+    /**
+     * Record an entry this node has just claimed, with the changes the claim made to it
+     */
+    protected void remember(DynQueueEntry entry) {
+        long now = System.currentTimeMillis();
+        entry.setStatusStr( StatusFlag.InProgress.name() );
+        entry.setStarted(now);
+        entry.setOwner(owner);
+        entry.setAttempts( (entry.getAttempts() == null ? 0 : entry.getAttempts()) + 1 );
+        entry.setVersion( (entry.getVersion() == null ? 0 : entry.getVersion()) + 1 );
+        entry.setProgress(null);
+        claimed.put(entry.getKey(), entry);
+    }
+    
+    protected UpdateItemRequest claimRequest(DynQueueEntry entry) {
+        ClaimExpression claim = claimExpression( System.currentTimeMillis(), entry );
+        return UpdateItemRequest.builder()
+                .tableName(getQueueTableName())
+                .key(keyOf(entry.getKey()))
+                .updateExpression(claim.update())
+                .conditionExpression(claim.condition())
+                .expressionAttributeNames(claim.names())
+                .expressionAttributeValues(claim.values())
+                .build();
+    }
+    
+    protected record ClaimExpression(String update, String condition, Map<String, String> names, Map<String, AttributeValue> values) {}
+    
+    protected ClaimExpression claimExpression(long now, DynQueueEntry seen) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#key", KEY_ATTRIBUTE);
+        names.put("#version", VERSION_ATTRIBUTE);
+        names.put("#status", STATUS_ATTRIBUTE);
+        names.put("#started", STARTED_ATTRIBUTE);
+        names.put("#owner", OWNER_ATTRIBUTE);
+        names.put("#attempts", ATTEMPTS_ATTRIBUTE);
+        names.put("#progress", PROGRESS_ATTRIBUTE);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build());
+        values.put(":pending", AttributeValue.builder().s(StatusFlag.Pending.name()).build());
+        values.put(":now", AttributeValue.builder().n(Long.toString(now)).build());
+        values.put(":owner", AttributeValue.builder().s(owner).build());
+        values.put(":zero", AttributeValue.builder().n("0").build());
+        values.put(":one", AttributeValue.builder().n("1").build());
+        String update = "SET #status = :inprogress, #started = :now, #owner = :owner, "
+                + "#attempts = if_not_exists(#attempts, :zero) + :one, #version = if_not_exists(#version, :zero) + :one";
+        if (leaseDuration > 0) {
+            names.put("#lease", LEASE_ATTRIBUTE);
+            values.put(":expiry", AttributeValue.builder().n(Long.toString(now + leaseDuration)).build());
+            update += ", #lease = :expiry";
+        }
+        // Progress reported by any earlier attempt no longer applies
+        update += " REMOVE #progress";
+        // Must not recreate an entry which has been finished and removed in the meantime
+        String condition = "attribute_exists(#key) AND (attribute_not_exists(#status) OR #status = :pending)";
+        if (seen.getVersion() == null) {
+            // Written by an earlier release
+            condition += " AND attribute_not_exists(#version)";
+        } else {
+            values.put(":version", AttributeValue.builder().n(seen.getVersion().toString()).build());
+            condition += " AND #version = :version";
+        }
+        return new ClaimExpression(update, condition, names, values);
+    }
+    
+    @Override
+    public boolean renewLease(String key) {
+        if (leaseDuration <= 0) {
+            return getStatus(key).getStatus() == StatusFlag.InProgress;
+        }
+        Map<String, String> names = new HashMap<>();
+        names.put("#status", STATUS_ATTRIBUTE);
+        names.put("#owner", OWNER_ATTRIBUTE);
+        names.put("#lease", LEASE_ATTRIBUTE);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build());
+        values.put(":owner", AttributeValue.builder().s(owner).build());
+        values.put(":expiry", AttributeValue.builder().n(Long.toString(System.currentTimeMillis() + leaseDuration)).build());
+        try {
+            client.updateItem(UpdateItemRequest.builder()
+                    .tableName(getQueueTableName())
+                    .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build()))
+                    .updateExpression("SET #lease = :expiry")
+                    .conditionExpression("#status = :inprogress AND #owner = :owner")
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+                    .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            // Lease was lost, or the request finished or was removed
+            claimed.remove(key);
+            return false;
+        }
+    }
+    
+    /**
+     * Looks for expired leases among the in-progress entries. Each node runs this so the reset
+     * is conditional on the lease being unchanged since it was read, which means a renewal or 
+     * a reset by another node wins.
+     */
+    @Override
+    public int requeueExpiredLeases() {
+        long now = System.currentTimeMillis();
+        Map<String, String> names = Map.of("#status", STATUS_ATTRIBUTE, "#lease", LEASE_ATTRIBUTE);
+        Map<String, AttributeValue> values = Map.of(
+                ":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build(),
+                ":now", AttributeValue.builder().n(Long.toString(now)).build());
+        Iterable<Map<String, AttributeValue>> expired;
+        if (useStatusIndex()) {
+            expired = client.queryPaginator(QueryRequest.builder()
+                    .tableName(getQueueTableName())
+                    .indexName(QUEUE_STATUS_INDEX)
+                    .keyConditionExpression("#status = :inprogress")
+                    .filterExpression("#lease < :now")
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+                    .build()).items();
+        } else {
+            expired = client.scanPaginator(ScanRequest.builder()
+                    .tableName(getQueueTableName())
+                    .filterExpression("#status = :inprogress AND #lease < :now")
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+                    .build()).items();
+        }
+        int count = 0;
+        for (Map<String, AttributeValue> item : expired) {
+            DynQueueEntry entry = DynQueueEntry.fromItemMap(item);
+            boolean exhausted = maxAttempts > 0 && entry.getAttempts() != null && entry.getAttempts() >= maxAttempts;
+            if (exhausted) {
+                if (failExpiredLease(entry)) {
+                    count++;
+                    log.warn("Lease held by {} expired on final attempt, failed request: {}", entry.getOwner(), entry.getKey());
+                }
+            } else if (resetExpiredLease(entry)) {
+                count++;
+                log.warn("Lease held by {} expired, returning request to queue: {}", entry.getOwner(), entry.getKey());
+                entry.setProgress(null);
+                publish(EventType.Requeued, entry, StatusFlag.Pending);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Move a request whose lease expired on its final attempt to the completed table as Failed,
+     * in one transaction conditional on the lease being unchanged since it was read
+     */
+    protected boolean failExpiredLease(DynQueueEntry entry) {
+        DynCompletedEntry completed = completedRecord(entry, StatusFlag.Failed);
+        try {
+            client.transactWriteItems( completeTransaction(entry.getKey(), completed, 
+                    "#status = :inprogress AND #lease = :seen",
+                    Map.of("#status", STATUS_ATTRIBUTE, "#lease", LEASE_ATTRIBUTE),
+                    Map.of(":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build(),
+                           ":seen", AttributeValue.builder().n(entry.getLeaseExpiry().toString()).build())) );
+            claimed.remove(entry.getKey());
+            publish(EventType.Failed, completed, StatusFlag.Failed);
+            return true;
+        } catch (TransactionCanceledException e) {
+            // Renewed, finished or reset by another node since the scan
+            return false;
+        }
+    }
+
+    protected boolean resetExpiredLease(DynQueueEntry entry) {
+        try {
+            client.updateItem(UpdateItemRequest.builder()
+                    .tableName(getQueueTableName())
+                    .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(entry.getKey()).build()))
+                    .updateExpression("SET #status = :status, #version = if_not_exists(#version, :zero) + :one "
+                            + "REMOVE #started, #owner, #lease, #progress")
+                    .conditionExpression("#status = :inprogress AND #lease = :seen")
+                    .expressionAttributeNames(Map.of(
+                            "#status", STATUS_ATTRIBUTE, "#started", STARTED_ATTRIBUTE, "#version", VERSION_ATTRIBUTE,
+                            "#owner", OWNER_ATTRIBUTE, "#lease", LEASE_ATTRIBUTE, "#progress", PROGRESS_ATTRIBUTE))
+                    .expressionAttributeValues(Map.of(
+                            ":status", AttributeValue.builder().s(StatusFlag.Pending.name()).build(),
+                            ":zero", AttributeValue.builder().n("0").build(),
+                            ":one", AttributeValue.builder().n("1").build(),
+                            ":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build(),
+                            ":seen", AttributeValue.builder().n(entry.getLeaseExpiry().toString()).build()))
+                    .build());
+            claimed.remove(entry.getKey());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            // Renewed, finished or reset by another node since the scan
+            return false;
+        }
     }
 
     @Override
@@ -230,40 +1200,176 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
     
     @Override
     public BatchStatus getStatus(String requestKey) {
-        DynQueueEntry entry = find(requestKey);
-        if (entry != null) {
-            return entry.getBatchStatus();
-        } else {
-            return new BatchStatus(requestKey, StatusFlag.Unknown);
+        return getStatuses( Collections.singletonList(requestKey) ).get(requestKey);
+    }
+
+    /**
+     * Look up the status of a set of requests, reading both tables for up to 50 keys
+     * in each BatchGetItem call. Uses the status cache, if enabled, for requests looked up recently.
+     */
+    @Override
+    public Map<String, BatchStatus> getStatuses(Collection<String> requestKeys) {
+        Map<String, DynQueueEntry> found = findStatuses(requestKeys);
+        Map<String, BatchStatus> statuses = new HashMap<>();
+        for (String key : requestKeys) {
+            statuses.put(key, statusOf(key, found.get(key)));
         }
+        return statuses;
     }
 
-    private DynQueueEntry find(String requestKey) {
-        DynQueueEntry entry = findEntry(requestKey);
-        if (entry == null){
-            entry = findCompletedEntry(requestKey);
+    /**
+     * Look up a set of requests through the status cache, reading only those which are not cached
+     */
+    protected Map<String, DynQueueEntry> findStatuses(Collection<String> requestKeys) {
+        DynStatusCache cache = statusCache;
+        if (cache == null) {
+            return findAll(requestKeys);
+        }
+        long now = System.currentTimeMillis();
+        Map<String, DynQueueEntry> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : requestKeys) {
+            DynStatusCache.Cached cached = cache.get(key, now);
+            if (cached == null) {
+                missing.add(key);
+            } else if (cached.entry() != null) {
+                found.put(key, cached.entry());
+            }
+        }
+        if ( ! missing.isEmpty() ) {
+            long stamp = cache.stamp();
+            Map<String, DynQueueEntry> fetched = findAll(missing);
+            for (String key : missing) {
+                DynQueueEntry entry = fetched.get(key);
+                cache.put(key, entry, stamp, now);
+                if (entry != null) {
+                    found.put(key, entry);
+                }
+            }
         }
-        return entry;
+        return found;
     }
 
-    private DynQueueEntry findEntry(String key) {
-        GetItemRequest request = GetItemRequest.builder()
-                .tableName(getQueueTableName())
-                .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build()))
-                .build();
+    protected static BatchStatus statusOf(String key, DynQueueEntry entry) {
+        return entry == null ? new BatchStatus(key, StatusFlag.Unknown) : entry.getBatchStatus();
+    }
 
-        Map<String, AttributeValue> item = client.getItem(request).item();
-        return !item.isEmpty() ? DynQueueEntry.fromItemMap(item) : null;
+    /**
+     * Look up a request in the queue and completed tables in a single round trip
+     */
+    protected DynQueueEntry find(String requestKey) {
+        return findAll( Collections.singletonList(requestKey) ).get(requestKey);
     }
 
-    private DynCompletedEntry findCompletedEntry(String key) {
-        GetItemRequest request = GetItemRequest.builder()
-                .tableName(getCompletedTableName())
-                .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build()))
-                .build();
+    /**
+     * Look up a set of requests in the queue and completed tables using BatchGetItem.
+     * A queue entry takes precedence over a completed record for the same key, which
+     * can only be an old result awaiting resubmission.
+     */
+    protected Map<String, DynQueueEntry> findAll(Collection<String> requestKeys) {
+        Map<String, DynQueueEntry> queued = new HashMap<>();
+        Map<String, DynQueueEntry> completed = new HashMap<>();
+        for (List<String> batch : batchGetKeys(requestKeys)) {
+            Map<String, KeysAndAttributes> pending = batchGetItems(batch);
+            for (int attempt = 0; ! pending.isEmpty(); attempt++) {
+                if (attempt > UNPROCESSED_RETRIES) {
+                    throw new EpiException("Gave up looking up requests after repeated throttling");
+                }
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep( batchGetBackoff(attempt) );
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new EpiException(e);
+                    }
+                }
+                BatchGetItemResponse response = client.batchGetItem( BatchGetItemRequest.builder().requestItems(pending).build() );
+                pending = collectFound(response, queued, completed);
+            }
+        }
+        completed.putAll(queued);
+        return completed;
+    }
+
+    /**
+     * Split a set of request keys into groups small enough for one BatchGetItem call
+     */
+    protected static List<List<String>> batchGetKeys(Collection<String> requestKeys) {
+        List<String> keys = new ArrayList<>( new LinkedHashSet<>(requestKeys) );
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += BATCH_GET_KEYS) {
+            batches.add( keys.subList(i, Math.min(i + BATCH_GET_KEYS, keys.size())) );
+        }
+        return batches;
+    }
+
+    /**
+     * The BatchGetItem request items to read a group of requests from both tables
+     */
+    protected Map<String, KeysAndAttributes> batchGetItems(List<String> keys) {
+        List<Map<String, AttributeValue>> batch = keys.stream()
+                .map( DynQueueManager::keyOf )
+                .collect(Collectors.toList());
+        Map<String, KeysAndAttributes> items = new HashMap<>();
+        items.put(getQueueTableName(), KeysAndAttributes.builder().keys(batch).build());
+        items.put(getCompletedTableName(), KeysAndAttributes.builder().keys(batch).build());
+        return items;
+    }
 
-        Map<String, AttributeValue> item = client.getItem(request).item();
-        return !item.isEmpty() ? DynCompletedEntry.fromItemMap(item) : null;
+    /**
+     * Add the entries found by a BatchGetItem call, return the keys still to read
+     */
+    protected Map<String, KeysAndAttributes> collectFound(BatchGetItemResponse response, 
+            Map<String, DynQueueEntry> queued, Map<String, DynQueueEntry> completed) {
+        for (Map<String, AttributeValue> item : response.responses().getOrDefault(getQueueTableName(), List.of())) {
+            DynQueueEntry entry = queueEntry(item);
+            queued.put(entry.getKey(), entry);
+        }
+        for (Map<String, AttributeValue> item : response.responses().getOrDefault(getCompletedTableName(), List.of())) {
+            DynQueueEntry entry = completedEntry(item);
+            if (entry != null) {
+                completed.put(entry.getKey(), entry);
+            }
+        }
+        return response.unprocessedKeys();
+    }
+
+    /**
+     * Time in ms to wait before retrying unprocessed keys, doubling from 20ms up to 1s
+     */
+    protected static long batchGetBackoff(int attempt) {
+        return Math.min(20L << Math.min(attempt - 1, 10), 1000);
+    }
+
+    private DynQueueEntry findEntry(String key, boolean consistent) {
+        Map<String, AttributeValue> item = client.getItem( getRequest(getQueueTableName(), key, consistent) ).item();
+        return queueEntry(item);
+    }
+
+    private DynCompletedEntry findCompletedEntry(String key, boolean consistent) {
+        Map<String, AttributeValue> item = client.getItem( getRequest(getCompletedTableName(), key, consistent) ).item();
+        return completedEntry(item);
+    }
+    
+    protected GetItemRequest getRequest(String table, String key, boolean consistent) {
+        return GetItemRequest.builder()
+                .tableName(table)
+                .key(keyOf(key))
+                .consistentRead(consistent)
+                .build();
+    }
+    
+    protected static DynQueueEntry queueEntry(Map<String, AttributeValue> item) {
+        return item == null || item.isEmpty() ? null : DynQueueEntry.fromItemMap(item);
+    }
+    
+    protected static DynCompletedEntry completedEntry(Map<String, AttributeValue> item) {
+        if (item == null || item.isEmpty()) {
+            return null;
+        }
+        DynCompletedEntry entry = DynCompletedEntry.fromItemMap(item);
+        // Awaiting removal by TTL
+        return entry.isExpired( System.currentTimeMillis() ) ? null : entry;
     }
 
     @Override
@@ -278,117 +1384,413 @@ public class DynQueueManager extends ComponentBase implements QueueManager, Star
     
     @Override
     public void finishRequest(String key) {
-        DynQueueEntry entry = findEntry(key);
-        if (entry == null) {
-            log.error("Request has been lost, can't mark as finished: " + key);
-        } else {
-            deleteEntry(key, getQueueTableName());
-            DynCompletedEntry completed = new DynCompletedEntry(entry);
-            completed.setStatusStr(StatusFlag.Completed.name());
-            saveEntry(completed, getCompletedTableName());
-        }
+        complete(key, StatusFlag.Completed);
     }
 
+    /**
+     * Return the request to the queue, provided it is still in progress and was not claimed
+     * by another node. A worker whose lease has expired therefore can't requeue a request 
+     * that has since been claimed again.
+     */
     @Override
     public void abortRequest(String key) {
-        DynQueueEntry entry = findEntry(key);
-        if (entry == null) {
-            log.error("Request has been lost, can't abort: " + key);
-        } else {
-            entry.setStatusStr( StatusFlag.Pending.name() );
-            entry.setStarted(null);
-            saveEntry(entry, getQueueTableName());
+        Map<String, String> names = new HashMap<>();
+        names.put("#key", KEY_ATTRIBUTE);
+        names.put("#status", STATUS_ATTRIBUTE);
+        names.put("#version", VERSION_ATTRIBUTE);
+        names.put("#started", STARTED_ATTRIBUTE);
+        names.put("#owner", OWNER_ATTRIBUTE);
+        names.put("#lease", LEASE_ATTRIBUTE);
+        names.put("#progress", PROGRESS_ATTRIBUTE);
+        try {
+            UpdateItemResponse response = client.updateItem(UpdateItemRequest.builder()
+                    .tableName(getQueueTableName())
+                    .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build()))
+                    .updateExpression("SET #status = :pending, #version = if_not_exists(#version, :zero) + :one "
+                            + "REMOVE #started, #owner, #lease, #progress")
+                    .conditionExpression("attribute_exists(#key) AND #status = :inprogress "
+                            + "AND (attribute_not_exists(#owner) OR #owner = :owner)")
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(Map.of(
+                            ":pending", AttributeValue.builder().s(StatusFlag.Pending.name()).build(),
+                            ":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build(),
+                            ":owner", AttributeValue.builder().s(owner).build(),
+                            ":zero", AttributeValue.builder().n("0").build(),
+                            ":one", AttributeValue.builder().n("1").build()))
+                    .returnValues(ReturnValue.ALL_NEW)
+                    .build());
+            publish(EventType.Requeued, DynQueueEntry.fromItemMap(response.attributes()), StatusFlag.Pending);
+        } catch (ConditionalCheckFailedException e) {
+            log.error("Request is not in progress on this node, can't abort: " + key);
+        } finally {
+            claimed.remove(key);
         }
     }
 
     @Override
     public void failRequest(String key) {
-        DynQueueEntry entry = findEntry(key);
-        if (entry == null) {
-            log.error("Request has been lost, can't mark as failed: {}", key);
-        } else {
-            deleteEntry(entry.key, getQueueTableName());
-            DynCompletedEntry completed = new DynCompletedEntry(entry);
-            completed.setStatusStr(StatusFlag.Failed.name());
-            saveEntry(completed, getCompletedTableName());
+        complete(key, StatusFlag.Failed);
+    }
+    
+    /**
+     * Move the entry from the queue to the completed table in one transaction, conditional on
+     * the queue entry being the version last seen and not being owned by another node. Uses the
+     * entry remembered from the claim if there is one, otherwise or if the entry has changed since,
+     * reads it afresh. Gives up if the request has since been claimed by another node, for example
+     * after this node's lease expired, since that node is now responsible for it.
+     */
+    protected void complete(String key, StatusFlag status) {
+        DynQueueEntry entry = claimed.remove(key);
+        for (int attempt = 0; attempt < TRANSITION_RETRIES; attempt++) {
+            if (entry == null) {
+                entry = findEntry(key, true);
+                if (entry == null) {
+                    log.error("Request has been lost, can't mark as {}: {}", status, key);
+                    return;
+                }
+                if (entry.getOwner() != null && ! entry.getOwner().equals(owner)) {
+                    log.warn("Request has been claimed by {}, not marking as {}: {}", entry.getOwner(), status, key);
+                    return;
+                }
+            }
+            DynCompletedEntry completed = completedRecord(entry, status);
+            Map<String, AttributeValue> values = new HashMap<>();
+            values.put(":owner", AttributeValue.builder().s(owner).build());
+            String condition = "attribute_exists(#key) AND (attribute_not_exists(#owner) OR #owner = :owner) AND ";
+            if (entry.getVersion() == null) {
+                condition += "attribute_not_exists(#version)";
+            } else {
+                condition += "#version = :version";
+                values.put(":version", AttributeValue.builder().n(entry.getVersion().toString()).build());
+            }
+            try {
+                client.transactWriteItems( completeTransaction(key, completed, condition,
+                        Map.of("#key", KEY_ATTRIBUTE, "#version", VERSION_ATTRIBUTE, "#owner", OWNER_ATTRIBUTE), values) );
+                publish(status == StatusFlag.Completed ? EventType.Completed : EventType.Failed, completed, status);
+                return;
+            } catch (TransactionCanceledException e) {
+                // Changed since it was read, e.g. the lease expired, try again with the latest
+                log.debug("Marking {} as {} cancelled: {}", key, status, e.getMessage());
+                entry = null;
+            }
+        }
+        throw new EpiException("Failed to mark request as " + status + " after repeated conflicts: " + key);
+    }
+
+    /**
+     * The completed table record for a queue entry finishing with the given status
+     */
+    protected DynCompletedEntry completedRecord(DynQueueEntry entry, StatusFlag status) {
+        DynCompletedEntry completed = new DynCompletedEntry(entry);
+        completed.setStatusStr(status.name());
+        completed.setStatusShard( shardKey(status, entry.getKey()) );
+        if (completedRetention > 0) {
+            completed.setExpiresAt( (completed.getFinished() + completedRetention) / 1000 );
         }
+        return completed;
+    }
+
+    /**
+     * Transaction to delete the queue entry, subject to the condition, and record its completion
+     */
+    protected TransactWriteItemsRequest completeTransaction(String key, DynCompletedEntry completed, String condition,
+            Map<String, String> names, Map<String, AttributeValue> values) {
+        return TransactWriteItemsRequest.builder().transactItems(
+                TransactWriteItem.builder().delete( Delete.builder()
+                        .tableName(getQueueTableName())
+                        .key(keyOf(key))
+                        .conditionExpression(condition)
+                        .expressionAttributeNames(names)
+                        .expressionAttributeValues(values)
+                        .build() ).build(),
+                TransactWriteItem.builder().put( Put.builder()
+                        .tableName(getCompletedTableName())
+                        .item(completed.toItemMap())
+                        .build() ).build()
+                ).build();
     }
 
+    /**
+     * Progress is recorded on the queue entry so the change feed on other nodes can report it
+     */
     @Override
-    public BatchStatus resubmit(BatchRequest request) {
-        DynCompletedEntry entry = findCompletedEntry(request.getKey());
-        if (entry != null) {
-            // Clear out any old copy
-            deleteEntry(entry.key, getCompletedTableName());
+    public void reportProgress(String key, double progress) {
+        try {
+            UpdateItemResponse response = client.updateItem(UpdateItemRequest.builder()
+                    .tableName(getQueueTableName())
+                    .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build()))
+                    .updateExpression("SET #progress = :progress")
+                    .conditionExpression("#status = :inprogress")
+                    .expressionAttributeNames(Map.of("#status", STATUS_ATTRIBUTE, "#progress", PROGRESS_ATTRIBUTE))
+                    .expressionAttributeValues(Map.of(
+                            ":progress", AttributeValue.builder().n(Double.toString(progress)).build(),
+                            ":inprogress", AttributeValue.builder().s(StatusFlag.InProgress.name()).build()))
+                    .returnValues(ReturnValue.ALL_NEW)
+                    .build());
+            publish(EventType.Progress, DynQueueEntry.fromItemMap(response.attributes()), StatusFlag.InProgress);
+        } catch (ConditionalCheckFailedException e) {
+            // No longer in progress, nothing to report
         }
-        return submit(request);
     }
 
     @Override
-    public void removeOldCompletedRequests(long cutoff) {
-        long count = 0;
+    public void addListener(BatchListener listener) {
+        events.addListener(listener);
+        if (client != null) {
+            startChangeFeed();
+        }
+    }
+
+    @Override
+    public void removeListener(BatchListener listener) {
+        events.removeListener(listener);
+    }
+
+    protected synchronized void startChangeFeed() {
+        if ( ! feedStarted && eventPollInterval > 0 ) {
+            feedStarted = true;
+            scheduler().scheduleWithFixedDelay(this::pollChanges, 0, eventPollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notify listeners of a change to a request, unless it has already been reported.
+     * Both local transitions and the change feed report through here so each change
+     * is only reported once per node. Also drops the request from the status cache.
+     */
+    protected void publish(EventType type, DynQueueEntry entry, StatusFlag status) {
+        DynStatusCache cache = statusCache;
+        if (cache != null) {
+            cache.invalidate( entry.getKey() );
+        }
+        if ( ! events.hasListeners() ) {
+            return;
+        }
+        Seen seen = new Seen(status, entry.getProgress(), entry.getCreated());
+        if (seen.equals( known.put(entry.getKey(), seen) )) {
+            return;
+        }
+        if (seen.isFinished() && ! feedStarted) {
+            // Only the change feed clears these out
+            known.remove(entry.getKey());
+        }
+        BatchStatus batchStatus = entry.getBatchStatus();
+        batchStatus.setStatus(status);
+        BatchEvent event = new BatchEvent(type, batchStatus);
+        if (type == EventType.Progress && entry.getProgress() != null) {
+            event.setProgress( entry.getProgress() );
+        }
+        events.publish(event);
+    }
 
-        while(true) {
-            List<String> toDelete = listCompletedOlderThan(cutoff);
-            if (toDelete.isEmpty()) break;
-            count += toDelete.size();
-            for (String key : toDelete) {
-                deleteEntry(key, getCompletedTableName());
+    /**
+     * Compare the queue table with the state last reported to find changes made by other
+     * nodes, reading only the attributes needed for the events. The first poll just records 
+     * the starting state.
+     */
+    protected void pollChanges() {
+        if ( ! events.hasListeners() ) {
+            return;
+        }
+        try {
+            Map<String, DynQueueEntry> current = new HashMap<>();
+            Iterator<DynQueueEntry> entries = queueEntries(KEY_ATTRIBUTE, STATUS_ATTRIBUTE, CREATED_ATTRIBUTE,
+                    PROGRESS_ATTRIBUTE, STARTED_ATTRIBUTE, ESTIMATED_TIME_ATTRIBUTE);
+            while (entries.hasNext()) {
+                DynQueueEntry entry = entries.next();
+                current.put(entry.getKey(), entry);
+            }
+            for (DynQueueEntry entry : current.values()) {
+                Seen previous = known.get(entry.getKey());
+                StatusFlag status = entry.getStatus();
+                boolean sameRequest = previous != null && Objects.equals(previous.created(), entry.getCreated());
+                if (sameRequest && previous.isFinished()) {
+                    // Stale view of a request already reported as finished
+                    continue;
+                }
+                if ( ! feedPrimed ) {
+                    known.put(entry.getKey(), new Seen(status, entry.getProgress(), entry.getCreated()));
+                } else if ( ! sameRequest ) {
+                    publish(status == StatusFlag.InProgress ? EventType.Started : EventType.Submitted, entry, status);
+                } else if (previous.status() != status) {
+                    if (status == StatusFlag.InProgress) {
+                        publish(EventType.Started, entry, status);
+                    } else if (status == StatusFlag.Pending) {
+                        publish(EventType.Requeued, entry, status);
+                    }
+                } else if (status == StatusFlag.InProgress && ! Objects.equals(previous.progress(), entry.getProgress())) {
+                    publish(EventType.Progress, entry, status);
+                }
             }
+            for (Map.Entry<String, Seen> entry : known.entrySet()) {
+                String key = entry.getKey();
+                if (current.containsKey(key)) continue;
+                if ( ! entry.getValue().isFinished() ) {
+                    // Left the queue since the last poll, find out how it ended. The record has
+                    // only just been written so an eventually consistent read could miss it
+                    DynCompletedEntry done = findCompletedEntry(key, true);
+                    if (done != null && done.getStatus() == StatusFlag.Completed) {
+                        publish(EventType.Completed, done, StatusFlag.Completed);
+                    } else if (done != null && done.getStatus() == StatusFlag.Failed) {
+                        publish(EventType.Failed, done, StatusFlag.Failed);
+                    }
+                }
+                known.remove(key, known.get(key));
+            }
+            feedPrimed = true;
+        } catch (Exception e) {
+            log.error("Failed to poll for queue changes", e);
         }
-        log.info("Cleanup deleted {} old records of completed requests", count);
     }
-    
-    protected final int BATCH_SIZE = 20;  // Can't be more than 25
 
-    private List<String> listCompletedOlderThan(long cutoff) {
-        QueryRequest request = QueryRequest.builder()
-                .tableName(getCompletedTableName())
-                .limit(BATCH_SIZE)
-                .indexName(COMPLETED_TIME_INDEX)
-                .expressionAttributeNames(new HashMap<String, String>() {{
-                    put("#status", STATUS_ATTRIBUTE);
-                    put("#finished", FINISHED_ATTRIBUTE);
-                }})
-                .expressionAttributeValues(new HashMap<String, AttributeValue>() {{
-                    put(":v_status", AttributeValue.builder().s(StatusFlag.Completed.name()).build());
-                    put(":v_cutoff", AttributeValue.builder().n(Long.toString(cutoff)).build());
-                }})
-                .keyConditionExpression("#status = :v_status AND #finished < :v_cutoff")
-                .build();
-        return client.query(request)
-                .items()
-                .stream()
-                .map(item -> item.get(KEY_ATTRIBUTE).s())
-                .collect(Collectors.toList());
+    @Override
+    public BatchStatus resubmit(BatchRequest request) {
+        return submit(request, true);
     }
 
-    private void saveEntry(DynQueueEntry entry, String tableName) {
-        Map<String, AttributeValue> itemMap = entry.toItemMap();
-        client.putItem(PutItemRequest.builder()
-                .tableName(tableName)
-                .item(itemMap)
-                .build());
+    /**
+     * Delete records of requests which completed or failed before the cutoff. Each shard of the
+     * index for each status is read in parallel and the keys deleted in BatchWriteItem calls of 25,
+     * retrying unprocessed items, with up to <code>cleanupThreads</code> batches in flight. While a 
+     * table still has the unsharded index from an earlier release that is read too, so that records 
+     * not yet given a shard key are found, and the count logged may include records listed by both.
+     * <p>
+     * The deletes are not conditional, to keep cleanup to one write per record. The indexes are only
+     * eventually consistent so a request completed again since it was listed may lose its new record, 
+     * its result is still in the cache and the request manager finds it there.
+     * </p>
+     */
+    @Override
+    public void removeOldCompletedRequests(long cutoff) {
+        AtomicLong count = new AtomicLong();
+        int maxDeletes = Math.max(1, cleanupThreads);
+        Semaphore deletes = new Semaphore(maxDeletes);
+        ExecutorService exec = Executors.newThreadPerTaskExecutor( Thread.ofVirtual().name("armlib-dyn-cleanup-", 0).factory() );
+        try {
+            Map<String, IndexStatus> indexes = completedIndexes();
+            List<QueryRequest> queries = new ArrayList<>();
+            for (StatusFlag status : new StatusFlag[] {StatusFlag.Completed, StatusFlag.Failed}) {
+                if (indexes.get(COMPLETED_SHARD_INDEX) == IndexStatus.ACTIVE) {
+                    for (int shard = 0; shard < completedShards; shard++) {
+                        queries.add( cleanupQuery(COMPLETED_SHARD_INDEX, SHARD_ATTRIBUTE, status.name() + "#" + shard, cutoff) );
+                    }
+                }
+                if (indexes.get(COMPLETED_TIME_INDEX) == IndexStatus.ACTIVE) {
+                    queries.add( cleanupQuery(COMPLETED_TIME_INDEX, STATUS_ATTRIBUTE, status.name(), cutoff) );
+                }
+            }
+            List<Future<?>> listings = new ArrayList<>();
+            for (QueryRequest query : queries) {
+                listings.add( exec.submit( () -> {
+                    List<String> batch = new ArrayList<>(BATCH_WRITE_SIZE);
+                    for (Map<String, AttributeValue> item : client.queryPaginator(query).items()) {
+                        batch.add( item.get(KEY_ATTRIBUTE).s() );
+                        if (batch.size() == BATCH_WRITE_SIZE) {
+                            startDelete(exec, deletes, batch, count);
+                            batch = new ArrayList<>(BATCH_WRITE_SIZE);
+                        }
+                    }
+                    if ( ! batch.isEmpty() ) {
+                        startDelete(exec, deletes, batch, count);
+                    }
+                    return null;
+                }) );
+            }
+            for (Future<?> listing : listings) {
+                try {
+                    listing.get();
+                } catch (ExecutionException e) {
+                    log.error("Cleanup of old completed requests failed", e.getCause());
+                }
+            }
+            // Wait for the last deletes to finish
+            deletes.acquire(maxDeletes);
+            deletes.release(maxDeletes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exec.shutdownNow();
+        }
+        log.info("Cleanup deleted {} old records of completed requests", count.get());
     }
 
-    private void delete(String key) {
+    /**
+     * Delete a batch of records in the background, once there is room for another delete in flight,
+     * so that a listing never gets far ahead of the deletes
+     */
+    protected void startDelete(ExecutorService exec, Semaphore deletes, List<String> keys, AtomicLong count) 
+            throws InterruptedException {
+        deletes.acquire();
         try {
-            deleteEntry(key, getQueueTableName());
-        } catch (Exception ex1) {
-            try {
-                deleteEntry(key, getQueueTableName());
-            } catch (Exception ex2) {
-                log.error("Failed to delete key {} from both {} and {} tables", key, getQueueTableName(), getCompletedTableName());
+            exec.execute( () -> {
+                try {
+                    count.addAndGet( deleteCompleted(keys) );
+                } catch (InterruptedException e) {
+                    // Abandoned
+                } catch (Exception e) {
+                    log.error("Cleanup of old completed requests failed", e);
+                } finally {
+                    deletes.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            deletes.release();
+            throw e;
+        }
+    }
+    
+    protected static final int BATCH_WRITE_SIZE = 25;
+    protected static final int BATCH_GET_KEYS = 50;
+    protected static final int TRANSACTION_SIZE = 25;
+    protected static final long INDEX_CHECK_INTERVAL = 30 * 1000;
+    protected static final int TRANSITION_RETRIES = 3;
+    protected static final int UNPROCESSED_RETRIES = 8;
+
+    private QueryRequest cleanupQuery(String index, String hashAttribute, String hashValue, long cutoff) {
+        return QueryRequest.builder()
+                .tableName(getCompletedTableName())
+                .indexName(index)
+                .projectionExpression("#key")
+                .expressionAttributeNames(Map.of(
+                        "#key", KEY_ATTRIBUTE, "#hash", hashAttribute, "#finished", FINISHED_ATTRIBUTE))
+                .expressionAttributeValues(Map.of(
+                        ":v_hash", AttributeValue.builder().s(hashValue).build(),
+                        ":v_cutoff", AttributeValue.builder().n(Long.toString(cutoff)).build()))
+                .keyConditionExpression("#hash = :v_hash AND #finished < :v_cutoff")
+                .build();
+    }
+    
+    /**
+     * Delete up to 25 completed records in one batch, retrying unprocessed items with
+     * exponential backoff. Returns the number deleted.
+     */
+    protected int deleteCompleted(List<String> keys) throws InterruptedException {
+        List<WriteRequest> pending = keys.stream()
+                .map( key -> WriteRequest.builder().deleteRequest( DeleteRequest.builder().key(keyOf(key)).build() ).build() )
+                .collect(Collectors.toList());
+        long backoff = 50;
+        for (int attempt = 0; ; attempt++) {
+            BatchWriteItemResponse response = client.batchWriteItem(BatchWriteItemRequest.builder()
+                    .requestItems(Map.of(getCompletedTableName(), pending))
+                    .build());
+            List<WriteRequest> unprocessed = response.unprocessedItems().getOrDefault(getCompletedTableName(), List.of());
+            if (unprocessed.isEmpty()) {
+                return keys.size();
             }
+            if (attempt >= UNPROCESSED_RETRIES) {
+                log.warn("Gave up deleting {} old completed records after repeated throttling", unprocessed.size());
+                return keys.size() - unprocessed.size();
+            }
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, 5000);
+            pending = unprocessed;
         }
     }
 
-    private void deleteEntry(String key, String tableName) {
-        client.deleteItem(DeleteItemRequest.builder()
-                .tableName(tableName)
-                .key(Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build()))
-                .build());
+    protected static Map<String, AttributeValue> keyOf(String key) {
+        return Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(key).build());
     }
+
     /**
      * Exposed only for testing purposes
      * @return
@@ -0,0 +1,89 @@
+/******************************************************************
+ * File:        DynStatusCache.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of recent status lookups for {@link DynQueueManager}. Entries expire after
+ * a fixed time, which bounds how stale a status changed by another node can be, and the
+ * least recently used entries are evicted once the cache is full. The queue manager removes
+ * a request whenever it changes it itself.
+ * <p>
+ * A lookup which was in flight when its request was invalidated is not cached, since it
+ * may have read the state from before the change. Invalidations are tracked per request,
+ * for as many requests as the cache holds, so a change to one request doesn't stop
+ * lookups of others being cached.
+ * </p>
+ */
+public class DynStatusCache extends TTLCache<DynStatusCache.Cached> {
+
+    /**
+     * A cached lookup, the entry is null if the request was not found
+     */
+    public record Cached(DynQueueEntry entry, long fetched) implements TTLCache.Timed {}
+
+    protected final Map<String, Long> invalidated;
+    protected long sequence = 0;
+    protected long floor = 0;
+
+    /**
+     * @param maxSize maximum number of requests cached
+     * @param ttl time in ms for which a lookup is reused
+     */
+    public DynStatusCache(int maxSize, long ttl) {
+        super(maxSize, ttl);
+        this.invalidated = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > maxSize) {
+                    // No longer know which lookups this affects, so reject all that overlapped it
+                    floor = Math.max(floor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Marker to take before starting a lookup and pass to {@link #put}
+     */
+    public synchronized long stamp() {
+        return sequence;
+    }
+
+    /**
+     * Record a lookup, unless the request has been invalidated since the stamp was taken
+     * @param fetched time at which the lookup started
+     */
+    public synchronized void put(String key, DynQueueEntry entry, long stamp, long fetched) {
+        Long changed = invalidated.get(key);
+        if (stamp < floor || (changed != null && changed > stamp)) {
+            return;
+        }
+        cache.put(key, new Cached(entry, fetched));
+    }
+
+    @Override
+    public synchronized void invalidate(String key) {
+        invalidated.put(key, ++sequence);
+        cache.remove(key);
+    }
+
+    public synchronized void clear() {
+        floor = ++sequence;
+        invalidated.clear();
+        cache.clear();
+    }
+}
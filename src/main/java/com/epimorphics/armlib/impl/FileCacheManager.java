@@ -17,6 +17,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
 
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.CacheManager;
@@ -80,9 +85,25 @@ public class FileCacheManager extends BaseCacheManager implements CacheManager {
     }
     
     @Override
-    public boolean isReady(String requestKey) {
+    protected boolean checkReady(String requestKey) {
         return findFileFor(requestKey, defaultSuffix) != null;
     }
+    
+    @Override
+    protected void listResults(Consumer<String> names) {
+        for (String dir : new String[] {cacheDir + PERSISTENT_SEGMENT, cacheDir + TEMPORARY_SEGMENT}) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream( Paths.get(dir) )) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if ( ! name.endsWith(".hide") ) {
+                        names.accept(name);
+                    }
+                }
+            } catch (IOException e) {
+                throw new EpiException("Failed to list cache directory " + dir, e);
+            }
+        }
+    }
 
     @Override
     public InputStream readResult(String requestKey) {
@@ -113,28 +134,40 @@ public class FileCacheManager extends BaseCacheManager implements CacheManager {
 
     @Override
     protected void upload(BatchRequest request, String suffix, InputStream result) {
+        String fname = getFileName(request.getKey(), suffix, request.isSticky());
+        File temp = new File( fname + ".hide" );
+        boolean moved = false;
         try {
-            String fname = getFileName(request.getKey(), suffix, request.isSticky());
-            String tempfname = fname + ".hide";
-            OutputStream os = new FileOutputStream( tempfname );
-            FileUtil.copyResource(result, os);
-            os.close();
+            try (InputStream in = result; OutputStream os = new FileOutputStream( temp )) {
+                FileUtil.copyResource(in, os);
+            }
             // Now move the result into position so it appears atomically (well depending on file system)
-            new File(tempfname).renameTo( new File(fname) );
+            moved = temp.renameTo( new File(fname) );
+            if ( ! moved ) {
+                throw new EpiException("Failed to move upload into place as " + fname);
+            }
         } catch (IOException e) {
             throw new EpiException(e);
+        } finally {
+            if ( ! moved ) {
+                // Failed or aborted upload, don't leave the partial file behind
+                temp.delete();
+            }
         }
+        recordResult(request.getKey(), suffix);
     }
 
     @Override
     public void clear() {
         clear( cacheDir + PERSISTENT_SEGMENT );
         clear( cacheDir + TEMPORARY_SEGMENT );
+        resetKeyFilter();
     }
 
     @Override
     public void clearNonSticky() {
         clear( cacheDir + TEMPORARY_SEGMENT );
+        resetKeyFilter();
     }
     
     private void clear(String dir) {
@@ -0,0 +1,454 @@
+/******************************************************************
+ * File:        JournalQueueManager.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.appbase.core.Startup;
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+import com.epimorphics.armlib.impl.QueueJournal.Record;
+import com.epimorphics.armlib.impl.QueueJournal.RecordType;
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Persistent, non-distributed, implementation of queue manager for single node deployments.
+ * Has the same semantics as {@link MemQueueManager} but every submit, claim, abort, finish
+ * and fail is recorded in a memory-mapped append-only journal (see {@link QueueJournal})
+ * so the queue and the record of completed requests survive a restart.
+ * <p>
+ * Transitions are applied and journalled under a short lock so the journal order matches
+ * the order of state changes, the sync to disk happens outside the lock using group commit.
+ * Status lookups do not touch the journal at all. Listeners are notified once the lock
+ * has been released, so a slow listener does not hold up other transitions.
+ * </p>
+ * <p>
+ * The journal is compacted by rewriting it as a snapshot of the live state. This is done
+ * after recovery, whenever the journal fills up, and every <code>compactInterval</code>
+ * if at least half of the records in the journal describe superseded or expired state.
+ * </p>
+ * <p>
+ * Requests which were in progress when the node stopped were being run by workers
+ * on this node which no longer exist, so by default they are returned to the queue on recovery.
+ * </p>
+ */
+public class JournalQueueManager extends MemQueueManager implements Startup, Shutdown {
+    static Logger log = LoggerFactory.getLogger( JournalQueueManager.class );
+
+    public static final String JOURNAL_FILE = "queue.journal";
+
+    // Periodic compaction is skipped until there are at least this many superseded records
+    protected static final int MIN_DEAD_RECORDS = 256;
+
+    protected String journalDir;
+    protected int journalSize = 64 * 1024 * 1024;
+    protected boolean syncWrites = true;
+    protected boolean requeueOnRecovery = true;
+    protected long compactInterval = 10 * 60 * 1000;
+
+    protected QueueJournal journal;
+    protected final ReentrantLock journalLock = new ReentrantLock();
+    protected boolean recovering = false;
+    protected int records = 0;          // records in the journal, guarded by journalLock
+    protected ScheduledExecutorService compactor;
+
+    // Events for transitions made under the journal lock, delivered once it is released. Guarded by journalLock.
+    protected final List<BatchEvent> deferred = new ArrayList<>();
+
+    /**
+     * Directory in which to keep the journal file
+     */
+    public void setJournalDir(String journalDir) {
+        this.journalDir = expandFileLocation(journalDir);
+    }
+
+    /**
+     * Initial size in bytes of the memory mapped journal, grows as needed at compaction
+     */
+    public void setJournalSize(int journalSize) {
+        this.journalSize = journalSize;
+    }
+
+    /**
+     * Set to false to skip the fsync of each transition and leave flushing to the OS.
+     * Faster but transitions made just before a host crash may be lost.
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * Set to false to leave requests which were in progress at shutdown marked as InProgress.
+     */
+    public void setRequeueOnRecovery(boolean requeueOnRecovery) {
+        this.requeueOnRecovery = requeueOnRecovery;
+    }
+
+    /**
+     * Interval in ms between checks for whether the journal needs compacting, 0 to only
+     * compact on startup and when the journal is full
+     */
+    public void setCompactInterval(long compactInterval) {
+        this.compactInterval = compactInterval;
+    }
+
+    @Override
+    public void startup(App app) {
+        if (journalDir == null) {
+            throw new EpiException("No journal directory configured for queue manager");
+        }
+        FileUtil.ensureDir(journalDir);
+        journal = new QueueJournal(new File(journalDir, JOURNAL_FILE), journalSize, syncWrites);
+        journalLock.lock();
+        recovering = true;
+        try {
+            journal.open( this::replay );
+            if (requeueOnRecovery) {
+                for (QueueEntry entry : queue.entries()) {
+                    if (entry.getStatusFlag() == StatusFlag.InProgress) {
+                        log.info("Returning interrupted request to queue: {}", entry.getRequestKey());
+                        super.abortRequest( entry.getRequestKey() );
+                    }
+                }
+            }
+            compact();
+        } finally {
+            recovering = false;
+            unlock();
+        }
+        log.info("Recovered queue with {} entries, {} completed", queue.size(), completed.size());
+        if (compactInterval > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-journal-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compactIfGrown, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+        }
+        // Only start any sweeper once the journal is open
+        super.startup(app);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public BatchStatus submit(BatchRequest request) {
+        long ticket;
+        BatchStatus status;
+        journalLock.lock();
+        try {
+            checkOpen();
+            QueueEntry before = index.get(request.getKey());
+            status = super.submit(request);
+            if (index.get(request.getKey()) == before) {
+                // Existing request, nothing changed
+                return status;
+            }
+            ticket = append( Record.submit(request) );
+        } finally {
+            unlock();
+        }
+        journal.awaitDurable(ticket);
+        return status;
+    }
+
+    @Override
+    public BatchStatus resubmit(BatchRequest request) {
+        long ticket;
+        BatchStatus status;
+        journalLock.lock();
+        try {
+            checkOpen();
+            status = super.resubmit(request);
+            ticket = append( Record.submit(request) );
+        } finally {
+            unlock();
+        }
+        journal.awaitDurable(ticket);
+        return status;
+    }
+
+    /**
+     * A batch of claims shares a single sync
+     */
+    @Override
+    protected List<BatchRequest> claimAvailable(int max) {
+        long ticket = 0;
+        List<BatchRequest> claimed;
+        journalLock.lock();
+        try {
+            checkOpen();
+            claimed = super.claimAvailable(max);
+            for (BatchRequest next : claimed) {
+                long started = index.get( next.getKey() ).getStatus().getStarted().orElse( System.currentTimeMillis() );
+                ticket = Math.max(ticket, append( new Record(RecordType.Claim, started, next.getKey(), null) ));
+            }
+        } finally {
+            unlock();
+        }
+        journal.awaitDurable(ticket);
+        return claimed;
+    }
+
+    @Override
+    public void finishRequest(String key) {
+        transition(RecordType.Finish, key);
+    }
+
+    @Override
+    public void abortRequest(String key) {
+        transition(RecordType.Abort, key);
+    }
+
+    @Override
+    public void failRequest(String key) {
+        transition(RecordType.Fail, key);
+    }
+
+    @Override
+    public void removeOldCompletedRequests(long cutoff) {
+        long ticket;
+        journalLock.lock();
+        try {
+            checkOpen();
+            super.removeOldCompletedRequests(cutoff);
+            ticket = append( new Record(RecordType.Expire, cutoff, "", null) );
+        } finally {
+            unlock();
+        }
+        journal.awaitDurable(ticket);
+    }
+
+    /**
+     * Rewrite the journal as a snapshot of the current state. Called automatically
+     * when the journal fills up and every <code>compactInterval</code> once it has grown,
+     * but may also be called directly.
+     */
+    public void compact() {
+        journalLock.lock();
+        try {
+            checkOpen();
+            List<Record> snapshot = new ArrayList<>();
+            for (QueueEntry entry : completed.entries()) {
+                snapshot.add( Record.submit(entry.getRequest()) );
+                RecordType type = entry.getStatusFlag() == StatusFlag.Failed ? RecordType.Fail : RecordType.Finish;
+                snapshot.add( new Record(type, entry.getFinished(), entry.getRequestKey(), null) );
+            }
+            for (QueueEntry entry : queue.entries()) {
+                snapshot.add( Record.submit(entry.getRequest()) );
+                BatchStatus status = entry.getStatus();
+                boolean inProgress = status.getStatus() == StatusFlag.InProgress;
+                // Replaying earlier claims as claim/abort pairs preserves the attempt count
+                int earlier = inProgress ? entry.getAttempts() - 1 : entry.getAttempts();
+                for (int i = 0; i < earlier; i++) {
+                    snapshot.add( new Record(RecordType.Claim, 0, entry.getRequestKey(), null) );
+                    snapshot.add( new Record(RecordType.Abort, 0, entry.getRequestKey(), null) );
+                }
+                if (inProgress) {
+                    snapshot.add( new Record(RecordType.Claim, status.getStarted().orElse(0L), entry.getRequestKey(), null) );
+                }
+            }
+            journal.rewrite(snapshot);
+            records = snapshot.size();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Compact the journal if at least half of its records are dead. A completed request
+     * takes two records in a snapshot and a queued one at least one, so anything beyond
+     * that describes superseded or expired state.
+     */
+    protected void compactIfGrown() {
+        try {
+            journalLock.lock();
+            try {
+                int dead = records - (2 * completed.size() + queue.size());
+                if (journal.isOpen() && dead >= MIN_DEAD_RECORDS && dead >= records / 2) {
+                    log.debug("Compacting queue journal, {} of {} records are dead", dead, records);
+                    compact();
+                }
+            } finally {
+                unlock();
+            }
+        } catch (Exception e) {
+            log.error("Failed to compact queue journal", e);
+        }
+    }
+
+    /**
+     * Leases are not journalled, a recovered in-progress request gets a fresh lease
+     * from its original claim time. Expired leases are journalled as the equivalent
+     * abort or fail.
+     */
+    @Override
+    public int requeueExpiredLeases() {
+        long ticket = 0;
+        List<QueueEntry> reaped;
+        journalLock.lock();
+        try {
+            checkOpen();
+            long now = System.currentTimeMillis();
+            reaped = reapExpiredLeases(now);
+            for (QueueEntry entry : reaped) {
+                RecordType type = entry.getStatusFlag() == StatusFlag.Failed ? RecordType.Fail : RecordType.Abort;
+                ticket = Math.max(ticket, append( new Record(type, now, entry.getRequestKey(), null) ));
+            }
+        } finally {
+            unlock();
+        }
+        journal.awaitDurable(ticket);
+        return reaped.size();
+    }
+
+    /**
+     * Transitions replayed during recovery are not new so listeners aren't told about them.
+     * Events are created while the journal lock is held, so they capture the state of the
+     * transition, but delivered by {@link #unlock()}.
+     */
+    @Override
+    protected void publish(EventType type, QueueEntry entry) {
+        if (recovering || ! events.hasListeners()) {
+            return;
+        }
+        if (journalLock.isHeldByCurrentThread()) {
+            deferred.add( new BatchEvent(type, entry.getStatus()) );
+        } else {
+            super.publish(type, entry);
+        }
+    }
+
+    /**
+     * Release the journal lock and then deliver any events for the transitions made under it
+     */
+    protected void unlock() {
+        List<BatchEvent> toPublish = null;
+        if (journalLock.getHoldCount() == 1 && ! deferred.isEmpty()) {
+            toPublish = new ArrayList<>(deferred);
+            deferred.clear();
+        }
+        journalLock.unlock();
+        if (toPublish != null) {
+            for (BatchEvent event : toPublish) {
+                events.publish(event);
+            }
+        }
+    }
+
+    protected void transition(RecordType type, String key) {
+        long ticket;
+        journalLock.lock();
+        try {
+            checkOpen();
+            QueueEntry entry = index.get(key);
+            StatusFlag before = entry == null ? null : entry.getStatusFlag();
+            long now = System.currentTimeMillis();
+            switch (type) {
+            case Finish: finish(key, StatusFlag.Completed, now); break;
+            case Abort:  super.abortRequest(key); break;
+            case Fail:   finish(key, StatusFlag.Failed, now); break;
+            default: throw new IllegalArgumentException("Not a simple transition: " + type);
+            }
+            if (entry == null || entry.getStatusFlag() == before) {
+                // Lost or no-op transition, nothing to record
+                return;
+            }
+            ticket = append( new Record(type, now, key, null) );
+        } finally {
+            unlock();
+        }
+        journal.awaitDurable(ticket);
+    }
+
+    /**
+     * Append to the journal, compacting it if it is full. Must hold the journal lock.
+     */
+    protected long append(Record record) {
+        long ticket = journal.append(record);
+        if (ticket < 0) {
+            // The transition has already been applied so the snapshot includes it, and is already on disk
+            compact();
+            return 0;
+        }
+        records++;
+        return ticket;
+    }
+
+    protected void checkOpen() {
+        if (journal == null || ! journal.isOpen()) {
+            throw new EpiException("Queue journal not open, startup not called or already shut down");
+        }
+    }
+
+    protected void replay(Record record) {
+        switch (record.type()) {
+        case Submit:
+            super.resubmit( record.request() );
+            break;
+
+        case Claim:
+            QueueEntry entry = index.get( record.key() );
+            if (entry != null && entry.claim( record.time(), leaseExpiry(record.time()) )) {
+                pending.remove(entry.getSequence(), entry);
+                if (leaseDuration > 0) {
+                    leased.add(entry);
+                }
+            }
+            break;
+
+        case Abort:
+            super.abortRequest( record.key() );
+            break;
+
+        case Finish:
+            finish( record.key(), StatusFlag.Completed, record.time() );
+            break;
+
+        case Fail:
+            finish( record.key(), StatusFlag.Failed, record.time() );
+            break;
+
+        case Expire:
+            super.removeOldCompletedRequests( record.time() );
+            break;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/******************************************************************
+ * File:        KeyFilter.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over result names, used by {@link BaseCacheManager} to answer that a result
+ * is definitely not in the cache without checking. Sized from the expected number of
+ * names and the acceptable false positive rate, for example two million names at 1%
+ * take about 2.4MB. Names may be added concurrently with lookups.
+ */
+public class KeyFilter {
+    protected final AtomicLongArray bits;
+    protected final long size;
+    protected final int hashes;
+
+    /**
+     * @param expected number of names the filter should hold
+     * @param falsePositiveRate fraction of lookups of absent names which may be wrongly reported present
+     */
+    public KeyFilter(long expected, double falsePositiveRate) {
+        long n = Math.max(1, expected);
+        long m = (long) Math.ceil( -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)) );
+        int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.size = (long) words * 64;
+        this.hashes = Math.max(1, (int) Math.round( (double) size / n * Math.log(2) ));
+    }
+
+    public void add(String name) {
+        long h = hash(name);
+        long h1 = h;
+        long h2 = (h >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, size);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long current = bits.get(word);
+            while ((current & mask) == 0 && ! bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * Return false if the name has definitely not been added, true if it might have been
+     */
+    public boolean mightContain(String name) {
+        long h = hash(name);
+        long h1 = h;
+        long h2 = (h >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, size);
+            if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Size of the filter in bytes
+     */
+    public long getSizeInBytes() {
+        return size / 8;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the name with a final mix to spread the bits
+     */
+    protected static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -11,64 +11,227 @@ package com.epimorphics.armlib.impl;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.appbase.core.Startup;
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchListener;
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.BatchStatus;
 import com.epimorphics.armlib.BatchStatus.StatusFlag;
 import com.epimorphics.armlib.QueueManager;
+import com.epimorphics.armlib.QueueStatistics;
 
 /**
  * Non-persistent, non-distributed, implementation of queue manager. Only 
  * useful for test/development.
+ * <p>
+ * Safe for concurrent use without a global lock. Status lookups are plain reads
+ * of a concurrent index and state transitions are made by compare-and-set on
+ * the entry, so a pending request can only be claimed by one caller.
+ * </p>
+ * <p>
+ * Pending entries are held in a separate sequence-ordered map which acts as the
+ * claim cursor, so workers never walk past in-progress entries. The full queue
+ * is an {@link OrderedQueue} which answers position and ETA queries in O(log n).
+ * </p>
+ * <p>
+ * Completed and failed entries are kept in a {@link CompletedIndex} so old records can
+ * be expired cheaply. If <code>completedRetention</code> is configured then a background
+ * sweeper removes records older than that every <code>sweepInterval</code>.
+ * </p>
+ * <p>
+ * If <code>leaseDuration</code> is configured then each claim holds a lease which the worker
+ * must renew with {@link #renewLease(String)}. Requests whose lease has expired, because the
+ * worker died or hung, are returned to the queue every <code>leaseCheckInterval</code>, or
+ * failed once they have been claimed <code>maxAttempts</code> times.
+ * </p>
+ * <p>
+ * Listeners are notified of each transition by the thread which makes it.
+ * </p>
  */
-public class MemQueueManager extends ComponentBase implements QueueManager {
+public class MemQueueManager extends ComponentBase implements QueueManager, Startup, Shutdown {
     static Logger log = LoggerFactory.getLogger( MemQueueManager.class );
     
-    protected LinkedList<QueueEntry> queue = new LinkedList<>();
-    protected List<QueueEntry> completed = new LinkedList<>();
-    protected Map<String, QueueEntry> index = new HashMap<>();
+    protected OrderedQueue queue = new OrderedQueue();
+    protected ConcurrentSkipListMap<Long, QueueEntry> pending = new ConcurrentSkipListMap<>();
+    protected AtomicLong sequence = new AtomicLong();
+    protected CompletedIndex completed = new CompletedIndex(DEFAULT_BUCKET_WIDTH);
+    protected ConcurrentHashMap<String, QueueEntry> index = new ConcurrentHashMap<>();
+    protected ConcurrentHashMap<String, AtomicInteger> queuedByURI = new ConcurrentHashMap<>();
     protected long checkInterval = 100;
     
+    public static final long DEFAULT_BUCKET_WIDTH = 60 * 1000;
+    protected long completedRetention = 0;
+    protected long sweepInterval = 10 * 60 * 1000;
+    protected ScheduledExecutorService sweeper;
+    
+    protected long leaseDuration = 0;
+    protected long leaseCheckInterval = 30 * 1000;
+    protected int maxAttempts = 0;
+    protected Set<QueueEntry> leased = ConcurrentHashMap.newKeySet();
+    protected BatchEventBus events = new BatchEventBus();
+    
+    // Only used to park idle workers, never held while changing queue state
+    protected final ReentrantLock waitLock = new ReentrantLock();
+    protected final Condition available = waitLock.newCondition();
+    protected final AtomicInteger waiters = new AtomicInteger();
+    protected final AtomicLong signals = new AtomicLong();
+    
+    /**
+     * Retained for configuration compatibility. Workers waiting in
+     * {@link #nextRequest(long)} are now woken as soon as work arrives
+     * so there is no polling interval.
+     */
     public void setCheckInterval(long checkInterval) {
         this.checkInterval = checkInterval;
     }
     
+    /**
+     * Time in ms for which records of completed or failed requests are kept.
+     * If set then old records are removed in the background, default is 0 (keep forever).
+     */
+    public void setCompletedRetention(long completedRetention) {
+        this.completedRetention = completedRetention;
+    }
+    
+    /**
+     * Interval in ms between background sweeps for old completed records
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+    
+    /**
+     * Granularity in ms of the time buckets used to index completed requests. Only
+     * effective if set before any requests are completed.
+     */
+    public void setCompletedBucketWidth(long bucketWidth) {
+        this.completed = new CompletedIndex(bucketWidth);
+    }
+    
+    /**
+     * Time in ms for which a claim on a request lasts unless renewed by the worker.
+     * Default is 0, claims never expire.
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+    
+    /**
+     * Interval in ms between background checks for expired leases
+     */
+    public void setLeaseCheckInterval(long leaseCheckInterval) {
+        this.leaseCheckInterval = leaseCheckInterval;
+    }
+    
+    /**
+     * Maximum number of times a request may be claimed. A request whose lease expires
+     * on its last attempt is failed rather than requeued. Default is 0, no limit.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+    
     @Override
-    public synchronized BatchStatus submit(BatchRequest request) {
-        QueueEntry entry = index.get(request.getKey());
-        if (entry == null || entry.getStatusFlag() == StatusFlag.Failed) {
-            entry = new QueueEntry(request);
-            index.put(request.getKey(), entry);
-            queue.add(entry);
+    public void startup(App app) {
+        super.startup(app);
+        if (completedRetention > 0 || leaseDuration > 0) {
+            sweeper = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-queue-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if (completedRetention > 0) {
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        }
+        if (leaseDuration > 0) {
+            sweeper.scheduleWithFixedDelay(this::reap, leaseCheckInterval, leaseCheckInterval, TimeUnit.MILLISECONDS);
         }
-        return entry.getStatus();
     }
-
     
     @Override
-    public synchronized BatchStatus resubmit(BatchRequest request) {
-        QueueEntry entry = index.get(request.getKey());
-        if (entry != null) {
-            // Clear out any old copy
-            queue.remove(entry);
-            completed.remove(entry);
-            index.remove(request.getKey());
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
         }
-        entry = new QueueEntry(request);
-        index.put(request.getKey(), entry);
-        queue.add(entry);
+    }
+    
+    protected void sweep() {
+        try {
+            removeOldCompletedRequests( System.currentTimeMillis() - completedRetention );
+        } catch (Exception e) {
+            log.error("Failed to remove old completed requests", e);
+        }
+    }
+    
+    protected void reap() {
+        try {
+            requeueExpiredLeases();
+        } catch (Exception e) {
+            log.error("Failed to requeue expired leases", e);
+        }
+    }
+    
+    @Override
+    public BatchStatus submit(BatchRequest request) {
+        String key = request.getKey();
+        while (true) {
+            QueueEntry existing = index.get(key);
+            if (existing != null && existing.getStatusFlag() != StatusFlag.Failed) {
+                return existing.getStatus();
+            }
+            QueueEntry entry = new QueueEntry(request);
+            boolean installed = (existing == null) 
+                    ? index.putIfAbsent(key, entry) == null 
+                    : index.replace(key, existing, entry);
+            if (installed) {
+                if (existing != null) {
+                    completed.remove(existing);
+                }
+                enqueue(entry);
+                return entry.getStatus();
+            }
+            // Lost a race with another submit for the same key, look again
+        }
+    }
+
+    @Override
+    public BatchStatus resubmit(BatchRequest request) {
+        QueueEntry entry = new QueueEntry(request);
+        QueueEntry old = index.put(request.getKey(), entry);
+        if (old != null) {
+            // Clear out any old copy, retiring it so a stale reference can't be claimed
+            old.finish( StatusFlag.Failed );
+            dequeue(old);
+            completed.remove(old);
+        }
+        enqueue(entry);
         return entry.getStatus();
     }
     
     @Override
-    public synchronized BatchStatus getStatus(String requestKey) {
+    public BatchStatus getStatus(String requestKey) {
         QueueEntry entry = index.get(requestKey);
         if (entry != null) {
             return entry.getStatus();
@@ -78,16 +241,43 @@ public class MemQueueManager extends ComponentBase implements QueueManager {
     }
 
     @Override
-    public synchronized List<BatchStatus> getQueue() {
-        List<BatchStatus> state = new ArrayList<>( queue.size() );
-        for (QueueEntry entry : queue) {
+    public List<BatchStatus> getQueue() {
+        List<QueueEntry> entries = queue.entries();
+        List<BatchStatus> state = new ArrayList<>( entries.size() );
+        for (QueueEntry entry : entries) {
             state.add( entry.getStatus() );
         }
         return state;
     }
 
     @Override
-    public synchronized BatchRequest findRequest(String key) {
+    public QueueStatistics getQueueStatistics() {
+        Map<String, Integer> byURI = new HashMap<>();
+        queuedByURI.forEach( (uri, count) -> {
+            if (count.get() > 0) byURI.put(uri, count.get());
+        });
+        return new QueueStatistics(queue.size(), queue.totalEstimatedTime(), byURI);
+    }
+
+    @Override
+    public BatchStatus getFullStatus(String requestKey) {
+        QueueEntry entry = index.get(requestKey);
+        if (entry == null) {
+            return new BatchStatus(requestKey, StatusFlag.Unknown);
+        }
+        BatchStatus status = entry.getStatus();
+        if (status.getStatus() == StatusFlag.Pending) {
+            OrderedQueue.Position position = queue.positionOf(entry);
+            if (position != null) {
+                status.setPositionInQueue( position.position() );
+                status.setEta( position.eta() );
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public BatchRequest findRequest(String key) {
         QueueEntry entry = index.get(key);
         if (entry == null) {
             return null;
@@ -98,73 +288,220 @@ public class MemQueueManager extends ComponentBase implements QueueManager {
 
     @Override
     public BatchRequest nextRequest(long timeout) throws InterruptedException {
-        long count = 0;
-        BatchRequest next = nextRequest();
-        if (next != null) return next;
+        List<BatchRequest> next = nextRequests(1, timeout);
+        return next.isEmpty() ? null : next.get(0);
+    }
+
+    /**
+     * Parks the calling thread rather than polling. Each transition which makes
+     * a request available (submit, resubmit, abort) wakes one waiting worker.
+     */
+    @Override
+    public List<BatchRequest> nextRequests(int max, long timeout) throws InterruptedException {
+        List<BatchRequest> next = claimAvailable(max);
+        if ( ! next.isEmpty() ) return next;
         
-        while (count < timeout) {
-            long sleep = Math.min(checkInterval, timeout - count);
-            Thread.sleep( sleep );
-            count += sleep;
-            
-            next = nextRequest();
-            if (next != null) return next;
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        // Register as a waiter before rescanning so a concurrent submit can't be missed
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                long seen = signals.get();
+                next = claimAvailable(max);
+                if ( ! next.isEmpty() || remaining <= 0) {
+                    return next;
+                }
+                waitLock.lock();
+                try {
+                    // Only park if nothing has been made available since the scan started
+                    if (signals.get() == seen) {
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } finally {
+                    waitLock.unlock();
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
         }
-        return null;
     }
 
     @Override
-    public synchronized BatchRequest nextRequest() {
-        for (QueueEntry entry : queue) {
-            if (entry.status == StatusFlag.Pending) {
-                entry.setStarted();
-                return entry.getRequest();
+    public BatchRequest nextRequest() {
+        List<BatchRequest> next = claimAvailable(1);
+        return next.isEmpty() ? null : next.get(0);
+    }
+    
+    /**
+     * Claim up to max of the requests which are waiting, in queue order, without blocking
+     */
+    protected List<BatchRequest> claimAvailable(int max) {
+        List<BatchRequest> claimed = new ArrayList<>( Math.min(max, 16) );
+        Map.Entry<Long, QueueEntry> next;
+        while (claimed.size() < max && (next = pending.pollFirstEntry()) != null) {
+            // Entries which have been finished or retired since being queued are just dropped
+            QueueEntry entry = next.getValue();
+            long now = System.currentTimeMillis();
+            if (entry.claim(now, leaseExpiry(now))) {
+                if (leaseDuration > 0) {
+                    leased.add(entry);
+                }
+                claimed.add( entry.getRequest() );
+                publish(EventType.Started, entry);
             }
         }
-        return null;
+        return claimed;
     }
     
     @Override
-    public synchronized void finishRequest(String key) {
-        QueueEntry entry = getEntry(key);
+    public boolean renewLease(String key) {
+        QueueEntry entry = index.get(key);
         if (entry == null) {
-            log.error("Request has been lost, can't mark as finished: " + key);
-        } else {
-            entry.setStatus( StatusFlag.Completed );
-            queue.remove(entry);
-            completed.add(entry);
+            return false;
+        }
+        if (leaseDuration > 0) {
+            return entry.renew( leaseExpiry(System.currentTimeMillis()) );
         }
+        return entry.getStatusFlag() == StatusFlag.InProgress;
+    }
+    
+    @Override
+    public int requeueExpiredLeases() {
+        return reapExpiredLeases( System.currentTimeMillis() ).size();
+    }
+    
+    /**
+     * Return entries whose lease expired before the given time to the queue, or fail them 
+     * if they have run out of attempts. Returns the affected entries, whose state shows which
+     * was done.
+     */
+    protected List<QueueEntry> reapExpiredLeases(long now) {
+        List<QueueEntry> reaped = new ArrayList<>();
+        for (QueueEntry entry : leased) {
+            if (entry.releaseExpired(now)) {
+                leased.remove(entry);
+                reaped.add(entry);
+                if (maxAttempts > 0 && entry.getAttempts() >= maxAttempts) {
+                    log.warn("Lease expired on final attempt, failing request: {}", entry.getRequestKey());
+                    if (entry.finish(StatusFlag.Failed, now)) {
+                        dequeue(entry);
+                        completed.add(entry);
+                        publish(EventType.Failed, entry);
+                    }
+                } else {
+                    log.warn("Lease expired, returning request to queue: {}", entry.getRequestKey());
+                    pending.put(entry.getSequence(), entry);
+                    signalAvailable();
+                    publish(EventType.Requeued, entry);
+                }
+            } else if (entry.getStatusFlag() != StatusFlag.InProgress) {
+                leased.remove(entry);
+            }
+        }
+        return reaped;
+    }
+    
+    protected long leaseExpiry(long claimedAt) {
+        return leaseDuration > 0 ? claimedAt + leaseDuration : 0;
+    }
+    
+    @Override
+    public void finishRequest(String key) {
+        finish(key, StatusFlag.Completed, System.currentTimeMillis());
     }
 
     @Override
-    public synchronized void abortRequest(String key) {
+    public void abortRequest(String key) {
         QueueEntry entry = getEntry(key);
         if (entry == null) {
             log.error("Request has been lost, can't abort: " + key);
-        } else {
-            entry.setStatus( StatusFlag.Pending );
+        } else if (entry.release()) {
+            leased.remove(entry);
+            // Goes back to its original position in the pending order
+            pending.put(entry.getSequence(), entry);
+            signalAvailable();
+            publish(EventType.Requeued, entry);
         }
     }
 
     @Override
-    public synchronized void failRequest(String key) {
+    public void failRequest(String key) {
+        finish(key, StatusFlag.Failed, System.currentTimeMillis());
+    }
+    
+    protected void finish(String key, StatusFlag status, long finishedAt) {
         QueueEntry entry = getEntry(key);
         if (entry == null) {
-            log.error("Request has been lost, can't mark as failed: " + key);
-        } else {
-            entry.setStatus( StatusFlag.Failed );
-            queue.remove(entry);
+            log.error("Request has been lost, can't mark as {}: {}", status, key);
+        } else if (entry.finish(status, finishedAt)) {
+            dequeue(entry);
             completed.add(entry);
+            publish(status == StatusFlag.Completed ? EventType.Completed : EventType.Failed, entry);
         }
     }
 
     @Override
-    public void removeOldCompletedRequests(long age) {
-        // Ignore, this implementation is only relevant in tests setups
+    public void reportProgress(String key, double progress) {
+        QueueEntry entry = index.get(key);
+        if (entry != null && entry.getStatusFlag() == StatusFlag.InProgress && events.hasListeners()) {
+            BatchEvent event = new BatchEvent(EventType.Progress, entry.getStatus());
+            event.setProgress(progress);
+            events.publish(event);
+        }
     }
 
-    private QueueEntry getEntry(String key) {
+    @Override
+    public void addListener(BatchListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(BatchListener listener) {
+        events.removeListener(listener);
+    }
+
+    protected void publish(EventType type, QueueEntry entry) {
+        if (events.hasListeners()) {
+            events.publish( new BatchEvent(type, entry.getStatus()) );
+        }
+    }
+
+    @Override
+    public void removeOldCompletedRequests(long cutoff) {
+        int count = completed.expire(cutoff, entry -> index.remove(entry.getRequestKey(), entry));
+        log.debug("Cleanup removed {} old records of completed requests", count);
+    }
+
+    protected QueueEntry getEntry(String key) {
         return index.get(key);
     }
+    
+    protected void enqueue(QueueEntry entry) {
+        entry.setSequence( sequence.incrementAndGet() );
+        queuedByURI.computeIfAbsent(entry.getRequest().getRequestURI(), uri -> new AtomicInteger()).incrementAndGet();
+        queue.add(entry);
+        pending.put(entry.getSequence(), entry);
+        signalAvailable();
+        publish(EventType.Submitted, entry);
+    }
+    
+    protected void dequeue(QueueEntry entry) {
+        pending.remove(entry.getSequence(), entry);
+        leased.remove(entry);
+        if (queue.remove(entry)) {
+            queuedByURI.get( entry.getRequest().getRequestURI() ).decrementAndGet();
+        }
+    }
+    
+    protected void signalAvailable() {
+        signals.incrementAndGet();
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                available.signal();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
 }
-    
\ No newline at end of file
@@ -0,0 +1,178 @@
+/******************************************************************
+ * File:        OrderedQueue.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ * 
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Submission-ordered index of queue entries which tracks, for every subtree, 
+ * the number of entries and the sum of their estimated times. This allows
+ * the position of an entry, and the cumulative estimated time of everything
+ * up to and including it, to be found in O(log n) without listing the queue.
+ * <p>
+ * Implemented as a treap keyed on the entry sequence number. All operations
+ * are synchronized but short; readers that only need the status of an entry
+ * should use the concurrent index in the queue manager instead.
+ * </p>
+ */
+public class OrderedQueue {
+    
+    /**
+     * Position of an entry in the queue (1-based) together with the
+     * sum of the estimated times of all entries up to and including it
+     */
+    public record Position(int position, long eta) {}
+    
+    protected static final class Node {
+        final QueueEntry entry;
+        final long key;
+        final long weight;
+        final int priority;
+        Node left;
+        Node right;
+        int count;
+        long total;
+        
+        Node(QueueEntry entry) {
+            this.entry = entry;
+            this.key = entry.getSequence();
+            this.weight = entry.getRequest().getEstimatedTime();
+            this.priority = ThreadLocalRandom.current().nextInt();
+            update();
+        }
+        
+        void update() {
+            count = 1 + count(left) + count(right);
+            total = weight + total(left) + total(right);
+        }
+    }
+    
+    protected Node root;
+    
+    public synchronized void add(QueueEntry entry) {
+        Node[] parts = split(root, entry.getSequence());
+        root = merge( merge(parts[0], new Node(entry)), parts[1] );
+    }
+    
+    /**
+     * Remove the entry from the queue, returns false if it was not present
+     */
+    public synchronized boolean remove(QueueEntry entry) {
+        long key = entry.getSequence();
+        Node[] lower = split(root, key);
+        Node[] upper = split(lower[1], key + 1);
+        root = merge(lower[0], upper[1]);
+        return upper[0] != null;
+    }
+    
+    /**
+     * Return the position of the entry, or null if it is not in the queue
+     */
+    public synchronized Position positionOf(QueueEntry entry) {
+        long key = entry.getSequence();
+        int position = 0;
+        long eta = 0;
+        Node node = root;
+        while (node != null) {
+            if (key < node.key) {
+                node = node.left;
+            } else {
+                position += count(node.left) + 1;
+                eta += total(node.left) + node.weight;
+                if (key == node.key) {
+                    return new Position(position, eta);
+                }
+                node = node.right;
+            }
+        }
+        return null;
+    }
+    
+    public synchronized int size() {
+        return count(root);
+    }
+    
+    /**
+     * Sum of the estimated times of all entries in the queue
+     */
+    public synchronized long totalEstimatedTime() {
+        return total(root);
+    }
+    
+    /**
+     * Return a snapshot of the queue entries in submission order
+     */
+    public synchronized List<QueueEntry> entries() {
+        List<QueueEntry> result = new ArrayList<>( count(root) );
+        collect(root, result);
+        return result;
+    }
+    
+    public synchronized void clear() {
+        root = null;
+    }
+    
+    private static void collect(Node node, List<QueueEntry> result) {
+        while (node != null) {
+            collect(node.left, result);
+            result.add(node.entry);
+            node = node.right;
+        }
+    }
+    
+    /**
+     * Split into nodes with keys less than the given key and those greater or equal
+     */
+    private static Node[] split(Node node, long key) {
+        if (node == null) {
+            return new Node[] {null, null};
+        }
+        if (node.key < key) {
+            Node[] parts = split(node.right, key);
+            node.right = parts[0];
+            node.update();
+            parts[0] = node;
+            return parts;
+        } else {
+            Node[] parts = split(node.left, key);
+            node.left = parts[1];
+            node.update();
+            parts[1] = node;
+            return parts;
+        }
+    }
+    
+    /**
+     * Merge two treaps where all keys in the first are less than all keys in the second
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            b.update();
+            return b;
+        }
+    }
+    
+    private static int count(Node node) {
+        return node == null ? 0 : node.count;
+    }
+    
+    private static long total(Node node) {
+        return node == null ? 0 : node.total;
+    }
+}
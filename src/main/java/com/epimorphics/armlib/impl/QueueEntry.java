@@ -10,33 +10,174 @@
 package com.epimorphics.armlib.impl;
 
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.BatchStatus;
 import com.epimorphics.armlib.BatchStatus.StatusFlag;
 
 /**
- * Represents a queue batch request in simple implementations
+ * Represents a queue batch request in simple implementations.
+ * The processing state is held as a single immutable value so that transitions
+ * can be made with compare-and-set and status reads never need a lock.
  */
 public class QueueEntry {
     protected BatchRequest request;
     protected String requestKey;
-    protected BatchStatus.StatusFlag status;
-    protected Optional<Long> started = Optional.empty();
+    protected long sequence;
+    protected volatile long finished;
+    protected final AtomicReference<State> state;
+    
+    /**
+     * Snapshot of the processing state of an entry. An in-progress entry may hold a lease
+     * which expires at the given time (0 for no lease). Attempts counts the number of claims.
+     */
+    protected record State(StatusFlag status, Optional<Long> started, long leaseExpiry, int attempts) {
+        boolean isFinished() {
+            return status == StatusFlag.Completed || status == StatusFlag.Failed;
+        }
+        
+        State withStatus(StatusFlag newStatus) {
+            return new State(newStatus, started, leaseExpiry, attempts);
+        }
+    }
     
     public QueueEntry(BatchRequest request) {
         this.request = request;
         this.requestKey = request.getKey();
-        this.status = StatusFlag.Pending;
+        this.state = new AtomicReference<>( new State(StatusFlag.Pending, Optional.empty(), 0, 0) );
     }
     
     public void setStarted() {
-        status = StatusFlag.InProgress;
-        started = Optional.of( System.currentTimeMillis() );
+        state.updateAndGet( s -> new State(StatusFlag.InProgress, Optional.of( System.currentTimeMillis() ), 0, s.attempts() + 1) );
     }
     
     public void setStatus(StatusFlag status) {
-        this.status = status;
+        state.updateAndGet( s -> s.withStatus(status) );
+    }
+    
+    /**
+     * Atomically move this entry from Pending to InProgress. 
+     * Returns false if some other caller has already claimed it or it is no longer pending.
+     */
+    public boolean claim() {
+        return claim( System.currentTimeMillis(), 0 );
+    }
+    
+    /**
+     * Atomically move this entry from Pending to InProgress, recording the given start 
+     * time and lease expiry time (0 for no lease).
+     */
+    public boolean claim(long started, long leaseExpiry) {
+        State current = state.get();
+        while (current.status() == StatusFlag.Pending) {
+            State next = new State(StatusFlag.InProgress, Optional.of( started ), leaseExpiry, current.attempts() + 1);
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+            current = state.get();
+        }
+        return false;
+    }
+    
+    /**
+     * Extend the lease on an InProgress entry. Returns false if the entry is no longer in progress.
+     */
+    public boolean renew(long leaseExpiry) {
+        State current = state.get();
+        while (current.status() == StatusFlag.InProgress) {
+            State next = new State(StatusFlag.InProgress, current.started(), leaseExpiry, current.attempts());
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+            current = state.get();
+        }
+        return false;
+    }
+    
+    /**
+     * Atomically return an InProgress entry to Pending. 
+     * Returns false if the entry was not in progress.
+     */
+    public boolean release() {
+        State current = state.get();
+        while (current.status() == StatusFlag.InProgress) {
+            if (state.compareAndSet(current, new State(StatusFlag.Pending, Optional.empty(), 0, current.attempts()))) {
+                return true;
+            }
+            current = state.get();
+        }
+        return false;
+    }
+    
+    /**
+     * Atomically return an InProgress entry whose lease expired before the given time to Pending.
+     * Returns false if the entry was not in progress, has no lease or its lease is still live.
+     */
+    public boolean releaseExpired(long now) {
+        State current = state.get();
+        while (current.status() == StatusFlag.InProgress && current.leaseExpiry() != 0 && current.leaseExpiry() < now) {
+            if (state.compareAndSet(current, new State(StatusFlag.Pending, Optional.empty(), 0, current.attempts()))) {
+                return true;
+            }
+            current = state.get();
+        }
+        return false;
+    }
+    
+    /**
+     * Number of times the entry has been claimed
+     */
+    public int getAttempts() {
+        return state.get().attempts();
+    }
+    
+    /**
+     * Time at which the lease on an in-progress entry expires, 0 if there is no lease
+     */
+    public long getLeaseExpiry() {
+        return state.get().leaseExpiry();
+    }
+    
+    /**
+     * Atomically mark the entry as finished with the given (Completed or Failed) status.
+     * Returns false if the entry had already been finished.
+     */
+    public boolean finish(StatusFlag status) {
+        return finish(status, System.currentTimeMillis());
+    }
+    
+    /**
+     * Atomically mark the entry as finished with the given status, recording the given finish time.
+     */
+    public boolean finish(StatusFlag status, long finishedAt) {
+        State current = state.get();
+        while ( ! current.isFinished() ) {
+            if (state.compareAndSet(current, current.withStatus(status))) {
+                finished = finishedAt;
+                return true;
+            }
+            current = state.get();
+        }
+        return false;
+    }
+
+    /**
+     * Position in the overall submission order, assigned when the entry is queued
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Time at which the entry was completed or failed, only meaningful once finished
+     */
+    public long getFinished() {
+        return finished;
     }
 
     public BatchRequest getRequest() {
@@ -48,20 +189,21 @@ public class QueueEntry {
     }
 
     public BatchStatus getStatus() {
-        BatchStatus s = new BatchStatus(requestKey, status);
-        if (started.isPresent()) {
-            s.setStarted( started.get() );
+        State s = state.get();
+        BatchStatus status = new BatchStatus(requestKey, s.status());
+        if (s.started().isPresent()) {
+            status.setStarted( s.started().get() );
         }
-        s.setEstimatedTime( request.getEstimatedTime() );
-        return s;
+        status.setEstimatedTime( request.getEstimatedTime() );
+        return status;
     }
     
     public StatusFlag getStatusFlag() {
-        return status;
+        return state.get().status();
     }
     
     public boolean isFinished() {
-        return status == StatusFlag.Completed || status == StatusFlag.Failed;
+        return state.get().isFinished();
     }
     
 }
@@ -0,0 +1,357 @@
+/******************************************************************
+ * File:        QueueJournal.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.util.EpiException;
+
+/**
+ * Append-only, memory-mapped journal of queue transitions used by {@link JournalQueueManager}.
+ * <p>
+ * Each record is written as a length, a CRC32 and the payload. The file is preallocated
+ * so the end of the log is marked by a zero length, and a torn or corrupt record found on
+ * recovery ends the log at that point.
+ * </p>
+ * <p>
+ * Appends only copy into the mapped buffer. Durability is by group commit: a caller
+ * that needs its record on disk calls {@link #awaitDurable(long)} with the ticket
+ * returned by {@link #append(Record)}. The first such caller forces everything written
+ * so far and later callers whose records were covered by that force return without
+ * another sync.
+ * </p>
+ * <p>
+ * Appends and rewrites must be serialized by the caller so that the order of the
+ * records matches the order of the state changes they describe.
+ * </p>
+ */
+public class QueueJournal {
+    static Logger log = LoggerFactory.getLogger( QueueJournal.class );
+
+    protected static final int HEADER_SIZE = 8;
+
+    // Tickets combine the compaction epoch and the offset in the file so they increase monotonically
+    protected static final int EPOCH_SHIFT = 40;
+
+    // Only ever append new types, the ordinal is the stored form
+    public static enum RecordType {Submit, Claim, Abort, Finish, Fail, Expire};
+
+    /**
+     * A single journalled transition. The request is only present for Submit records.
+     * For Expire records the time is the expiry cutoff and the key is empty.
+     */
+    public record Record(RecordType type, long time, String key, BatchRequest request) {
+
+        public static Record submit(BatchRequest request) {
+            return new Record(RecordType.Submit, System.currentTimeMillis(), request.getKey(), request);
+        }
+
+        public static Record of(RecordType type, String key) {
+            return new Record(type, System.currentTimeMillis(), key, null);
+        }
+    }
+
+    protected final File file;
+    protected final int initialSize;
+    protected final boolean syncWrites;
+
+    protected FileChannel channel;
+    protected MappedByteBuffer buffer;
+    protected long epoch = 0;
+
+    // Group commit state, guarded by syncMonitor
+    protected final Object syncMonitor = new Object();
+    protected long durable = 0;
+    protected boolean syncing = false;
+
+    /**
+     * @param file the journal file
+     * @param initialSize initial size of the mapped region in bytes
+     * @param syncWrites if false then {@link #awaitDurable(long)} is a no-op and durability is left to the OS
+     */
+    public QueueJournal(File file, int initialSize, boolean syncWrites) {
+        this.file = file;
+        this.initialSize = initialSize;
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * Open the journal, passing each valid record found to the consumer in order.
+     * Any torn or corrupt tail is discarded. Bytes beyond a torn record are not cleared
+     * so callers should {@link #rewrite(List)} the journal once recovery is complete.
+     */
+    public synchronized void open(Consumer<Record> replay) {
+        try {
+            map( Math.max(initialSize, (int)Math.min(file.length(), Integer.MAX_VALUE)) );
+            int count = 0;
+            while (true) {
+                Record record = readNext();
+                if (record == null) break;
+                replay.accept(record);
+                count++;
+            }
+            log.info("Recovered {} journal records from {}", count, file);
+        } catch (IOException e) {
+            throw new EpiException("Failed to open queue journal " + file, e);
+        }
+        synchronized (syncMonitor) {
+            durable = ticket();
+        }
+    }
+
+    /**
+     * Append a record, returning a ticket which can be passed to {@link #awaitDurable(long)}.
+     * Returns -1 if there is not enough room, in which case the journal should be rewritten.
+     */
+    public synchronized long append(Record record) {
+        if (channel == null) {
+            throw new EpiException("Queue journal is closed: " + file);
+        }
+        byte[] payload = encode(record);
+        if (buffer.remaining() < payload.length + HEADER_SIZE + 4) {
+            return -1;
+        }
+        write(buffer, payload);
+        return ticket();
+    }
+
+    /**
+     * Replace the journal with the given records, normally a snapshot of the live state.
+     * The new journal is built in a separate file, forced and then atomically renamed into place,
+     * and the directory is forced so that the rename itself survives a crash.
+     */
+    public synchronized void rewrite(List<Record> records) {
+        try {
+            byte[][] payloads = new byte[records.size()][];
+            long size = 0;
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = encode(records.get(i));
+                size += payloads[i].length + HEADER_SIZE;
+            }
+            // Leave at least as much again free for new transitions
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(initialSize, size * 2 + 4));
+            File tmp = new File(file.getPath() + ".compact");
+            try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = out.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                for (byte[] payload : payloads) {
+                    write(map, payload);
+                }
+                map.force();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+
+            channel.close();
+            map(capacity);
+            buffer.position( (int) size );
+            epoch++;
+            synchronized (syncMonitor) {
+                // Everything up to here was forced as part of the rewrite
+                durable = ticket();
+                syncMonitor.notifyAll();
+            }
+            log.debug("Rewrote queue journal {} with {} records, {} bytes", file, records.size(), size);
+        } catch (IOException e) {
+            throw new EpiException("Failed to rewrite queue journal " + file, e);
+        }
+    }
+
+    /**
+     * Wait until the record with the given ticket has been forced to disk.
+     */
+    public void awaitDurable(long ticket) {
+        if ( ! syncWrites ) return;
+        while (true) {
+            synchronized (syncMonitor) {
+                if (durable >= ticket) {
+                    return;
+                }
+                if (syncing) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new EpiException("Interrupted waiting for queue journal sync", e);
+                    }
+                    continue;
+                }
+                syncing = true;
+            }
+            // Lead a sync covering every record written so far
+            long target;
+            MappedByteBuffer toForce;
+            synchronized (this) {
+                target = ticket();
+                toForce = buffer;
+            }
+            try {
+                toForce.force();
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    durable = Math.max(durable, target);
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of bytes of journal in use
+     */
+    public synchronized int size() {
+        return buffer.position();
+    }
+
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                buffer.force();
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            log.error("Problem closing queue journal " + file, e);
+        }
+    }
+
+    /**
+     * Force the directory entry for the journal to disk. Not all platforms allow
+     * a directory to be opened, in which case this is left to the OS.
+     */
+    protected void syncDirectory() {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Unable to sync journal directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    protected long ticket() {
+        return (epoch << EPOCH_SHIFT) + buffer.position();
+    }
+
+    protected void map(int capacity) throws IOException {
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    protected static void write(ByteBuffer target, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        target.putInt(payload.length);
+        target.putInt((int) crc.getValue());
+        target.put(payload);
+    }
+
+    protected Record readNext() {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) return null;
+        int length = buffer.getInt();
+        int expected = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            buffer.position(start);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != expected) {
+            log.warn("Discarding corrupt queue journal tail at offset {}", start);
+            buffer.position(start);
+            return null;
+        }
+        try {
+            return decode(payload);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Discarding unreadable queue journal tail at offset {}", start);
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    protected static byte[] encode(Record record) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte( record.type().ordinal() );
+            out.writeLong( record.time() );
+            writeString(out, record.key());
+            if (record.type() == RecordType.Submit) {
+                BatchRequest request = record.request();
+                writeString(out, request.getRequestURI());
+                writeString(out, request.getParameterString());
+                out.writeBoolean( request.isSticky() );
+                out.writeLong( request.getEstimatedTime() );
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new EpiException(e);
+        }
+    }
+
+    protected static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream(payload) );
+        RecordType type = RecordType.values()[ in.readByte() ];
+        long time = in.readLong();
+        String key = readString(in);
+        BatchRequest request = null;
+        if (type == RecordType.Submit) {
+            String requestURI = readString(in);
+            String parameters = readString(in);
+            boolean sticky = in.readBoolean();
+            request = new BatchRequest(requestURI, parameters, sticky);
+            request.setKey(key);
+            request.setEstimatedTime( in.readLong() );
+        }
+        return new Record(type, time, key, request);
+    }
+
+    // Request parameters can exceed the 64k limit of writeUTF
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[ in.readInt() ];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -10,44 +10,175 @@
 package com.epimorphics.armlib.impl;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.model.*;
 
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.CacheManager;
 import com.epimorphics.armlib.MediaTypes;
+import com.epimorphics.armlib.impl.S3LocationCache.Location;
 import com.epimorphics.util.EpiException;
-import com.epimorphics.util.FileUtil;
 import com.epimorphics.util.NameUtils;
 
+/**
+ * Cache of results in an S3 bucket.
+ * <p>
+ * Results written through a {@link com.epimorphics.armlib.Pipe} are streamed straight into
+ * a multipart upload. The stream is read into buffers of <code>partSize</code> bytes and up to
+ * <code>uploadConcurrency</code> parts are sent at once, so at most one more buffer than that
+ * is held in memory. A result smaller than one part is sent with a single put. If the producer 
+ * aborts the pipe, or a part fails, the multipart upload is aborted and nothing is cached.
+ * </p>
+ * <p>
+ * Result files of at least <code>multipartThreshold</code> bytes are also sent as a multipart
+ * upload, with up to <code>uploadConcurrency</code> parts in flight each read straight from 
+ * its slice of the file. The part size is raised if need be to keep within S3's limit on 
+ * the number of parts. A failed part is resent up to <code>partRetries</code> times 
+ * before the upload is abandoned.
+ * </p>
+ * <p>
+ * Where each result was found, or that it wasn't, is kept in a local {@link S3LocationCache}
+ * so that repeated status checks don't each make HEAD requests. Uploads from this node are
+ * recorded straight away. A result which was not found is only remembered for 
+ * <code>negativeCacheTTL</code>, results found for <code>locationCacheTTL</code>, which bounds
+ * how long a result removed by another node or by a bucket lifecycle rule can still appear ready.
+ * </p>
+ */
 public class S3CacheManager extends BaseCacheManager implements CacheManager {
     public static final String PERSISTENT_SEGMENT = "persistent/";
     public static final String TEMPORARY_SEGMENT = "cache/";
 
     protected String S3BaseURL = "https://s3-eu-west-1.amazonaws.com/";
-    protected String workArea = "/tmp";
     protected String bucket;
     protected String baseKey;
     protected Region region = Region.EU_WEST_1;
+    protected String endpoint;
+    protected int partSize = 8 * 1024 * 1024;
+    protected int uploadConcurrency = 4;
+    protected long multipartThreshold = 64 * 1024 * 1024;
+    protected int partRetries = 3;
+    protected int locationCacheSize = 10000;
+    protected long locationCacheTTL = 60 * 1000;
+    protected long negativeCacheTTL = 1000;
+    protected S3LocationCache locationCache = buildLocationCache();
     protected S3Client s3client;
     
     public S3CacheManager() {
-        s3client = S3Client.builder().region(region).build();
+        s3client = buildClient();
+    }
+    
+    protected S3Client buildClient() {
+        S3ClientBuilder builder = S3Client.builder().region(region);
+        if (endpoint != null) {
+            builder.endpointOverride( URI.create(endpoint) ).forcePathStyle(true);
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Use an S3-compatible service at this endpoint instead of AWS, mainly for testing
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+        s3client.close();
+        s3client = buildClient();
+    }
+    
+    /**
+     * Size in bytes of the parts in which streamed results are uploaded, at least 5MB, default is 8MB
+     */
+    public void setPartSize(int partSize) {
+        this.partSize = Math.max(partSize, S3MultipartUpload.MIN_PART_SIZE);
+    }
+    
+    /**
+     * Maximum number of parts of a result uploaded at once, default is 4
+     */
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = Math.max(1, uploadConcurrency);
+    }
+    
+    /**
+     * Size in bytes from which result files are sent as a multipart upload, default is 64MB
+     */
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+    
+    /**
+     * Maximum number of result locations cached, default is 10000
+     */
+    public void setLocationCacheSize(int locationCacheSize) {
+        this.locationCacheSize = locationCacheSize;
+        locationCache = buildLocationCache();
+    }
+    
+    /**
+     * Time in ms for which the location of a result is cached, default is 60s, 0 disables the cache
+     */
+    public void setLocationCacheTTL(long locationCacheTTL) {
+        this.locationCacheTTL = locationCacheTTL;
+        locationCache = buildLocationCache();
+    }
+    
+    /**
+     * Time in ms for which a result not being found is cached, default is 1s
+     */
+    public void setNegativeCacheTTL(long negativeCacheTTL) {
+        this.negativeCacheTTL = negativeCacheTTL;
+        locationCache = buildLocationCache();
+    }
+    
+    protected S3LocationCache buildLocationCache() {
+        return locationCacheTTL > 0 ? new S3LocationCache(locationCacheSize, locationCacheTTL, negativeCacheTTL) : null;
+    }
+    
+    /**
+     * Fraction of checks for a result answered from the location cache
+     */
+    public double getLocationCacheHitRatio() {
+        S3LocationCache cache = locationCache;
+        return cache == null ? 0 : cache.getHitRatio();
+    }
+    
+    public long getLocationCacheHits() {
+        S3LocationCache cache = locationCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+    
+    public long getLocationCacheMisses() {
+        S3LocationCache cache = locationCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+    
+    /**
+     * Number of times to resend a part of a multipart upload which fails, default is 3
+     */
+    public void setPartRetries(int partRetries) {
+        this.partRetries = partRetries;
     }
     
     public void setS3BaseURL(String s3BaseURL) {
@@ -62,8 +193,11 @@ public class S3CacheManager extends BaseCacheManager implements CacheManager {
         this.baseKey = NameUtils.ensureLastSlash(baseKey);
     }
     
+    /**
+     * No longer used, streamed results are uploaded without a local copy
+     */
+    @Deprecated
     public void setWorkArea(String workArea) {
-        this.workArea = workArea;
     }
 
     @Override
@@ -81,36 +215,81 @@ public class S3CacheManager extends BaseCacheManager implements CacheManager {
     }
 
     private String getS3Key(String requestKey, String suffix) {
-        String obj = getS3Key(requestKey, suffix, true);
-        if ( exists(obj) ) {
-            return obj;
+        return locate(requestKey, suffix).objectKey();
+    }
+    
+    /**
+     * Find where a result is, looking for a persistent copy then a temporary one,
+     * unless the location cache already knows
+     */
+    protected Location locate(String requestKey, String suffix) {
+        String name = requestKey + "." + suffix;
+        long now = System.currentTimeMillis();
+        S3LocationCache cache = locationCache;
+        if (cache != null) {
+            Location location = cache.get(name, now);
+            if (location != null) {
+                return location;
+            }
+        }
+        Location location = head(requestKey, suffix, true, now);
+        if (location == null) {
+            location = head(requestKey, suffix, false, now);
+        }
+        if (location == null) {
+            location = new Location(null, false, 0, null, now);
         }
-        obj = getS3Key(requestKey, suffix, false);
-        if (exists(obj)) {
-            return obj;
+        if (cache != null) {
+            cache.put(name, location);
         }
-        return null;
+        return location;
     }
     
     @Override
-    public boolean isReady(String requestKey) {
+    protected boolean checkReady(String requestKey) {
         return getS3Key(requestKey, defaultSuffix) != null;
     }
+    
+    @Override
+    protected void listResults(Consumer<String> names) {
+        for (String folder : new String[] {baseKey + PERSISTENT_SEGMENT, baseKey + TEMPORARY_SEGMENT}) {
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(folder)
+                    .build();
+            for (S3Object object : s3client.listObjectsV2Paginator(request).contents()) {
+                names.accept( object.key().substring(folder.length()) );
+            }
+        }
+    }
 
-    private boolean exists(String key) {
+    private Location head(String requestKey, String suffix, boolean sticky, long now) {
+        String key = getS3Key(requestKey, suffix, sticky);
         try {
-            s3client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key)
+            HeadObjectResponse response = s3client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key)
                     .build());
-            return true;
+            return new Location(key, sticky, response.contentLength(), response.eTag(), now);
         } catch (S3Exception e) {
             if (e.awsErrorDetails().sdkHttpResponse().statusCode() == 404) {
-                return false;
+                return null;
             } else {
                 throw new EpiException("Problem accessing S3 bucket", e);
             }
         }
     }
     
+    /**
+     * Record a result uploaded by this node in the location cache and key filter
+     */
+    protected void uploaded(BatchRequest request, String suffix, String objkey, long size, String etag) {
+        recordResult(request.getKey(), suffix);
+        S3LocationCache cache = locationCache;
+        if (cache != null) {
+            cache.put(request.getKey() + "." + suffix, 
+                    new Location(objkey, request.isSticky(), size, etag, System.currentTimeMillis()));
+        }
+    }
+    
     @Override
     public InputStream readResult(String requestKey) {
         return readResult(requestKey, defaultSuffix);
@@ -121,9 +300,17 @@ public class S3CacheManager extends BaseCacheManager implements CacheManager {
         // Brute force since it makes three s3 calls but this is not the main interface
         String objkey = getS3Key(requestKey, suffix);
         if (objkey != null) {
-            ResponseInputStream<GetObjectResponse> object = s3client.getObject(GetObjectRequest.builder().bucket(bucket).key(objkey)
-                    .build());
-            return object;
+            try {
+                ResponseInputStream<GetObjectResponse> object = s3client.getObject(GetObjectRequest.builder().bucket(bucket).key(objkey)
+                        .build());
+                return object;
+            } catch (NoSuchKeyException e) {
+                // Removed since its location was cached
+                if (locationCache != null) {
+                    locationCache.invalidate(requestKey + "." + suffix);
+                }
+                return null;
+            }
         } else {
             return null;
         }
@@ -138,46 +325,230 @@ public class S3CacheManager extends BaseCacheManager implements CacheManager {
         }
     }
 
+    /**
+     * Stream the result into S3 as it is produced. Parts are uploaded as soon as each buffer
+     * fills, reading stops while all the buffers are in flight.
+     */
     @Override
     protected void upload(BatchRequest request, String suffix, InputStream result) {
+        String objkey = getS3Key(request.getKey(), suffix, request.isSticky());
+        S3MultipartUpload upload = null;
         try {
-            File workDir = new File(workArea);
-            File tempFile = new File(workDir, request.getKey()+ "." + suffix);
-            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
-            FileUtil.copyResource(result, out);
-            out.close();
-            doUpload(request, suffix, tempFile);
-            tempFile.delete();
-        } catch (IOException e) {
-            throw new EpiException("Problem buffering results stream for upload");
+            byte[] buffer = new byte[partSize];
+            int length = readPart(result, buffer);
+            if (length < partSize) {
+                PutObjectResponse response = s3client.putObject(putRequest(objkey, suffix, length), 
+                        RequestBody.fromBytes( Arrays.copyOf(buffer, length) ));
+                uploaded(request, suffix, objkey, length, response.eTag());
+                return;
+            }
+            BufferPool pool = new BufferPool(partSize, uploadConcurrency + 1);
+            upload = new S3MultipartUpload(s3client, multipartRequest(objkey, suffix));
+            upload.setPartRetries(partRetries);
+            int partNumber = 1;
+            long total = 0;
+            while (length > 0) {
+                byte[] part = buffer;
+                int partLength = length;
+                total += length;
+                upload.uploadPart(partNumber++, partLength, () -> new ByteArrayInputStream(part, 0, partLength), () -> pool.release(part));
+                if (partLength < partSize) {
+                    break;
+                }
+                buffer = pool.acquire();
+                length = readPart(result, buffer);
+            }
+            CompleteMultipartUploadResponse response = upload.complete();
+            uploaded(request, suffix, objkey, total, response.eTag());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (upload != null) {
+                upload.abort();
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new EpiException("Failed to upload results stream for " + request.getKey(), e);
+        }
+    }
+    
+    /**
+     * Fill the buffer from the stream, returns less than a full buffer only at the end of the stream
+     */
+    protected static int readPart(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+    
+    /**
+     * Pool of part buffers, allocated as needed up to a limit after which
+     * a caller waits for one to be released
+     */
+    protected static class BufferPool {
+        protected final int size;
+        protected final int max;
+        protected final BlockingQueue<byte[]> free;
+        protected int allocated = 1;
+        
+        /**
+         * @param max maximum number of buffers including the one the caller started with
+         */
+        public BufferPool(int size, int max) {
+            this.size = size;
+            this.max = max;
+            this.free = new ArrayBlockingQueue<>(max);
+        }
+        
+        public byte[] acquire() throws InterruptedException {
+            byte[] buffer = free.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            synchronized (this) {
+                if (allocated < max) {
+                    allocated++;
+                    return new byte[size];
+                }
+            }
+            return free.take();
+        }
+        
+        public void release(byte[] buffer) {
+            free.offer(buffer);
         }
     }
     
     private void doUpload(BatchRequest request, String suffix, File result) throws IOException {
         String objkey = getS3Key(request.getKey(), suffix, request.isSticky());
-        HeadObjectResponse meta = HeadObjectResponse.builder()
-                .build();
+        long length = result.length();
+        String etag;
+        if (length >= multipartThreshold) {
+            etag = uploadParts(objkey, suffix, result);
+        } else {
+            try (InputStream stream = new BufferedInputStream( new FileInputStream(result) )) {
+                etag = s3client.putObject(putRequest(objkey, suffix, length), RequestBody.fromInputStream(stream, length)).eTag();
+            }
+        }
+        uploaded(request, suffix, objkey, length, etag);
+    }
+    
+    /**
+     * Upload a file as a multipart upload, each part read directly from its slice of the file.
+     * Returns the ETag of the new object.
+     */
+    protected String uploadParts(String objkey, String suffix, File result) throws IOException {
+        long length = result.length();
+        long size = Math.max(partSize, (length + S3MultipartUpload.MAX_PARTS - 1) / S3MultipartUpload.MAX_PARTS);
+        Semaphore slots = new Semaphore(uploadConcurrency);
+        try (FileChannel channel = FileChannel.open(result.toPath(), StandardOpenOption.READ)) {
+            S3MultipartUpload upload = new S3MultipartUpload(s3client, multipartRequest(objkey, suffix));
+            upload.setPartRetries(partRetries);
+            try {
+                int partNumber = 1;
+                for (long offset = 0; offset < length; offset += size) {
+                    long start = offset;
+                    long partLength = Math.min(size, length - offset);
+                    slots.acquire();
+                    upload.uploadPart(partNumber++, partLength, () -> new ChannelSlice(channel, start, partLength), slots::release);
+                }
+                return upload.complete().eTag();
+            } catch (InterruptedException | RuntimeException e) {
+                upload.abort();
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new EpiException("Failed to upload " + objkey, e);
+            }
+        }
+    }
+    
+    /**
+     * Stream over a section of a file, using positional reads so several
+     * can read from the same channel at once
+     */
+    protected static class ChannelSlice extends InputStream {
+        protected final FileChannel channel;
+        protected long position;
+        protected final long end;
+        
+        public ChannelSlice(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read( ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position );
+            if (n < 0) {
+                return -1;
+            }
+            position += n;
+            return n;
+        }
+        
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+    
+    protected PutObjectRequest putRequest(String objkey, String suffix, long length) {
+        PutObjectRequest.Builder requestBuilder = PutObjectRequest.builder().bucket(bucket).key(objkey).contentLength(length);
         String contentType = MediaTypes.getMediaTypeForExtension(suffix);
-        PutObjectRequest.Builder requestBuilder = PutObjectRequest.builder().bucket(bucket).key(objkey).contentLength(result.length());
         if (contentType != null) {
             requestBuilder = requestBuilder.contentType(contentType);
         }
         if (compress) {
             requestBuilder = requestBuilder.contentEncoding("gzip");
         }
-        InputStream stream = new BufferedInputStream( new FileInputStream(result) );
-        s3client.putObject(requestBuilder.build(), RequestBody.fromInputStream(stream, result.length()));
+        return requestBuilder.build();
+    }
+    
+    protected CreateMultipartUploadRequest multipartRequest(String objkey, String suffix) {
+        CreateMultipartUploadRequest.Builder requestBuilder = CreateMultipartUploadRequest.builder().bucket(bucket).key(objkey);
+        String contentType = MediaTypes.getMediaTypeForExtension(suffix);
+        if (contentType != null) {
+            requestBuilder = requestBuilder.contentType(contentType);
+        }
+        if (compress) {
+            requestBuilder = requestBuilder.contentEncoding("gzip");
+        }
+        return requestBuilder.build();
     }
 
     @Override
     public void clear() {
         clearFolder( baseKey + TEMPORARY_SEGMENT );
         clearFolder( baseKey + PERSISTENT_SEGMENT );
+        if (locationCache != null) {
+            locationCache.clear(true, System.currentTimeMillis());
+        }
+        resetKeyFilter();
     }
 
     @Override
     public void clearNonSticky() {
         clearFolder( baseKey + TEMPORARY_SEGMENT );
+        if (locationCache != null) {
+            locationCache.clear(false, System.currentTimeMillis());
+        }
+        resetKeyFilter();
     }
 
     private void clearFolder(String folder) {
@@ -0,0 +1,81 @@
+/******************************************************************
+ * File:        S3LocationCache.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+/**
+ * Bounded cache of where results are in S3, for {@link S3CacheManager}, so that repeated
+ * checks on a result don't each cost a HEAD request. Results found are kept for
+ * <code>ttl</code>, results not found only for the much shorter <code>negativeTTL</code>
+ * since they are expected to appear. Least recently used entries are evicted once the
+ * cache is full.
+ * <p>
+ * A lookup which started before the cache was last cleared is not recorded, since it
+ * may have found a result which the clear deleted.
+ * </p>
+ */
+public class S3LocationCache extends TTLCache<S3LocationCache.Location> {
+
+    /**
+     * Where a result was found, or a record that it was not found if objectKey is null
+     */
+    public record Location(String objectKey, boolean sticky, long size, String etag, long fetched) implements TTLCache.Timed {
+        public boolean isFound() {
+            return objectKey != null;
+        }
+    }
+
+    protected final long negativeTTL;
+    protected long clearedAll = Long.MIN_VALUE;
+    protected long clearedNonSticky = Long.MIN_VALUE;
+
+    /**
+     * @param maxSize maximum number of results cached
+     * @param ttl time in ms for which the location of a result is reused
+     * @param negativeTTL time in ms for which a result not being found is reused
+     */
+    public S3LocationCache(int maxSize, long ttl, long negativeTTL) {
+        super(maxSize, ttl);
+        this.negativeTTL = negativeTTL;
+    }
+
+    @Override
+    protected long ttlFor(Location location) {
+        return location.isFound() ? ttl : negativeTTL;
+    }
+
+    /**
+     * Record the location of a result, unless a more recent one has been recorded since
+     * the lookup started, such as by an upload, or the results have been cleared since then
+     */
+    public synchronized void put(String key, Location location) {
+        long fetched = location.fetched();
+        if (fetched <= clearedAll || ( ! location.sticky() && fetched <= clearedNonSticky )) {
+            return;
+        }
+        Location existing = cache.get(key);
+        if (existing == null || existing.fetched() <= fetched) {
+            cache.put(key, location);
+        }
+    }
+
+    /**
+     * Remove all entries, or if stickyToo is false all except those for sticky results
+     * @param now time by which the results were cleared, lookups started by then are not recorded
+     */
+    public synchronized void clear(boolean stickyToo, long now) {
+        if (stickyToo) {
+            clearedAll = Math.max(clearedAll, now);
+            cache.clear();
+        } else {
+            clearedNonSticky = Math.max(clearedNonSticky, now);
+            cache.values().removeIf( location -> ! location.sticky() );
+        }
+    }
+}
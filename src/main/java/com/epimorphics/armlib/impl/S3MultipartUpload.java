@@ -0,0 +1,190 @@
+/******************************************************************
+ * File:        S3MultipartUpload.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.util.EpiException;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.ContentStreamProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * A multipart upload to S3 whose parts are sent concurrently, each on its own virtual thread.
+ * The caller limits how many parts are in flight at once. If the upload fails it should be
+ * aborted so that S3 discards the parts already sent rather than keeping them (and charging
+ * for them) indefinitely.
+ * <p>
+ * A part which fails, after the SDK's own retries, is sent again up to <code>partRetries</code>
+ * times with a growing delay before the upload as a whole is treated as failed.
+ * </p>
+ */
+public class S3MultipartUpload {
+    static Logger log = LoggerFactory.getLogger( S3MultipartUpload.class );
+
+    /** Smallest part S3 allows, other than the last */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    
+    /** Most parts S3 allows in one upload */
+    public static final int MAX_PARTS = 10000;
+    
+    protected static final long RETRY_DELAY = 500;
+
+    protected final S3Client s3client;
+    protected final String bucket;
+    protected final String key;
+    protected final String uploadId;
+    protected final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    protected final List<Future<CompletedPart>> parts = new ArrayList<>();
+    protected volatile RuntimeException failure;
+    protected int partRetries = 0;
+
+    /**
+     * Start a multipart upload
+     */
+    public S3MultipartUpload(S3Client s3client, CreateMultipartUploadRequest request) {
+        this.s3client = s3client;
+        this.bucket = request.bucket();
+        this.key = request.key();
+        this.uploadId = s3client.createMultipartUpload(request).uploadId();
+    }
+
+    /**
+     * Number of times to resend a part which has failed, default is 0
+     */
+    public void setPartRetries(int partRetries) {
+        this.partRetries = partRetries;
+    }
+
+    /**
+     * Start sending a part in the background. The content may be requested more than once
+     * if the SDK retries. The onDone action is run once the part has been sent or has failed,
+     * so the caller can reuse its buffer. Fails straight away if an earlier part has failed.
+     * @param partNumber number of this part, from 1
+     */
+    public void uploadPart(int partNumber, long length, ContentStreamProvider content, Runnable onDone) {
+        checkFailure();
+        UploadPartRequest request = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength(length)
+                .build();
+        parts.add( executor.submit( () -> {
+            try {
+                UploadPartResponse response = sendPart(request, content, length);
+                return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                onDone.run();
+            }
+        }));
+    }
+
+    protected UploadPartResponse sendPart(UploadPartRequest request, ContentStreamProvider content, long length) 
+            throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return s3client.uploadPart(request, RequestBody.fromContentProvider(content, length, "application/octet-stream"));
+            } catch (SdkException e) {
+                if (attempt >= partRetries || ! isRetryable(e)) {
+                    throw e;
+                }
+                log.warn("Retrying part {} of {} after: {}", request.partNumber(), key, e.getMessage());
+                Thread.sleep( RETRY_DELAY << attempt );
+            }
+        }
+    }
+
+    /**
+     * Client errors, such as the upload having been aborted, won't be fixed by trying again
+     */
+    protected static boolean isRetryable(SdkException e) {
+        if (e instanceof S3Exception) {
+            return ((S3Exception) e).statusCode() >= 500;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for all the parts to be sent and then assemble them into the final object
+     */
+    public CompleteMultipartUploadResponse complete() throws InterruptedException {
+        List<CompletedPart> completed = new ArrayList<>( parts.size() );
+        try {
+            for (Future<CompletedPart> part : parts) {
+                completed.add( part.get() );
+            }
+        } catch (ExecutionException e) {
+            throw new EpiException("Failed to upload part of " + key, e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        completed.sort( Comparator.comparing(CompletedPart::partNumber) );
+        return s3client.completeMultipartUpload( CompleteMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload( CompletedMultipartUpload.builder().parts(completed).build() )
+                .build() );
+    }
+
+    /**
+     * Abandon the upload, waiting for any parts in flight so that none are left behind
+     */
+    public void abort() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            s3client.abortMultipartUpload( AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build() );
+        } catch (SdkException e) {
+            log.warn("Failed to abort multipart upload of " + key + ", parts may be left in the bucket", e);
+        }
+    }
+
+    protected void checkFailure() {
+        RuntimeException e = failure;
+        if (e != null) {
+            throw new EpiException("Failed to upload part of " + key, e);
+        }
+    }
+}
@@ -9,35 +9,167 @@
 
 package com.epimorphics.armlib.impl;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchListener;
 import com.epimorphics.armlib.BatchRequest;
 import com.epimorphics.armlib.BatchStatus;
 import com.epimorphics.armlib.BatchStatus.StatusFlag;
 import com.epimorphics.armlib.CacheManager;
 import com.epimorphics.armlib.QueueManager;
+import com.epimorphics.armlib.QueueStatistics;
 import com.epimorphics.armlib.RequestManager;
 import com.epimorphics.util.EpiException;
 
 /**
  * Standard implementation of request manager.
+ * <p>
+ * Supports optional admission control. If any of <code>maxPending</code>, <code>maxBacklog</code>
+ * or <code>maxPendingPerURI</code> is set then a submit which would add a new request to a queue
+ * that is already at that limit is not queued but returns a Rejected status with a retry-after hint.
+ * The limits are checked against a snapshot of the queue statistics which is refreshed at most
+ * every <code>statisticsInterval</code>, and updated in between with the requests admitted here,
+ * so that rejecting a request stays cheap however long the queue is. The limits are therefore
+ * approximate, requests finishing or submitted through other nodes are only seen on the next refresh.
+ * </p>
+ * <p>
+ * Callers waiting on {@link #awaitCompletion(String)} for the same request share a single watch.
+ * All watches are checked together every <code>watchInterval</code> using the cheap queue status,
+ * the cache is only checked once the queue reports the request as finished. If the queue 
+ * manager supports events then a watch is also checked as soon as its request finishes.
+ * </p>
+ * <p>
+ * Events from the queue manager are passed on to listeners registered here, with
+ * the result URL filled in for completed requests. They are delivered in order from a 
+ * separate thread, since finding the URL may need the cache to be checked and the 
+ * queue manager's thread must not wait for that.
+ * </p>
  */
-public class StandardRequestManager extends ComponentBase implements RequestManager {
+public class StandardRequestManager extends ComponentBase implements RequestManager, Shutdown {
+    static Logger log = LoggerFactory.getLogger( StandardRequestManager.class );
+    
     protected static int RETRY_DELAY_MS = 250;
     protected static int RETRY_COUNT = 50;
     
     protected QueueManager queueManager;
     protected CacheManager cacheManager;
     
+    protected int maxPending = 0;
+    protected long maxBacklog = 0;
+    protected int maxPendingPerURI = 0;
+    protected long retryAfter = 30 * 1000;
+    protected long statisticsInterval = 1000;
+    protected final AtomicReference<StatisticsSnapshot> statistics = new AtomicReference<>();
+    protected final ReentrantLock statisticsRefresh = new ReentrantLock();
+    
+    protected long watchInterval = 1000;
+    protected long watchTimeout = 60 * 60 * 1000;
+    protected final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<>();
+    protected ScheduledExecutorService watcher;
+    protected ExecutorService publisher;
+    protected final BatchEventBus events = new BatchEventBus();
+    protected final BatchListener queueListener = this::onQueueEvent;
+    
     public void setQueueManager(QueueManager queue) {
+        if (queueManager != null) {
+            queueManager.removeListener(queueListener);
+        }
         this.queueManager = queue;
+        statistics.set(null);
+        queue.addListener(queueListener);
     }
 
     public void setCacheManager(CacheManager cache) {
         this.cacheManager = cache;
     }
 
+    /**
+     * Maximum number of requests (pending or in progress) in the queue, 0 for no limit
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Maximum total estimated time (in ms) of the requests in the queue, 0 for no limit.
+     * A request is always admitted to an empty queue, even if its own estimate is over the limit,
+     * since waiting would not help.
+     */
+    public void setMaxBacklog(long maxBacklog) {
+        this.maxBacklog = maxBacklog;
+    }
+
+    /**
+     * Maximum number of requests in the queue for any one request URI, 0 for no limit
+     */
+    public void setMaxPendingPerURI(int maxPendingPerURI) {
+        this.maxPendingPerURI = maxPendingPerURI;
+    }
+
+    /**
+     * Minimum retry-after hint (in ms) to return with a rejected request
+     */
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Maximum age in ms of the queue statistics used for admission control, default is 1s.
+     * 0 reads them for every submit which adds a new request, which can be expensive.
+     */
+    public void setStatisticsInterval(long statisticsInterval) {
+        this.statisticsInterval = statisticsInterval;
+    }
+
+    /**
+     * Interval in ms at which requests being waited on are checked for completion
+     */
+    public void setWatchInterval(long watchInterval) {
+        this.watchInterval = watchInterval;
+    }
+
+    /**
+     * Maximum time in ms to watch a request, after which waiters are given its current status
+     */
+    public void setWatchTimeout(long watchTimeout) {
+        this.watchTimeout = watchTimeout;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+        if (publisher != null) {
+            publisher.shutdown();
+            publisher = null;
+        }
+        for (Map.Entry<String, Watch> entry : watches.entrySet()) {
+            if (watches.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().future.completeExceptionally( new EpiException("Request manager shut down") );
+            }
+        }
+    }
+
     @Override
     public QueueManager getQueueManager() {
         return queueManager;
@@ -55,9 +187,15 @@ public class StandardRequestManager extends ComponentBase implements RequestMana
             return getFullStatus(requestKey);
 //            return new BatchStatus(requestKey, cacheManager.getResultURL(request), StatusFlag.Completed);
         } else {
+            if (isAdmissionControlled()) {
+                BatchStatus rejected = checkAdmission(request);
+                if (rejected != null) {
+                    return rejected;
+                }
+            }
             BatchStatus status = queueManager.submit(request);
             if (status.getStatus() == StatusFlag.Completed) {
-                if ( ! cacheManager.isReady(requestKey)) {
+                if ( ! cacheManager.confirmReady(requestKey)) {
                     // Queue thinks it's previously done this one but lost from the cache, start again
                     status = queueManager.resubmit(request);
                 }
@@ -66,13 +204,91 @@ public class StandardRequestManager extends ComponentBase implements RequestMana
         }
     }
 
+    protected boolean isAdmissionControlled() {
+        return maxPending > 0 || maxBacklog > 0 || maxPendingPerURI > 0;
+    }
+    
+    /**
+     * Check whether a request may be added to the queue. Returns null if it
+     * may, or a Rejected status if not. Requests which are already queued or
+     * completed are always accepted since submitting them does not add work.
+     */
+    protected BatchStatus checkAdmission(BatchRequest request) {
+        StatusFlag current = queueManager.getStatus( request.getKey() ).getStatus();
+        if (current != StatusFlag.Unknown && current != StatusFlag.Failed) {
+            return null;
+        }
+        QueueStatistics stats = queueStatistics();
+        long wait = -1;
+        if (maxPending > 0 && stats.getSize() >= maxPending) {
+            wait = retryAfter;
+        }
+        if (maxPendingPerURI > 0 && stats.getSize(request.getRequestURI()) >= maxPendingPerURI) {
+            wait = retryAfter;
+        }
+        long backlog = stats.getTotalEstimatedTime();
+        if (maxBacklog > 0 && backlog > 0) {
+            long excess = backlog + request.getEstimatedTime() - maxBacklog;
+            if (excess > 0) {
+                // Roughly how long until enough of the backlog has cleared, an oversized
+                // request is let in once the queue is empty
+                wait = Math.max(retryAfter, Math.min(excess, backlog));
+            }
+        }
+        if (wait < 0) {
+            // Count it straight away so a burst of submits can't all pass the same snapshot
+            statistics.updateAndGet( s -> s == null ? null : new StatisticsSnapshot(s.statistics().plus(request), s.fetched()) );
+            return null;
+        }
+        BatchStatus status = new BatchStatus(request.getKey(), StatusFlag.Rejected);
+        status.setEstimatedTime( request.getEstimatedTime() );
+        status.setRetryAfter(wait);
+        return status;
+    }
+
+    /**
+     * Queue statistics for admission control, no older than <code>statisticsInterval</code>.
+     * Only one thread at a time reads the statistics from the queue, others carry on with the 
+     * previous snapshot meanwhile.
+     */
+    protected QueueStatistics queueStatistics() {
+        StatisticsSnapshot snapshot = statistics.get();
+        if (snapshot != null) {
+            if (System.currentTimeMillis() - snapshot.fetched() < statisticsInterval || ! statisticsRefresh.tryLock()) {
+                return snapshot.statistics();
+            }
+        } else {
+            statisticsRefresh.lock();
+        }
+        try {
+            snapshot = statistics.get();
+            long now = System.currentTimeMillis();
+            if (snapshot == null || now - snapshot.fetched() >= statisticsInterval) {
+                snapshot = new StatisticsSnapshot(queueManager.getQueueStatistics(), now);
+                statistics.set(snapshot);
+            }
+            return snapshot.statistics();
+        } finally {
+            statisticsRefresh.unlock();
+        }
+    }
+
+    /**
+     * Queue statistics as read at the given time, plus the requests admitted since
+     */
+    protected record StatisticsSnapshot(QueueStatistics statistics, long fetched) {}
+
     @Override
     public BatchStatus getStatus(String requestKey) {
         if (cacheManager.isReady(requestKey)) {
             return new BatchStatus(requestKey, cacheManager.getResultURL(requestKey), StatusFlag.Completed);
         } else {
             BatchStatus status = queueManager.getStatus(requestKey);
-            if (status.getStatus() == StatusFlag.Completed) {
+            if (status.getStatus() == StatusFlag.Completed || status.getStatus() == StatusFlag.Unknown) {
+                // Either may have been cached by another node since the cache's key filter was built
+                if (cacheManager.confirmReady(requestKey)) {
+                    return new BatchStatus(requestKey, cacheManager.getResultURL(requestKey), StatusFlag.Completed);
+                }
                 // Supposed to have been completed but not in cache, have to assume answer has been lost
                 return new BatchStatus(requestKey, StatusFlag.Unknown);
             } else {
@@ -86,21 +302,9 @@ public class StandardRequestManager extends ComponentBase implements RequestMana
         if (cacheManager.isReady(requestKey)) {
             return new BatchStatus(requestKey, cacheManager.getResultURL(requestKey), StatusFlag.Completed);
         } else {
-            BatchStatus status = queueManager.getStatus(requestKey);
-            if (status.getStatus() == StatusFlag.Pending) {
-                long eta = 0;
-                int position = 0;
-                for (BatchStatus s : queueManager.getQueue()) {
-                    position++;
-                    if (s.getEstimatedTime().isPresent()) {
-                        eta += s.getEstimatedTime().get();
-                    }
-                    if (s.getKey().equals(requestKey)) {
-                        status.setEta(eta);
-                        status.setPositionInQueue(position);
-                    }
-                }
-            } else if (status.getStatus() == StatusFlag.InProgress) {
+            // For pending requests the queue manager fills in position and eta
+            BatchStatus status = queueManager.getFullStatus(requestKey);
+            if (status.getStatus() == StatusFlag.InProgress) {
                 if (status.getStarted().isPresent() && status.getEstimatedTime().isPresent()) {
                     long sofar = System.currentTimeMillis() - status.getStarted().get();
                     long expected = status.getEstimatedTime().get();
@@ -113,7 +317,7 @@ public class StandardRequestManager extends ComponentBase implements RequestMana
                 // Supposed to have been completed but wasn't in cache when we checked earlier
                 // Might have completed in the interim or might be some delay in cache visibility
                 for (int i = 0; i < RETRY_COUNT; i++) {
-                    if (cacheManager.isReady(requestKey)) {
+                    if (cacheManager.confirmReady(requestKey)) {
                         return new BatchStatus(requestKey, cacheManager.getResultURL(requestKey), StatusFlag.Completed);
                     }
                     try {
@@ -124,6 +328,9 @@ public class StandardRequestManager extends ComponentBase implements RequestMana
                 }
                 // Give it, must have got lost somewhere
                 return new BatchStatus(requestKey, StatusFlag.Unknown);
+            } else if (status.getStatus() == StatusFlag.Unknown && cacheManager.confirmReady(requestKey)) {
+                // Record has gone but the result was cached, possibly by another node since the key filter was built
+                return new BatchStatus(requestKey, cacheManager.getResultURL(requestKey), StatusFlag.Completed);
             }
             return status;
         }
@@ -134,6 +341,168 @@ public class StandardRequestManager extends ComponentBase implements RequestMana
         return queueManager.getQueue();
     }
 
+    @Override
+    public CompletableFuture<BatchStatus> awaitCompletion(String requestKey) {
+        BatchStatus status = getStatus(requestKey);
+        if ( ! status.isActive() ) {
+            return CompletableFuture.completedFuture(status);
+        }
+        Watch watch = watches.computeIfAbsent(requestKey, k -> new Watch( System.currentTimeMillis() ));
+        startWatcher();
+        // Each caller gets a copy so that cancelling one does not affect the others
+        return watch.future.copy();
+    }
+
+    /**
+     * Number of distinct requests currently being waited on
+     */
+    public int getWatchCount() {
+        return watches.size();
+    }
+
+    protected synchronized void startWatcher() {
+        if (watcher == null) {
+            watcher = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread(r, "armlib-completion-watch");
+                t.setDaemon(true);
+                return t;
+            });
+            watcher.scheduleWithFixedDelay(this::checkWatches, watchInterval, watchInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    protected void checkWatches() {
+        long now = System.currentTimeMillis();
+        Map<String, Watch> current = new HashMap<>(watches);
+        if (current.isEmpty()) return;
+        Map<String, BatchStatus> statuses;
+        try {
+            statuses = queueManager.getStatuses( current.keySet() );
+        } catch (Exception e) {
+            log.error("Failed to check status of watched requests", e);
+            return;
+        }
+        for (Map.Entry<String, Watch> entry : current.entrySet()) {
+            checkWatch(entry.getKey(), entry.getValue(), statuses.get(entry.getKey()), now);
+        }
+    }
+
+    protected void checkWatch(String key, Watch watch, long now) {
+        try {
+            checkWatch(key, watch, queueManager.getStatus(key), now);
+        } catch (Exception e) {
+            log.error("Failed to check status of " + key, e);
+        }
+    }
+
+    protected void checkWatch(String key, Watch watch, BatchStatus current, long now) {
+        try {
+            BatchStatus status = checkCompletion(key, watch, current);
+            if (status == null && now - watch.started > watchTimeout) {
+                status = current;
+            }
+            if (status != null && watches.remove(key, watch)) {
+                watch.future.complete(status);
+            }
+        } catch (Exception e) {
+            log.error("Failed to check status of " + key, e);
+        }
+    }
+
+    @Override
+    public void addListener(BatchListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(BatchListener listener) {
+        events.removeListener(listener);
+    }
+
+    protected void onQueueEvent(BatchEvent event) {
+        EventType type = event.getType();
+        if (type == EventType.Completed || type == EventType.Failed) {
+            Watch watch = watches.get( event.getKey() );
+            ScheduledExecutorService w = watcher;
+            if (watch != null && w != null) {
+                try {
+                    // Check off the queue manager's thread, the cache check may be slow
+                    w.execute( () -> checkWatch(event.getKey(), watch, System.currentTimeMillis()) );
+                } catch (RejectedExecutionException e) {
+                    // Shutting down
+                }
+            }
+        }
+        if (events.hasListeners()) {
+            try {
+                publisher().execute( () -> deliver(event) );
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    protected synchronized ExecutorService publisher() {
+        if (publisher == null) {
+            publisher = Executors.newSingleThreadExecutor( r -> {
+                Thread t = new Thread(r, "armlib-events");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return publisher;
+    }
+
+    /**
+     * Fill in the result URL of a completed request, which may need a cache lookup, and pass the event on
+     */
+    protected void deliver(BatchEvent event) {
+        if (event.getType() == EventType.Completed && cacheManager != null) {
+            try {
+                event.getStatus().setUrl( cacheManager.getResultURL(event.getKey()) );
+            } catch (Exception e) {
+                log.warn("Failed to find result URL for " + event.getKey(), e);
+            }
+        }
+        events.publish(event);
+    }
+
+    /**
+     * Return the final status of a watched request, or null if it has not finished yet
+     */
+    protected BatchStatus checkCompletion(String requestKey, Watch watch, BatchStatus status) {
+        switch (status.getStatus()) {
+        case Pending:
+        case InProgress:
+            return null;
+
+        case Completed:
+        case Unknown:
+            // Record of an old completed request may have gone, so check the cache either way
+            if (cacheManager.confirmReady(requestKey)) {
+                return new BatchStatus(requestKey, cacheManager.getResultURL(requestKey), StatusFlag.Completed);
+            }
+            if (status.getStatus() == StatusFlag.Completed && ++watch.cacheMisses * watchInterval < RETRY_COUNT * RETRY_DELAY_MS) {
+                // Allow for some delay in cache visibility
+                return null;
+            }
+            return new BatchStatus(requestKey, StatusFlag.Unknown);
+
+        default:
+            return status;
+        }
+    }
+
+    protected static class Watch {
+        final CompletableFuture<BatchStatus> future = new CompletableFuture<>();
+        final long started;
+        int cacheMisses = 0;
+
+        Watch(long started) {
+            this.started = started;
+        }
+    }
+
     @Override
     public BatchRequest findRequest(String key) {
         return queueManager.findRequest(key);
@@ -0,0 +1,95 @@
+/******************************************************************
+ * File:        TTLCache.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of lookups which expire a fixed time after they were fetched. The least
+ * recently used entries are evicted once the cache is full. Subclasses decide when a
+ * lookup may be stored, so that one which overlapped a change isn't cached.
+ */
+public class TTLCache<V extends TTLCache.Timed> {
+
+    /**
+     * A cached value, which knows when it was fetched
+     */
+    public interface Timed {
+        public long fetched();
+    }
+
+    protected final long ttl;
+    protected final Map<String, V> cache;
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of entries cached
+     * @param ttl time in ms for which a lookup is reused
+     */
+    public TTLCache(int maxSize, long ttl) {
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Time in ms for which the given value is reused
+     */
+    protected long ttlFor(V value) {
+        return ttl;
+    }
+
+    /**
+     * Return the cached value, or null if it is not cached or too old
+     */
+    public synchronized V get(String key, long now) {
+        V value = cache.get(key);
+        if (value != null && now - value.fetched() > ttlFor(value)) {
+            cache.remove(key);
+            value = null;
+        }
+        (value == null ? misses : hits).incrementAndGet();
+        return value;
+    }
+
+    public synchronized void invalidate(String key) {
+        cache.remove(key);
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Fraction of lookups answered from the cache, 0 if there have been none
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
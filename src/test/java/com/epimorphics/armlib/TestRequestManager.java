@@ -28,9 +28,12 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
-import static com.epimorphics.armlib.impl.DynQueueManager.COMPLETED_TIME_INDEX;
+import static com.epimorphics.armlib.impl.DynQueueManager.COMPLETED_SHARD_INDEX;
+import static com.epimorphics.armlib.impl.DynQueueManager.SHARD_ATTRIBUTE;
 import static org.junit.Assert.*;
 
 /**
@@ -61,6 +64,167 @@ public class TestRequestManager {
         FileUtil.deleteDirectory(testDir);
     }
 
+    @Test
+    public void testWithJournal() throws IOException, InterruptedException {
+        FileCacheManager cache = new FileCacheManager();
+        String testDir = Files.createTempDirectory("testmonitor").toFile().getPath();
+        cache.setCacheDir(testDir + "/cache");
+
+        JournalQueueManager queue = new JournalQueueManager();
+        queue.setJournalDir(testDir + "/journal");
+        queue.startup(null);
+
+        doTestStandardRequestManager(queue, cache);
+        queue.shutdown();
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testAdmissionControl() throws IOException {
+        FileCacheManager cache = new FileCacheManager();
+        String testDir = Files.createTempDirectory("testmonitor").toFile().getPath();
+        cache.setCacheDir(testDir);
+        MemQueueManager queue = new MemQueueManager();
+        StandardRequestManager rm = new StandardRequestManager();
+        rm.setCacheManager(cache);
+        rm.setQueueManager(queue);
+        rm.setMaxPending(3);
+        rm.setMaxPendingPerURI(2);
+        rm.setMaxBacklog(1000);
+        rm.setRetryAfter(10);
+        rm.setStatisticsInterval(0);
+
+        BatchRequest a1 = request("/a", false, "p", "1");
+        BatchRequest a2 = request("/a", false, "p", "2");
+        BatchRequest a3 = request("/a", false, "p", "3");
+        BatchRequest b1 = request("/b", false, "p", "1");
+        BatchRequest c1 = request("/c", false, "p", "1");
+        for (BatchRequest r : new BatchRequest[] {a1, a2, a3, b1, c1}) {
+            r.setEstimatedTime(100);
+        }
+        assertEquals(StatusFlag.Pending, rm.submit(a1).getStatus());
+        assertEquals(StatusFlag.Pending, rm.submit(a2).getStatus());
+
+        // Per URI limit
+        BatchStatus s = rm.submit(a3);
+        assertEquals(StatusFlag.Rejected, s.getStatus());
+        assertEquals(10, (long) s.getRetryAfter().get());
+        assertEquals(StatusFlag.Unknown, rm.getStatus(a3.getKey()).getStatus());
+
+        // Resubmitting an already queued request is always fine
+        assertEquals(StatusFlag.Pending, rm.submit(a1).getStatus());
+
+        // Overall limit
+        assertEquals(StatusFlag.Pending, rm.submit(b1).getStatus());
+        assertEquals(StatusFlag.Rejected, rm.submit(c1).getStatus());
+
+        // Space frees up once a request is finished
+        queue.nextRequest();
+        queue.finishRequest(a1.getKey());
+        assertEquals(StatusFlag.Pending, rm.submit(c1).getStatus());
+
+        // Backlog limit, hint reflects how much of the backlog has to clear
+        rm.setMaxPending(0);
+        rm.setMaxPendingPerURI(0);
+        BatchRequest big = request("/d", false, "p", "1");
+        big.setEstimatedTime(900);
+        s = rm.submit(big);
+        assertEquals(StatusFlag.Rejected, s.getStatus());
+        assertEquals(200, (long) s.getRetryAfter().get());
+
+        // A request too big for the backlog waits for the queue to empty, then gets in
+        BatchRequest huge = request("/e", false, "p", "1");
+        huge.setEstimatedTime(5000);
+        s = rm.submit(huge);
+        assertEquals(StatusFlag.Rejected, s.getStatus());
+        assertEquals(300, (long) s.getRetryAfter().get());
+        while (queue.nextRequest() != null) {
+            // drain
+        }
+        for (BatchRequest r : new BatchRequest[] {a2, b1, c1}) {
+            queue.finishRequest(r.getKey());
+        }
+        assertEquals(StatusFlag.Pending, rm.submit(huge).getStatus());
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testAdmissionSnapshot() throws IOException {
+        FileCacheManager cache = new FileCacheManager();
+        String testDir = Files.createTempDirectory("testmonitor").toFile().getPath();
+        cache.setCacheDir(testDir);
+        MemQueueManager queue = new MemQueueManager();
+        StandardRequestManager rm = new StandardRequestManager();
+        rm.setCacheManager(cache);
+        rm.setQueueManager(queue);
+        rm.setMaxPending(2);
+        rm.setStatisticsInterval(60 * 1000);
+
+        BatchRequest a1 = request("/a", false, "p", "1");
+        BatchRequest a2 = request("/a", false, "p", "2");
+        BatchRequest a3 = request("/a", false, "p", "3");
+        // Requests admitted are counted without reading the queue again
+        assertEquals(StatusFlag.Pending, rm.submit(a1).getStatus());
+        assertEquals(StatusFlag.Pending, rm.submit(a2).getStatus());
+        assertEquals(StatusFlag.Rejected, rm.submit(a3).getStatus());
+
+        // Space freed is only seen once the snapshot is refreshed
+        queue.nextRequest();
+        queue.finishRequest(a1.getKey());
+        assertEquals(StatusFlag.Rejected, rm.submit(a3).getStatus());
+        rm.setStatisticsInterval(0);
+        assertEquals(StatusFlag.Pending, rm.submit(a3).getStatus());
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testAwaitCompletion() throws Exception {
+        FileCacheManager cache = new FileCacheManager();
+        String testDir = Files.createTempDirectory("testmonitor").toFile().getPath();
+        cache.setCacheDir(testDir);
+        MemQueueManager queue = new MemQueueManager();
+        StandardRequestManager rm = new StandardRequestManager();
+        rm.setCacheManager(cache);
+        rm.setQueueManager(queue);
+        rm.setWatchInterval(10);
+        try {
+            BatchRequest done = request("/a", false, "p", "1");
+            BatchRequest failed = request("/a", false, "p", "2");
+            rm.submit(done);
+            rm.submit(failed);
+            
+            CompletableFuture<BatchStatus> w1 = rm.awaitCompletion(done.getKey());
+            CompletableFuture<BatchStatus> w2 = rm.awaitCompletion(done.getKey());
+            CompletableFuture<BatchStatus> w3 = rm.awaitCompletion(failed.getKey());
+            assertEquals(2, rm.getWatchCount());
+            // Cancelling one waiter doesn't affect the other
+            w2.cancel(true);
+            assertFalse( w1.isDone() );
+            
+            assertEquals(done.getKey(), queue.nextRequest().getKey());
+            Pipe pipe = cache.upload(done);
+            pipe.getSource().write("result".getBytes(StandardCharsets.UTF_8));
+            pipe.getSource().close();
+            pipe.waitForCompletion();
+            queue.finishRequest(done.getKey());
+            queue.nextRequest();
+            queue.failRequest(failed.getKey());
+            
+            BatchStatus status = w1.get(5, TimeUnit.SECONDS);
+            assertEquals(StatusFlag.Completed, status.getStatus());
+            assertEquals(cache.getResultURL(done.getKey()), status.getUrl());
+            assertEquals(StatusFlag.Failed, w3.get(5, TimeUnit.SECONDS).getStatus());
+            assertEquals(0, rm.getWatchCount());
+            
+            // Already finished or unknown requests complete immediately
+            assertEquals(StatusFlag.Completed, rm.awaitCompletion(done.getKey()).getNow(null).getStatus());
+            assertEquals(StatusFlag.Unknown, rm.awaitCompletion("nosuchkey").getNow(null).getStatus());
+        } finally {
+            rm.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
     // Test requires local instance of DynamoDB running on port 8000
     @Ignore
     @Test
@@ -96,11 +260,11 @@ public class TestRequestManager {
     private int countCompleted(DynQueueManager queue) {
         ScanResponse result = queue.getDynamoClient().scan(ScanRequest.builder()
                 .tableName(queue.getCompletedTableName())
-                .indexName(COMPLETED_TIME_INDEX)
+                .indexName(COMPLETED_SHARD_INDEX)
                 .build());
         int count = 0;
         for (Map<String, AttributeValue> item : result.items()) {
-            if (item.get("Status").s().equals(StatusFlag.Completed.name())) {
+            if (item.get(SHARD_ATTRIBUTE).s().startsWith(StatusFlag.Completed.name() + "#")) {
                 count++;
             }
         }
@@ -56,8 +56,8 @@ public class DynCheck {
     
     private void scanCompleted() {
         ScanResponse result = queue.client.scan(ScanRequest.builder()
-                .tableName(queue.getQueueTableName())
-                .indexName(COMPLETED_TIME_INDEX)
+                .tableName(queue.getCompletedTableName())
+                .indexName(COMPLETED_SHARD_INDEX)
                 .build());
         System.out.println( String.format("Scanned %d returning %d", result.scannedCount(), result.count()) );
         for (Map<String,AttributeValue> item : result.items()) {
@@ -0,0 +1,114 @@
+/******************************************************************
+ * File:        DynQueueBench.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+/**
+ * Scratch pad benchmarks for the DynamoDB queue. Compares the read capacity used to
+ * find the next pending request by scanning the queue table with a query on the status
+ * index as the queue grows, and the latency of finishing a request as a transaction with
+ * the earlier read, delete and put. Needs DynamoDB Local on localhost:8000. 
+ * Not run as part of the test suite.
+ */
+public class DynQueueBench {
+    static final int[] DEPTHS = {10, 100, 1000, 5000};
+    static final int CLAIMS = 20;
+    static final int FINISHES = 500;
+
+    public static void main(String[] args) throws Exception {
+        DynQueueManager queue = new DynQueueManager();
+        queue.setTablePrefix("Bench" + System.currentTimeMillis());
+        queue.setLocalTestEndpoint("http://localhost:8000");
+        queue.startup(null);
+
+        System.out.println("  depth  scan RCU  query RCU  claim ms");
+        int submitted = 0;
+        for (int depth : DEPTHS) {
+            while (submitted < depth) {
+                queue.submit( new BatchRequest("http://localhost/bench", "i=" + submitted++) );
+            }
+            double scan = scanCapacity(queue);
+            QueryResponse query = queue.getDynamoClient().query( queue.statusQuery(StatusFlag.Pending, 1).toBuilder()
+                    .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+                    .build() );
+            double indexed = query.consumedCapacity().capacityUnits();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < CLAIMS; i++) {
+                List<BatchRequest> claimed = queue.nextRequests(1, 0);
+                for (BatchRequest request : claimed) {
+                    queue.abortRequest(request.getKey());
+                }
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / CLAIMS;
+            System.out.println( String.format("%7d  %8.1f  %9.1f  %8.2f", depth, scan, indexed, ms) );
+        }
+
+        System.out.println();
+        System.out.println("finish          p50 ms  p99 ms");
+        for (boolean transact : new boolean[] {false, true}) {
+            long[] times = new long[FINISHES];
+            for (int i = 0; i < FINISHES; i++) {
+                BatchRequest request = queue.nextRequest();
+                long start = System.nanoTime();
+                if (transact) {
+                    queue.finishRequest(request.getKey());
+                } else {
+                    separateFinish(queue, request.getKey());
+                }
+                times[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+            System.out.println( String.format("%-14s  %6.2f  %6.2f", transact ? "transaction" : "get+delete+put",
+                    times[FINISHES / 2] / 1e6, times[FINISHES * 99 / 100] / 1e6) );
+        }
+        queue.getDynamoClient().deleteTable( b -> b.tableName(queue.getQueueTableName()) );
+        queue.getDynamoClient().deleteTable( b -> b.tableName(queue.getCompletedTableName()) );
+        queue.shutdown();
+    }
+
+    // Finish as three separate calls, as before transactions were used
+    static void separateFinish(DynQueueManager queue, String key) {
+        DynamoDbClient client = queue.getDynamoClient();
+        Map<String, AttributeValue> item = client.getItem( b -> b.tableName(queue.getQueueTableName())
+                .key(Map.of(DynQueueManager.KEY_ATTRIBUTE, AttributeValue.builder().s(key).build())) ).item();
+        client.deleteItem( b -> b.tableName(queue.getQueueTableName())
+                .key(Map.of(DynQueueManager.KEY_ATTRIBUTE, AttributeValue.builder().s(key).build())) );
+        DynCompletedEntry completed = new DynCompletedEntry( DynQueueEntry.fromItemMap(item) );
+        completed.setStatusStr(StatusFlag.Completed.name());
+        client.putItem( b -> b.tableName(queue.getCompletedTableName()).item(completed.toItemMap()) );
+        queue.claimed.remove(key);
+    }
+
+    // Total capacity of the full scan which each poll used to make
+    static double scanCapacity(DynQueueManager queue) {
+        double total = 0;
+        for (ScanResponse page : queue.getDynamoClient().scanPaginator( ScanRequest.builder()
+                .tableName(queue.getQueueTableName())
+                .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+                .build() )) {
+            total += page.consumedCapacity().capacityUnits();
+        }
+        return total;
+    }
+}
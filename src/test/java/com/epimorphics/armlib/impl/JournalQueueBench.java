@@ -0,0 +1,70 @@
+/******************************************************************
+ * File:        JournalQueueBench.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Scratch pad benchmark for the transition rate of the journalled queue
+ * with group commit. Each cycle is a submit, claim and finish so three
+ * journalled transitions. Not run as part of the test suite.
+ */
+public class JournalQueueBench {
+    static final int[] THREADS = {1, 4, 16, 64};
+    static final int CYCLES = 20000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("threads  sync  transitions/s");
+        for (boolean sync : new boolean[] {true, false}) {
+            for (int threads : THREADS) {
+                run(threads, sync);
+            }
+        }
+    }
+
+    static void run(int nthreads, boolean sync) throws Exception {
+        String dir = Files.createTempDirectory("journalbench").toFile().getPath();
+        JournalQueueManager queue = new JournalQueueManager();
+        queue.setJournalDir(dir);
+        queue.setSyncWrites(sync);
+        queue.startup(null);
+
+        AtomicInteger counter = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < nthreads; t++) {
+            Thread thread = new Thread( () -> {
+                int i;
+                while ((i = counter.getAndIncrement()) < CYCLES) {
+                    queue.submit( new BatchRequest("http://localhost/bench", "i=" + i) );
+                    BatchRequest next = queue.nextRequest();
+                    if (next != null) {
+                        queue.finishRequest(next.getKey());
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println( String.format("%7d  %4s  %13.0f", nthreads, sync, CYCLES * 3 / secs) );
+        queue.shutdown();
+        FileUtil.deleteDirectory(dir);
+    }
+}
@@ -0,0 +1,104 @@
+/******************************************************************
+ * File:        MemQueueBench.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.QueueManager;
+
+/**
+ * Scratch pad benchmark for dequeue latency and idle CPU cost of workers
+ * blocked in {@link QueueManager#nextRequest(long)}. Not run as part of the test suite.
+ */
+public class MemQueueBench {
+    static final int[] WORKERS = {1, 2, 4, 8, 16, 32, 64};
+    static final int REQUESTS = 200;
+    static final long IDLE_PERIOD = 2000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("workers  idle-cpu-ms/s  p50-us  p99-us  max-us");
+        for (int workers : WORKERS) {
+            run(workers);
+        }
+    }
+
+    static void run(int nworkers) throws Exception {
+        MemQueueManager queue = new MemQueueManager();
+        Map<String, Long> submitted = new ConcurrentHashMap<>();
+        long[] latencies = new long[REQUESTS];
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < nworkers; i++) {
+            Thread t = new Thread( () -> {
+                try {
+                    while (true) {
+                        BatchRequest next = queue.nextRequest(60000);
+                        if (next != null) {
+                            long latency = System.nanoTime() - submitted.get(next.getKey());
+                            latencies[ (int)(REQUESTS - done.getCount()) % REQUESTS ] = latency;
+                            queue.finishRequest(next.getKey());
+                            done.countDown();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Finished
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+
+        // Idle CPU while all workers wait for work
+        Thread.sleep(200);
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long cpuStart = cpuTime(mx, workers);
+        Thread.sleep(IDLE_PERIOD);
+        long idleCpu = cpuTime(mx, workers) - cpuStart;
+
+        // Latency from submit to dequeue, one request at a time so workers are idle
+        for (int i = 0; i < REQUESTS; i++) {
+            BatchRequest request = new BatchRequest("http://localhost/bench", "n=" + nworkers + "&i=" + i);
+            long count = done.getCount();
+            submitted.put(request.getKey(), System.nanoTime());
+            queue.submit(request);
+            while (done.getCount() == count) {
+                Thread.onSpinWait();
+            }
+        }
+        done.await();
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+
+        Arrays.sort(latencies);
+        System.out.println( String.format("%7d  %13.3f  %6d  %6d  %6d",
+                nworkers,
+                idleCpu / 1e6 / (IDLE_PERIOD / 1000.0),
+                latencies[REQUESTS / 2] / 1000,
+                latencies[REQUESTS * 99 / 100] / 1000,
+                latencies[REQUESTS - 1] / 1000 ) );
+    }
+
+    static long cpuTime(ThreadMXBean mx, List<Thread> threads) {
+        long total = 0;
+        for (Thread t : threads) {
+            total += mx.getThreadCpuTime( t.threadId() );
+        }
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+/******************************************************************
+ * File:        PipeBench.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Scratch pad benchmark comparing producer throughput through the piped streams with
+ * their default 1KB buffer and a platform consumer thread, as pipes used to be run,
+ * with a ChunkRing read on a virtual thread. The producer writes CSV-sized rows and
+ * larger blocks, the consumer discards what it reads. Not run as part of the test suite.
+ */
+public class PipeBench {
+    static final long BYTES = 256L * 1024 * 1024;
+    static final int[] WRITE_SIZES = {64, 1024, 64 * 1024};
+    static final int ROUNDS = 5;
+
+    interface Transfer {
+        long run(byte[] block) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(" write bytes   piped MB/s    ring MB/s");
+        for (int size : WRITE_SIZES) {
+            byte[] block = new byte[size];
+            for (int i = 0; i < size; i++) {
+                block[i] = (byte)('a' + i % 26);
+            }
+            double piped = best( PipeBench::piped, block );
+            double ring = best( PipeBench::ring, block );
+            System.out.println( String.format("%12d %12.0f %12.0f", size, piped, ring) );
+        }
+    }
+
+    /**
+     * Best throughput in MB/s over several rounds, after a warm up round
+     */
+    static double best(Transfer transfer, byte[] block) throws Exception {
+        transfer.run(block);
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            fastest = Math.min(fastest, transfer.run(block));
+        }
+        return (BYTES / (1024.0 * 1024)) / (fastest / 1e9);
+    }
+
+    static long piped(byte[] block) throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out);
+        Thread consumer = new Thread( () -> drain(in) );
+        consumer.start();
+        long time = produce(out, block);
+        consumer.join();
+        return time;
+    }
+
+    static long ring(byte[] block) throws Exception {
+        ChunkRing ring = new ChunkRing(64 * 1024, 16);
+        Thread consumer = Thread.ofVirtual().start( () -> drain(ring.getInputStream()) );
+        long time = produce(ring.getOutputStream(), block);
+        consumer.join();
+        return time;
+    }
+
+    /**
+     * Write the data, returning the time in ns until the producer is done
+     */
+    static long produce(OutputStream out, byte[] block) throws Exception {
+        long start = System.nanoTime();
+        for (long written = 0; written < BYTES; written += block.length) {
+            out.write(block);
+        }
+        out.close();
+        return System.nanoTime() - start;
+    }
+
+    static void drain(InputStream in) {
+        byte[] buffer = new byte[8192];
+        try {
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
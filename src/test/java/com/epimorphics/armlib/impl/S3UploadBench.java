@@ -0,0 +1,88 @@
+/******************************************************************
+ * File:        S3UploadBench.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.Pipe;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+
+/**
+ * Scratch pad benchmark comparing the throughput of uploading a streamed result by
+ * spooling it to a temporary file and then putting the file, as S3CacheManager used to,
+ * with streaming it straight into a multipart upload. Needs an S3-compatible service 
+ * such as MinIO, by default on localhost:9000. Not run as part of the test suite.
+ */
+public class S3UploadBench {
+    static final int[] SIZES_MB = {16, 128, 512};
+    static final int CHUNK = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        S3CacheManager cache = new S3CacheManager();
+        cache.setEndpoint(args.length > 0 ? args[0] : "http://localhost:9000");
+        cache.setBucket("bench-" + System.currentTimeMillis());
+        cache.setBaseKey("armlib");
+        cache.s3client.createBucket( b -> b.bucket(cache.bucket) );
+
+        System.out.println("   size MB  spooled MB/s  streamed MB/s");
+        byte[] chunk = new byte[CHUNK];
+        for (int i = 0; i < CHUNK; i++) {
+            chunk[i] = (byte)('a' + i % 26);
+        }
+        for (int mb : SIZES_MB) {
+            long bytes = (long) mb * 1024 * 1024;
+            BatchRequest request = new BatchRequest("http://localhost/bench", "size=" + mb);
+
+            long start = System.nanoTime();
+            spooledUpload(cache, request, chunk, bytes);
+            double spooled = mb / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            Pipe pipe = cache.upload(request);
+            try (OutputStream out = pipe.getSource()) {
+                write(out, chunk, bytes);
+            }
+            pipe.waitForCompletion();
+            double streamed = mb / ((System.nanoTime() - start) / 1e9);
+            System.out.println( String.format("%10d  %12.1f  %13.1f", mb, spooled, streamed) );
+        }
+        cache.clear();
+        cache.s3client.deleteBucket( b -> b.bucket(cache.bucket) );
+    }
+
+    // Copy to a temporary file and put that, as before streaming uploads
+    static void spooledUpload(S3CacheManager cache, BatchRequest request, byte[] chunk, long bytes) throws Exception {
+        File temp = File.createTempFile("bench", ".csv");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                write(out, chunk, bytes);
+            }
+            try (InputStream in = new FileInputStream(temp)) {
+                cache.s3client.putObject( cache.putRequest("armlib/spooled/" + request.getKey(), "csv", temp.length()),
+                        RequestBody.fromInputStream(in, temp.length()) );
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    static void write(OutputStream out, byte[] chunk, long bytes) throws Exception {
+        for (long written = 0; written < bytes; written += chunk.length) {
+            out.write(chunk, 0, (int) Math.min(chunk.length, bytes - written));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/******************************************************************
+ * File:        TestBatchEventResource.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BooleanSupplier;
+
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.Pipe;
+import com.epimorphics.armlib.impl.BatchEventResource.Subscription;
+import com.epimorphics.util.FileUtil;
+
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseBroadcaster;
+import jakarta.ws.rs.sse.SseEventSink;
+
+/**
+ * Check the event stream resource against the in-memory queue and file cache.
+ */
+public class TestBatchEventResource {
+    protected String testDir;
+    protected MemQueueManager queue;
+    protected FileCacheManager cache;
+    protected StandardRequestManager rm;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = Files.createTempDirectory("testevents").toFile().getPath();
+        cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        queue = new MemQueueManager();
+        rm = new StandardRequestManager();
+        rm.setQueueManager(queue);
+        rm.setCacheManager(cache);
+    }
+
+    @After
+    public void cleanup() {
+        rm.shutdown();
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        TestSink sink = new TestSink();
+        Subscription subscription = new Subscription(rm, sink, new TestSse(), null, 50);
+        subscription.start();
+
+        // Idle stream gets keep-alive comments
+        waitFor( () -> sink.count() > 0 );
+        assertEquals( "keep-alive", sink.get(0).getComment() );
+
+        BatchRequest request = new BatchRequest("http://localhost/test", "p=1");
+        rm.submit(request);
+        waitFor( () -> sink.named("Submitted") != null );
+        assertTrue( ((String) sink.named("Submitted").getData()).contains(request.getKey()) );
+
+        // Client goes away, the listener is dropped even though no more events arrive
+        sink.close();
+        subscription.runner.join(5000);
+        assertFalse( subscription.runner.isAlive() );
+        assertFalse( rm.events.hasListeners() );
+    }
+
+    @Test
+    public void testFinishedRequest() throws Exception {
+        BatchRequest request = new BatchRequest("http://localhost/test", "p=2");
+        queue.submit(request);
+        queue.nextRequest();
+        Pipe pipe = cache.upload(request);
+        try (OutputStream out = pipe.getSource()) {
+            out.write("a,b\n".getBytes());
+        }
+        pipe.waitForCompletion();
+        queue.finishRequest(request.getKey());
+
+        // Following a request that has already finished still gets its status
+        TestSink sink = new TestSink();
+        Subscription subscription = new Subscription(rm, sink, new TestSse(), request.getKey(), 60000);
+        subscription.start();
+        waitFor( () -> sink.count() > 0 );
+        assertEquals( "Status", sink.get(0).getName() );
+        String data = (String) sink.get(0).getData();
+        assertTrue( data.contains("Completed") );
+        assertTrue( data.contains(cache.getResultURL(request.getKey())) );
+
+        sink.close();
+        subscription.runner.interrupt();
+        subscription.runner.join(5000);
+        assertFalse( rm.events.hasListeners() );
+    }
+
+    protected static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( ! condition.getAsBoolean() ) {
+            assertTrue( "Timed out", System.currentTimeMillis() < deadline );
+            Thread.sleep(10);
+        }
+    }
+
+    static class TestSink implements SseEventSink {
+        protected final List<OutboundSseEvent> sent = new ArrayList<>();
+        protected volatile boolean closed = false;
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized CompletionStage<?> send(OutboundSseEvent event) {
+            sent.add(event);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        public synchronized int count() {
+            return sent.size();
+        }
+
+        public synchronized OutboundSseEvent get(int i) {
+            return sent.get(i);
+        }
+
+        public synchronized OutboundSseEvent named(String name) {
+            return sent.stream().filter( e -> name.equals(e.getName()) ).findFirst().orElse(null);
+        }
+    }
+
+    static class TestSse implements Sse {
+        @Override
+        public OutboundSseEvent.Builder newEventBuilder() {
+            return new OutboundEvent.Builder();
+        }
+
+        @Override
+        public SseBroadcaster newBroadcaster() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/******************************************************************
+ * File:        TestBatchWorkerPool.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchHandler;
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Check the worker pool against the in-memory queue and file cache.
+ */
+public class TestBatchWorkerPool {
+    protected String testDir;
+    protected MemQueueManager queue;
+    protected FileCacheManager cache;
+    protected BatchWorkerPool pool;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = Files.createTempDirectory("testpool").toFile().getPath();
+        cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        queue = new MemQueueManager();
+    }
+
+    @After
+    public void cleanup() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testProcessesQueue() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        startPool(3, (request, out) -> {
+            maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+            Thread.sleep(10);
+            running.decrementAndGet();
+            if (request.getParameterString().endsWith("bar13")) {
+                throw new IllegalStateException("Test failure");
+            }
+            out.write( request.getParameterString().getBytes(StandardCharsets.UTF_8) );
+        });
+        for (int i = 0; i < 20; i++) {
+            queue.submit( request(i) );
+        }
+        waitFor( () -> pool.getCompletedCount() + pool.getFailedCount() == 20 );
+
+        assertTrue( maxRunning.get() <= 3 );
+        assertEquals(19, pool.getCompletedCount());
+        assertEquals(1, pool.getFailedCount());
+        assertEquals(StatusFlag.Failed, queue.getStatus( request(13).getKey() ).getStatus());
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(7).getKey() ).getStatus());
+        try (InputStream in = cache.readResult( request(7).getKey() )) {
+            assertEquals("p=foo&q=bar7", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        // Failed request leaves no partial result behind
+        assertFalse( cache.isReady( request(13).getKey() ) );
+        assertTrue( pool.getUtilization() > 0 );
+    }
+
+    @Test
+    public void testShutdownAbortsInFlight() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        startPool(2, (request, out) -> {
+            out.write( "partial".getBytes(StandardCharsets.UTF_8) );
+            started.countDown();
+            Thread.sleep(60 * 1000);
+        });
+        for (int i = 0; i < 3; i++) {
+            queue.submit( request(i) );
+        }
+        started.await();
+        assertEquals(2, pool.getActiveCount());
+        pool.shutdown();
+
+        assertEquals(2, pool.getAbortedCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(StatusFlag.Pending, queue.getStatus( request(i).getKey() ).getStatus());
+            assertFalse( cache.isReady( request(i).getKey() ) );
+        }
+    }
+
+    @Test
+    public void testLostLeaseIsAbandoned() throws Exception {
+        queue.setLeaseDuration(60 * 1000);
+        CountDownLatch started = new CountDownLatch(1);
+        pool = new BatchWorkerPool();
+        pool.setRenewInterval(10);
+        startPool(1, (request, out) -> {
+            started.countDown();
+            Thread.sleep(60 * 1000);
+        });
+        queue.submit( request(1) );
+        started.await();
+        // Simulate the lease having expired and been reaped
+        queue.reapExpiredLeases(Long.MAX_VALUE);
+        waitFor( () -> pool.getAbortedCount() == 1 );
+        assertEquals(0, pool.getFailedCount());
+    }
+
+    @Test
+    public void testLeaseRenewedDuringUpload() throws Exception {
+        queue.setLeaseDuration(200);
+        CountDownLatch uploading = new CountDownLatch(1);
+        FileCacheManager slowCache = new FileCacheManager() {
+            @Override
+            protected void upload(BatchRequest request, String suffix, InputStream result) {
+                uploading.countDown();
+                try {
+                    Thread.sleep(600);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.upload(request, suffix, result);
+            }
+        };
+        slowCache.setCacheDir(testDir);
+        cache = slowCache;
+        pool = new BatchWorkerPool();
+        pool.setRenewInterval(20);
+        startPool(1, (request, out) -> out.write( "a,b".getBytes(StandardCharsets.UTF_8) ));
+        queue.submit( request(1) );
+        uploading.await();
+        // Upload outlasts the lease, which should still be held
+        Thread.sleep(400);
+        assertTrue( queue.reapExpiredLeases( System.currentTimeMillis() ).isEmpty() );
+        waitFor( () -> pool.getCompletedCount() == 1 );
+        assertEquals(0, pool.getAbortedCount());
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(1).getKey() ).getStatus());
+    }
+
+    protected void startPool(int concurrency, BatchHandler handler) {
+        if (pool == null) {
+            pool = new BatchWorkerPool();
+        }
+        pool.setQueueManager(queue);
+        pool.setCacheManager(cache);
+        pool.setHandler(handler);
+        pool.setConcurrency(concurrency);
+        pool.setPollTimeout(50);
+        pool.setShutdownTimeout(5000);
+        pool.startup(null);
+    }
+
+    protected static void waitFor(Check check) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( ! check.done() ) {
+            assertTrue( System.currentTimeMillis() < deadline );
+            Thread.sleep(10);
+        }
+    }
+
+    protected interface Check {
+        boolean done() throws Exception;
+    }
+
+    protected static BatchRequest request(int i) {
+        return new BatchRequest("http://localhost/test", "p=foo&q=bar" + i);
+    }
+}
@@ -0,0 +1,442 @@
+/******************************************************************
+ * File:        TestDynQueueManager.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.GlobalSecondaryIndex;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.ProjectionType;
+import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
+
+import static com.epimorphics.armlib.impl.DynQueueManager.*;
+
+/**
+ * Checks of the DynamoDB queue, including several nodes sharing the tables.
+ * These require a local instance of DynamoDB running on port 8000.
+ */
+public class TestDynQueueManager {
+    static final String ENDPOINT = "http://localhost:8000";
+
+    protected String prefix;
+    protected List<DynQueueManager> nodes = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        prefix = "Test" + System.currentTimeMillis() + "-";
+    }
+
+    @After
+    public void cleanup() {
+        if ( ! nodes.isEmpty() ) {
+            DynQueueManager queue = nodes.get(0);
+            queue.getDynamoClient().deleteTable( b -> b.tableName(queue.getQueueTableName()) );
+            queue.getDynamoClient().deleteTable( b -> b.tableName(queue.getCompletedTableName()) );
+        }
+        nodes.forEach( DynQueueManager::shutdown );
+    }
+
+    @Ignore
+    @Test
+    public void testClaimContention() throws Exception {
+        final int NODES = 4;
+        final int THREADS = 4;
+        final int REQUESTS = 200;
+        for (int i = 0; i < NODES; i++) {
+            node("node" + i);
+        }
+        for (int i = 0; i < REQUESTS; i++) {
+            nodes.get(0).submit( request(i) );
+        }
+
+        Map<String, AtomicInteger> executions = new ConcurrentHashMap<>();
+        AtomicInteger total = new AtomicInteger();
+        ExecutorService exec = Executors.newFixedThreadPool(NODES * THREADS);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < NODES * THREADS; t++) {
+            DynQueueManager queue = nodes.get(t % NODES);
+            // Mix single and batch claims
+            int batch = t % 2 == 0 ? 1 : 3;
+            workers.add( exec.submit( () -> {
+                while (total.get() < REQUESTS) {
+                    for (BatchRequest next : queue.nextRequests(batch, 200)) {
+                        executions.computeIfAbsent(next.getKey(), k -> new AtomicInteger()).incrementAndGet();
+                        total.incrementAndGet();
+                        queue.finishRequest(next.getKey());
+                    }
+                }
+                return null;
+            }) );
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        exec.shutdown();
+
+        assertEquals(REQUESTS, total.get());
+        assertEquals(REQUESTS, executions.size());
+        for (AtomicInteger count : executions.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(0, nodes.get(0).getQueue().size());
+        assertEquals(StatusFlag.Completed, nodes.get(1).getStatus( request(7).getKey() ).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testAbortOnlyByOwner() {
+        DynQueueManager node1 = node("node1");
+        DynQueueManager node2 = node("node2");
+        String key = request(1).getKey();
+        node1.submit( request(1) );
+        assertEquals(key, node1.nextRequest().getKey());
+        node2.abortRequest(key);
+        assertEquals(StatusFlag.InProgress, node1.getStatus(key).getStatus());
+        node1.abortRequest(key);
+        assertEquals(StatusFlag.Pending, node1.getStatus(key).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testCompleteOnlyByOwner() throws InterruptedException {
+        DynQueueManager node1 = node("node1");
+        DynQueueManager node2 = node("node2");
+        node1.setLeaseDuration(100);
+        String key = request(1).getKey();
+        node1.submit( request(1) );
+        assertEquals(key, node1.nextRequest().getKey());
+        // Lease lost and request reclaimed by another node
+        Thread.sleep(200);
+        assertEquals(1, node2.requeueExpiredLeases());
+        assertEquals(key, node2.nextRequest().getKey());
+        node1.finishRequest(key);
+        assertEquals(StatusFlag.InProgress, node2.getStatus(key).getStatus());
+        node2.finishRequest(key);
+        assertEquals(StatusFlag.Completed, node2.getStatus(key).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testTransitions() {
+        DynQueueManager queue = node("node1");
+        String key = request(1).getKey();
+        assertEquals(StatusFlag.Pending, queue.submit( request(1) ).getStatus());
+        assertEquals(StatusFlag.Pending, queue.submit( request(1) ).getStatus());
+        queue.nextRequest();
+        queue.failRequest(key);
+        assertEquals(StatusFlag.Failed, queue.getStatus(key).getStatus());
+        
+        // A failed request can be submitted again
+        assertEquals(StatusFlag.Pending, queue.submit( request(1) ).getStatus());
+        queue.nextRequest();
+        queue.finishRequest(key);
+        assertEquals(StatusFlag.Completed, queue.getStatus(key).getStatus());
+        assertEquals(StatusFlag.Completed, queue.submit( request(1) ).getStatus());
+        
+        // But a completed one must be resubmitted
+        assertEquals(StatusFlag.Pending, queue.resubmit( request(1) ).getStatus());
+        assertEquals(1, queue.getQueue().size());
+        
+        // Finishing after the entry has changed since the claim still works
+        queue.nextRequest();
+        queue.reportProgress(key, 0.5);
+        queue.claimed.get(key).setVersion(-1);
+        queue.finishRequest(key);
+        assertEquals(StatusFlag.Completed, queue.getStatus(key).getStatus());
+        assertEquals(0, queue.getQueue().size());
+    }
+
+    @Ignore
+    @Test
+    public void testCleanup() throws InterruptedException {
+        DynQueueManager queue = node("node1");
+        for (int i = 0; i < 120; i++) {
+            queue.submit( request(i) );
+            queue.nextRequest();
+            if (i % 3 == 0) {
+                queue.failRequest( request(i).getKey() );
+            } else {
+                queue.finishRequest( request(i).getKey() );
+            }
+        }
+        Thread.sleep(5);
+        long cutoff = System.currentTimeMillis();
+        queue.submit( request(500) );
+        queue.nextRequest();
+        queue.finishRequest( request(500).getKey() );
+
+        queue.removeOldCompletedRequests(cutoff);
+        assertEquals(StatusFlag.Unknown, queue.getStatus( request(0).getKey() ).getStatus());
+        assertEquals(StatusFlag.Unknown, queue.getStatus( request(119).getKey() ).getStatus());
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(500).getKey() ).getStatus());
+
+        // Deleting a record already deleted, as when listed by both indexes, is harmless
+        queue.deleteCompleted( List.of(request(1).getKey()) );
+        assertEquals(StatusFlag.Unknown, queue.getStatus( request(1).getKey() ).getStatus());
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(500).getKey() ).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testExpiredRecordsIgnored() throws InterruptedException {
+        DynQueueManager queue = new DynQueueManager();
+        queue.setCompletedRetention(1);
+        queue.setLocalTestEndpoint(ENDPOINT);
+        queue.setTablePrefix(prefix);
+        queue.startup(null);
+        nodes.add(queue);
+
+        String key = request(1).getKey();
+        queue.submit( request(1) );
+        queue.nextRequest();
+        queue.finishRequest(key);
+        // Expiry has a resolution of one second
+        Thread.sleep(2000);
+        assertEquals(StatusFlag.Unknown, queue.getStatus(key).getStatus());
+        assertEquals(StatusFlag.Pending, queue.submit( request(1) ).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testShardIndexMigration() throws InterruptedException {
+        // Completed table as created by earlier releases, with one old record
+        DynQueueManager queue = new DynQueueManager();
+        queue.setLocalTestEndpoint(ENDPOINT);
+        queue.setTablePrefix(prefix);
+        queue.startup(null);
+        nodes.add(queue);
+        DynamoDbClient client = queue.getDynamoClient();
+        client.deleteTable( b -> b.tableName(queue.getCompletedTableName()) );
+        client.createTable( b -> b.tableName(queue.getCompletedTableName())
+                .keySchema( KeySchemaElement.builder().attributeName(KEY_ATTRIBUTE).keyType(KeyType.HASH).build() )
+                .attributeDefinitions(
+                        AttributeDefinition.builder().attributeName(KEY_ATTRIBUTE).attributeType(ScalarAttributeType.S).build(),
+                        AttributeDefinition.builder().attributeName(STATUS_ATTRIBUTE).attributeType(ScalarAttributeType.S).build(),
+                        AttributeDefinition.builder().attributeName(FINISHED_ATTRIBUTE).attributeType(ScalarAttributeType.N).build())
+                .globalSecondaryIndexes( GlobalSecondaryIndex.builder().indexName(COMPLETED_TIME_INDEX)
+                        .keySchema(
+                                KeySchemaElement.builder().attributeName(STATUS_ATTRIBUTE).keyType(KeyType.HASH).build(),
+                                KeySchemaElement.builder().attributeName(FINISHED_ATTRIBUTE).keyType(KeyType.RANGE).build())
+                        .projection( p -> p.projectionType(ProjectionType.KEYS_ONLY) )
+                        .provisionedThroughput( t -> t.readCapacityUnits(3L).writeCapacityUnits(1L) )
+                        .build() )
+                .provisionedThroughput( t -> t.readCapacityUnits(5L).writeCapacityUnits(5L) ) );
+        DynCompletedEntry old = new DynCompletedEntry( new DynQueueEntry(request(1)) );
+        old.setStatusStr(StatusFlag.Completed.name());
+        client.putItem( b -> b.tableName(queue.getCompletedTableName()).item(old.toItemMap()) );
+
+        DynQueueManager upgraded = new DynQueueManager();
+        upgraded.setLocalTestEndpoint(ENDPOINT);
+        upgraded.setTablePrefix(prefix);
+        upgraded.setDropLegacyIndex(true);
+        upgraded.startup(null);
+        nodes.add(upgraded);
+        for (int i = 0; i < 100 && upgraded.completedIndexes().containsKey(COMPLETED_TIME_INDEX); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(Set.of(COMPLETED_SHARD_INDEX), upgraded.completedIndexes().keySet());
+        
+        upgraded.submit( request(2) );
+        upgraded.nextRequest();
+        upgraded.finishRequest( request(2).getKey() );
+        upgraded.removeOldCompletedRequests( System.currentTimeMillis() + 1 );
+        assertEquals(StatusFlag.Unknown, upgraded.getStatus( request(1).getKey() ).getStatus());
+        assertEquals(StatusFlag.Unknown, upgraded.getStatus( request(2).getKey() ).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testAsync() throws Exception {
+        DynAsyncQueueManager queue = new DynAsyncQueueManager();
+        queue.setCheckInterval(20);
+        queue.setLocalTestEndpoint(ENDPOINT);
+        queue.setTablePrefix(prefix);
+        queue.startup(null);
+        nodes.add(queue);
+
+        String key = request(1).getKey();
+        assertEquals(StatusFlag.Unknown, queue.getStatusAsync(key).get().getStatus());
+        assertNull( queue.nextRequestAsync(50).get() );
+        assertEquals(StatusFlag.Pending, queue.submitAsync( request(1) ).get().getStatus());
+        assertEquals(StatusFlag.Pending, queue.submitAsync( request(1) ).get().getStatus());
+        assertEquals("p=foo&q=bar1", queue.findRequestAsync(key).get().getParameterString());
+        assertEquals(key, queue.nextRequestAsync(1000).get().getKey());
+        assertEquals(StatusFlag.InProgress, queue.getStatus(key).getStatus());
+        queue.finishRequest(key);
+        assertEquals(StatusFlag.Completed, queue.getStatusAsync(key).get().getStatus());
+        assertEquals(StatusFlag.Pending, queue.resubmitAsync( request(1) ).get().getStatus());
+
+        Map<String, BatchStatus> statuses = queue.getStatusesAsync( Arrays.asList(key, "unknown") ).get();
+        assertEquals(StatusFlag.Pending, statuses.get(key).getStatus());
+        assertEquals(StatusFlag.Unknown, statuses.get("unknown").getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testGetStatuses() {
+        DynQueueManager queue = node("node1");
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            queue.submit( request(i) );
+            keys.add( request(i).getKey() );
+        }
+        queue.nextRequest();
+        queue.finishRequest( request(0).getKey() );
+        queue.failRequest( queue.nextRequest().getKey() );
+        queue.nextRequest();
+        keys.add("unknown");
+
+        Map<String, BatchStatus> statuses = queue.getStatuses(keys);
+        assertEquals(121, statuses.size());
+        assertEquals(StatusFlag.Completed, statuses.get( request(0).getKey() ).getStatus());
+        assertEquals(StatusFlag.Failed, statuses.get( request(1).getKey() ).getStatus());
+        assertEquals(StatusFlag.InProgress, statuses.get( request(2).getKey() ).getStatus());
+        assertEquals(StatusFlag.Pending, statuses.get( request(119).getKey() ).getStatus());
+        assertEquals(StatusFlag.Unknown, statuses.get("unknown").getStatus());
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(0).getKey() ).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testStatusCache() {
+        DynQueueManager node1 = new DynQueueManager();
+        node1.setLocalTestEndpoint(ENDPOINT);
+        node1.setTablePrefix(prefix);
+        node1.setStatusCacheTTL(60000);
+        node1.startup(null);
+        nodes.add(node1);
+        DynQueueManager node2 = node("node2");
+        String key = request(1).getKey();
+        assertEquals(StatusFlag.Unknown, node1.getStatus(key).getStatus());
+        node1.submit( request(1) );
+        assertEquals(StatusFlag.Pending, node1.getStatus(key).getStatus());
+        assertEquals(StatusFlag.Pending, node1.getStatus(key).getStatus());
+        assertEquals(1, node1.getStatusCacheHits());
+        assertEquals(2, node1.getStatusCacheMisses());
+
+        // Changes by another node are not seen until the entry expires
+        node2.nextRequest();
+        assertEquals(StatusFlag.Pending, node1.getStatus(key).getStatus());
+        node1.statusCache.clear();
+        assertEquals(StatusFlag.InProgress, node1.getStatus(key).getStatus());
+    }
+
+    @Ignore
+    @Test
+    public void testQueueListing() throws InterruptedException {
+        DynQueueManager queue = node("node1");
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            queue.submit( request(i) );
+            keys.add( request(i).getKey() );
+            Thread.sleep(2);
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.nextRequest();
+        }
+        List<String> listed = new ArrayList<>();
+        queue.queueIterator().forEachRemaining( s -> listed.add(s.getKey()) );
+        assertEquals(keys, listed);
+        assertEquals(StatusFlag.InProgress, queue.getQueue().get(0).getStatus());
+        assertEquals(StatusFlag.Pending, queue.getQueue().get(5).getStatus());
+        assertEquals(11, queue.getFullStatus( request(10).getKey() ).getPositionInQueue().get().intValue());
+        assertEquals(30, queue.getQueueStatistics().getSize());
+    }
+
+    @Test
+    public void testAbandonedClaimReleased() throws Exception {
+        List<String> released = new CopyOnWriteArrayList<>();
+        DynAsyncQueueManager queue = new DynAsyncQueueManager() {
+            @Override
+            public void abortRequest(String key) {
+                released.add(key);
+            }
+        };
+        queue.blockingExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            // Claim which completes after the caller has given up
+            CompletableFuture<BatchRequest> claim = new CompletableFuture<>();
+            CompletableFuture<BatchRequest> result = new CompletableFuture<>();
+            queue.handOff(claim, result);
+            result.cancel(false);
+            claim.complete( request(1) );
+
+            // Claim which is handed over
+            CompletableFuture<BatchRequest> claim2 = new CompletableFuture<>();
+            CompletableFuture<BatchRequest> result2 = new CompletableFuture<>();
+            queue.handOff(claim2, result2);
+            claim2.complete( request(2) );
+            assertEquals( request(2).getKey(), result2.get().getKey() );
+
+            queue.blockingExecutor.shutdown();
+            assertTrue( queue.blockingExecutor.awaitTermination(5, TimeUnit.SECONDS) );
+            assertEquals( List.of(request(1).getKey()), released );
+        } finally {
+            queue.blockingExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMergedIterator() {
+        List<DynQueueEntry> left = List.of( entry(1, 10), entry(2, 30), entry(3, 50) );
+        List<DynQueueEntry> right = List.of( entry(4, 20), entry(5, 40), entry(6, 60), entry(7, 70) );
+        List<Long> merged = new ArrayList<>();
+        new MergedIterator(left.iterator(), right.iterator()).forEachRemaining( e -> merged.add(e.getCreated()) );
+        assertEquals(List.of(10L, 20L, 30L, 40L, 50L, 60L, 70L), merged);
+        assertFalse( new MergedIterator(List.<DynQueueEntry>of().iterator(), List.<DynQueueEntry>of().iterator()).hasNext() );
+    }
+
+    protected static DynQueueEntry entry(int i, long created) {
+        DynQueueEntry entry = new DynQueueEntry( request(i) );
+        entry.setCreated(created);
+        return entry;
+    }
+
+    protected DynQueueManager node(String owner) {
+        DynQueueManager queue = new DynQueueManager();
+        queue.setCheckInterval(20);
+        queue.setLocalTestEndpoint(ENDPOINT);
+        queue.setTablePrefix(prefix);
+        queue.setOwner(owner);
+        queue.startup(null);
+        nodes.add(queue);
+        return queue;
+    }
+
+    protected static BatchRequest request(int i) {
+        return new BatchRequest("http://localhost/test", "p=foo&q=bar" + i);
+    }
+}
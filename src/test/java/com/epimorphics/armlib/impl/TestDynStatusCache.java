@@ -0,0 +1,93 @@
+/******************************************************************
+ * File:        TestDynStatusCache.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchRequest;
+
+/**
+ * Tests of the DynamoDB status cache on its own, see {@link TestDynQueueManager} for its use.
+ */
+public class TestDynStatusCache {
+
+    @Test
+    public void testExpiryAndEviction() {
+        DynStatusCache cache = new DynStatusCache(2, 100);
+        cache.put("a", entry(1), cache.stamp(), 1000);
+        cache.put("b", null, cache.stamp(), 1000);
+        assertEquals(entry(1).getKey(), cache.get("a", 1050).entry().getKey());
+        assertNotNull( cache.get("b", 1050) );
+        assertNull( cache.get("b", 1050).entry() );
+        assertNull( cache.get("a", 1101) );
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // Least recently used is evicted
+        cache.put("a", entry(1), cache.stamp(), 1200);
+        cache.put("c", entry(3), cache.stamp(), 1200);
+        cache.get("a", 1200);
+        cache.put("d", entry(4), cache.stamp(), 1200);
+        assertEquals(2, cache.size());
+        assertNotNull( cache.get("a", 1200) );
+        assertNull( cache.get("c", 1200) );
+    }
+
+    @Test
+    public void testInvalidation() {
+        DynStatusCache cache = new DynStatusCache(10, 1000);
+        cache.put("a", entry(1), cache.stamp(), 0);
+        long stamp = cache.stamp();
+        cache.invalidate("a");
+        assertNull( cache.get("a", 0) );
+        // A lookup which overlapped the change is not cached
+        cache.put("a", entry(1), stamp, 0);
+        assertNull( cache.get("a", 0) );
+        cache.put("a", entry(1), cache.stamp(), 0);
+        assertNotNull( cache.get("a", 0) );
+    }
+
+    @Test
+    public void testInvalidationPerRequest() {
+        DynStatusCache cache = new DynStatusCache(10, 1000);
+        long stamp = cache.stamp();
+        cache.invalidate("a");
+        // A change to one request doesn't affect lookups of others
+        cache.put("b", entry(2), stamp, 0);
+        assertNotNull( cache.get("b", 0) );
+        cache.put("a", entry(1), stamp, 0);
+        assertNull( cache.get("a", 0) );
+
+        stamp = cache.stamp();
+        cache.clear();
+        cache.put("b", entry(2), stamp, 0);
+        assertNull( cache.get("b", 0) );
+    }
+
+    @Test
+    public void testInvalidationTracking() {
+        DynStatusCache cache = new DynStatusCache(2, 1000);
+        long stamp = cache.stamp();
+        cache.invalidate("a");
+        cache.invalidate("b");
+        cache.invalidate("c");
+        // Too many changes to track, so a lookup overlapping the oldest is still not cached
+        cache.put("a", entry(1), stamp, 0);
+        assertNull( cache.get("a", 0) );
+        cache.put("d", entry(4), cache.stamp(), 0);
+        assertNotNull( cache.get("d", 0) );
+    }
+
+    protected static DynQueueEntry entry(int i) {
+        return new DynQueueEntry( new BatchRequest("http://localhost/test", "p=" + i) );
+    }
+}
@@ -0,0 +1,286 @@
+/******************************************************************
+ * File:        TestJournalQueueManager.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Check that the journalled queue recovers its state after a restart.
+ */
+public class TestJournalQueueManager {
+    protected String testDir;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = Files.createTempDirectory("testjournal").toFile().getPath();
+    }
+
+    @After
+    public void cleanup() {
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testRecovery() {
+        JournalQueueManager queue = open(64 * 1024);
+        for (int i = 0; i < 6; i++) {
+            queue.submit( request(i) );
+        }
+        assertEquals(key(0), queue.nextRequest().getKey());
+        assertEquals(key(1), queue.nextRequest().getKey());
+        assertEquals(key(2), queue.nextRequest().getKey());
+        queue.finishRequest( key(0) );
+        queue.failRequest( key(1) );
+        queue.abortRequest( key(2) );
+        assertEquals(key(2), queue.nextRequest().getKey());
+        queue.resubmit( request(3) );
+        queue.shutdown();
+
+        queue = open(64 * 1024);
+        assertEquals(StatusFlag.Completed, queue.getStatus(key(0)).getStatus());
+        assertEquals(StatusFlag.Failed, queue.getStatus(key(1)).getStatus());
+        // In progress at shutdown so returned to the queue in its original position
+        assertEquals(StatusFlag.Pending, queue.getStatus(key(2)).getStatus());
+        checkOrder(queue.getQueue(), 2, 4, 5, 3);
+        assertEquals("p=foo&q=bar4", queue.findRequest(key(4)).getParameterString());
+        assertEquals(4, (int) queue.getFullStatus(key(3)).getPositionInQueue().get());
+        
+        assertEquals(key(2), queue.nextRequest().getKey());
+        queue.finishRequest( key(2) );
+        queue.shutdown();
+        
+        queue = open(64 * 1024);
+        assertEquals(StatusFlag.Completed, queue.getStatus(key(2)).getStatus());
+        checkOrder(queue.getQueue(), 4, 5, 3);
+        queue.shutdown();
+    }
+
+    @Test
+    public void testBatchClaimIsRecovered() throws InterruptedException {
+        JournalQueueManager queue = open(64 * 1024);
+        for (int i = 0; i < 5; i++) {
+            queue.submit( request(i) );
+        }
+        assertEquals(3, queue.nextRequests(3, 0).size());
+        queue.shutdown();
+
+        queue = new JournalQueueManager();
+        queue.setJournalDir(testDir);
+        queue.setRequeueOnRecovery(false);
+        queue.startup(null);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i < 3 ? StatusFlag.InProgress : StatusFlag.Pending, queue.getStatus(key(i)).getStatus());
+        }
+        queue.shutdown();
+    }
+
+    @Test
+    public void testExpiryIsRecovered() throws InterruptedException {
+        JournalQueueManager queue = open(64 * 1024);
+        for (int i = 0; i < 3; i++) {
+            queue.submit( request(i) );
+            queue.nextRequest();
+            queue.finishRequest( key(i) );
+            // Distinct finish times
+            Thread.sleep(2);
+        }
+        long cutoff = queue.getEntry( key(1) ).getFinished() + 1;
+        long finished = queue.getEntry( key(2) ).getFinished();
+        queue.removeOldCompletedRequests(cutoff);
+        queue.shutdown();
+
+        queue = open(64 * 1024);
+        assertEquals(StatusFlag.Unknown, queue.getStatus(key(0)).getStatus());
+        assertEquals(StatusFlag.Unknown, queue.getStatus(key(1)).getStatus());
+        // Finish time survives the restart so the record still expires at the right time
+        assertEquals(finished, queue.getEntry( key(2) ).getFinished());
+        queue.removeOldCompletedRequests( System.currentTimeMillis() + 1 );
+        assertEquals(StatusFlag.Unknown, queue.getStatus(key(2)).getStatus());
+        queue.shutdown();
+    }
+
+    @Test
+    public void testCompactionWhenFull() {
+        // Small enough that the journal has to be compacted many times
+        JournalQueueManager queue = open(4 * 1024);
+        for (int i = 0; i < 500; i++) {
+            queue.submit( request(i) );
+            if (i % 2 == 0) {
+                BatchRequest next = queue.nextRequest();
+                queue.finishRequest( next.getKey() );
+            }
+        }
+        int size = queue.getQueue().size();
+        queue.shutdown();
+
+        queue = open(4 * 1024);
+        assertEquals(size, queue.getQueue().size());
+        assertEquals(250, size);
+        assertEquals(StatusFlag.Completed, queue.getStatus(key(100)).getStatus());
+        assertEquals(StatusFlag.Pending, queue.getStatus(key(499)).getStatus());
+        queue.shutdown();
+    }
+
+    @Test
+    public void testPeriodicCompaction() throws InterruptedException {
+        JournalQueueManager queue = new JournalQueueManager();
+        queue.setJournalDir(testDir);
+        queue.setCompactInterval(20);
+        queue.startup(null);
+        for (int i = 0; i < 200; i++) {
+            queue.submit( request(i) );
+            queue.finishRequest( queue.nextRequest().getKey() );
+        }
+        queue.removeOldCompletedRequests( System.currentTimeMillis() + 1 );
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.records > 0) {
+            assertTrue( "Journal not compacted", System.currentTimeMillis() < deadline );
+            Thread.sleep(10);
+        }
+        queue.submit( request(200) );
+        queue.shutdown();
+
+        queue = open(64 * 1024);
+        checkOrder(queue.getQueue(), 200);
+        assertEquals(StatusFlag.Unknown, queue.getStatus(key(0)).getStatus());
+        queue.shutdown();
+    }
+
+    @Test
+    public void testListenersCalledOutsideLock() {
+        JournalQueueManager queue = open(64 * 1024);
+        List<EventType> events = new ArrayList<>();
+        queue.addListener( event -> {
+            assertFalse( queue.journalLock.isHeldByCurrentThread() );
+            events.add( event.getType() );
+        });
+        queue.submit( request(0) );
+        queue.nextRequest();
+        queue.finishRequest( key(0) );
+        assertEquals( List.of(EventType.Submitted, EventType.Started, EventType.Completed), events );
+        queue.shutdown();
+    }
+
+    @Test
+    public void testExpiredLeaseIsRecovered() throws InterruptedException {
+        JournalQueueManager queue = open(64 * 1024);
+        queue.setLeaseDuration(1);
+        queue.submit( request(0) );
+        queue.submit( request(1) );
+        queue.nextRequest();
+        Thread.sleep(5);
+        assertEquals(1, queue.requeueExpiredLeases());
+        assertEquals(key(0), queue.nextRequest().getKey());
+        queue.shutdown();
+
+        // Recover twice, the second time from the compacted journal
+        for (int i = 0; i < 2; i++) {
+            queue = new JournalQueueManager();
+            queue.setJournalDir(testDir);
+            queue.setRequeueOnRecovery(false);
+            queue.startup(null);
+            assertEquals(StatusFlag.InProgress, queue.getStatus(key(0)).getStatus());
+            assertEquals(2, queue.getEntry(key(0)).getAttempts());
+            assertEquals(StatusFlag.Pending, queue.getStatus(key(1)).getStatus());
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testRecoveryIsSilent() {
+        JournalQueueManager queue = open(64 * 1024);
+        queue.submit( request(0) );
+        queue.submit( request(1) );
+        queue.nextRequest();
+        queue.shutdown();
+
+        List<BatchEvent> events = new ArrayList<>();
+        queue = new JournalQueueManager();
+        queue.setJournalDir(testDir);
+        queue.addListener( events::add );
+        queue.startup(null);
+        assertTrue( events.isEmpty() );
+        queue.nextRequest();
+        assertEquals(1, events.size());
+        assertEquals(EventType.Started, events.get(0).getType());
+        queue.shutdown();
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        JournalQueueManager queue = open(64 * 1024);
+        queue.submit( request(0) );
+        queue.submit( request(1) );
+        queue.shutdown();
+
+        // Corrupt the last record as if a write had been torn
+        File journal = new File(testDir, JournalQueueManager.JOURNAL_FILE);
+        byte[] contents = Files.readAllBytes(journal.toPath());
+        int end = contents.length;
+        while (contents[end - 1] == 0) end--;
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(end - 3);
+            raf.write(new byte[] {1, 2, 3});
+        }
+
+        queue = open(64 * 1024);
+        assertEquals(StatusFlag.Pending, queue.getStatus(key(0)).getStatus());
+        assertEquals(StatusFlag.Unknown, queue.getStatus(key(1)).getStatus());
+        queue.submit( request(2) );
+        queue.shutdown();
+        
+        queue = open(64 * 1024);
+        checkOrder(queue.getQueue(), 0, 2);
+        queue.shutdown();
+    }
+
+    protected JournalQueueManager open(int size) {
+        JournalQueueManager queue = new JournalQueueManager();
+        queue.setJournalDir(testDir);
+        queue.setJournalSize(size);
+        queue.startup(null);
+        return queue;
+    }
+
+    protected static void checkOrder(List<BatchStatus> listing, int... expected) {
+        assertEquals(expected.length, listing.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(key(expected[i]), listing.get(i).getKey());
+        }
+    }
+
+    protected static BatchRequest request(int i) {
+        BatchRequest request = new BatchRequest("http://localhost/test", "p=foo&q=bar" + i);
+        request.setKey( key(i) );
+        return request;
+    }
+
+    protected static String key(int i) {
+        return "request" + i;
+    }
+}
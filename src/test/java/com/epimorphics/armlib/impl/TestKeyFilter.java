@@ -0,0 +1,133 @@
+/******************************************************************
+ * File:        TestKeyFilter.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+import com.epimorphics.armlib.Pipe;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Tests of the key filter and its use by the cache managers.
+ */
+public class TestKeyFilter {
+
+    @Test
+    public void testFalsePositiveRate() {
+        KeyFilter filter = new KeyFilter(100000, 0.01);
+        assertTrue( filter.getSizeInBytes() < 150 * 1024 );
+        for (int i = 0; i < 100000; i++) {
+            filter.add("present-" + i + ".csv");
+        }
+        for (int i = 0; i < 100000; i++) {
+            assertTrue( filter.mightContain("present-" + i + ".csv") );
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("absent-" + i + ".csv")) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 1500);
+    }
+
+    @Test
+    public void testFileCacheFilter() throws Exception {
+        String testDir = Files.createTempDirectory("testfilter").toFile().getPath();
+        FileCacheManager cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        try {
+            BatchRequest existing = new BatchRequest("http://localhost/test", "existing");
+            upload(cache, existing);
+
+            cache.setUseKeyFilter(true);
+            cache.startup(null);
+            waitForFilter(cache);
+            assertTrue( cache.isReady(existing.getKey()) );
+
+            BatchRequest added = new BatchRequest("http://localhost/test", "added");
+            assertTrue( cache.definitelyAbsent(added.getKey(), "csv") );
+            upload(cache, added);
+            assertTrue( cache.isReady(added.getKey()) );
+
+            // Written by someone else, only seen when confirmed
+            BatchRequest other = new BatchRequest("http://localhost/test", "other");
+            new File(testDir, "cache/" + other.getKey() + ".csv").createNewFile();
+            assertFalse( cache.isReady(other.getKey()) );
+            assertTrue( cache.confirmReady(other.getKey()) );
+            assertTrue( cache.isReady(other.getKey()) );
+
+            cache.clear();
+            waitForFilter(cache);
+            assertFalse( cache.isReady(existing.getKey()) );
+            assertTrue( cache.definitelyAbsent(existing.getKey(), "csv") );
+        } finally {
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testStatusOfResultCachedElsewhere() throws Exception {
+        String testDir = Files.createTempDirectory("testfilter").toFile().getPath();
+        FileCacheManager cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        cache.setUseKeyFilter(true);
+        StandardRequestManager rm = new StandardRequestManager();
+        rm.setQueueManager( new MemQueueManager() );
+        rm.setCacheManager(cache);
+        try {
+            cache.startup(null);
+            waitForFilter(cache);
+
+            // Cached by another node, whose queue record has since expired
+            String other = new BatchRequest("http://localhost/test", "other").getKey();
+            String another = new BatchRequest("http://localhost/test", "another").getKey();
+            new File(testDir, "cache/" + other + ".csv").createNewFile();
+            new File(testDir, "cache/" + another + ".csv").createNewFile();
+            assertFalse( cache.isReady(other) );
+            assertEquals( StatusFlag.Completed, rm.getStatus(other).getStatus() );
+            assertFalse( cache.isReady(another) );
+            assertEquals( StatusFlag.Completed, rm.getFullStatus(another).getStatus() );
+
+            BatchRequest missing = new BatchRequest("http://localhost/test", "missing");
+            assertEquals( StatusFlag.Unknown, rm.getStatus(missing.getKey()).getStatus() );
+        } finally {
+            rm.shutdown();
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    protected static void upload(FileCacheManager cache, BatchRequest request) throws IOException, InterruptedException {
+        Pipe pipe = cache.upload(request);
+        try (OutputStream out = pipe.getSource()) {
+            out.write("a,b\n".getBytes());
+        }
+        pipe.waitForCompletion();
+    }
+
+    protected static void waitForFilter(BaseCacheManager cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.keyFilter == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(cache.keyFilter);
+    }
+}
@@ -0,0 +1,372 @@
+/******************************************************************
+ * File:        TestMemQueueManager.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchEvent;
+import com.epimorphics.armlib.BatchEvent.EventType;
+import com.epimorphics.armlib.BatchListener;
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.BatchStatus;
+import com.epimorphics.armlib.BatchStatus.StatusFlag;
+
+/**
+ * Tests of the in-memory queue manager beyond the generic request manager tests.
+ */
+public class TestMemQueueManager {
+
+    @Test
+    public void testWaitingWorkerIsWoken() throws Exception {
+        MemQueueManager queue = new MemQueueManager();
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            Future<BatchRequest> waiting = exec.submit( () -> queue.nextRequest(10000) );
+            Thread.sleep(50);
+            assertFalse( waiting.isDone() );
+
+            BatchRequest request = request(1);
+            long start = System.currentTimeMillis();
+            queue.submit(request);
+            BatchRequest next = waiting.get(5, TimeUnit.SECONDS);
+            assertEquals(request.getKey(), next.getKey());
+            assertTrue( System.currentTimeMillis() - start < 1000 );
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAbortWakesWorker() throws Exception {
+        MemQueueManager queue = new MemQueueManager();
+        BatchRequest request = request(1);
+        queue.submit(request);
+        assertEquals(request.getKey(), queue.nextRequest().getKey());
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            Future<BatchRequest> waiting = exec.submit( () -> queue.nextRequest(10000) );
+            Thread.sleep(50);
+            queue.abortRequest(request.getKey());
+            assertEquals(request.getKey(), waiting.get(5, TimeUnit.SECONDS).getKey());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MemQueueManager queue = new MemQueueManager();
+        long start = System.currentTimeMillis();
+        assertNull( queue.nextRequest(50) );
+        assertTrue( System.currentTimeMillis() - start >= 45 );
+    }
+
+    @Test
+    public void testNoDoubleClaims() throws Exception {
+        final int NREQUESTS = 5000;
+        final int NPRODUCERS = 4;
+        final int NWORKERS = 16;
+        MemQueueManager queue = new MemQueueManager();
+        Map<String, AtomicInteger> claims = new ConcurrentHashMap<>();
+        AtomicInteger claimed = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        
+        ExecutorService exec = Executors.newFixedThreadPool(NPRODUCERS + NWORKERS + 1);
+        List<Future<?>> tasks = new ArrayList<>();
+        try {
+            for (int p = 0; p < NPRODUCERS; p++) {
+                tasks.add( exec.submit( () -> {
+                    start.await();
+                    // Every producer submits every request, duplicates must be collapsed
+                    for (int i = 0; i < NREQUESTS; i++) {
+                        queue.submit( request(i) );
+                    }
+                    return null;
+                }) );
+            }
+            for (int w = 0; w < NWORKERS; w++) {
+                tasks.add( exec.submit( () -> {
+                    start.await();
+                    while (claimed.get() < NREQUESTS) {
+                        BatchRequest next = queue.nextRequest(10);
+                        if (next != null) {
+                            claims.computeIfAbsent(next.getKey(), k -> new AtomicInteger()).incrementAndGet();
+                            claimed.incrementAndGet();
+                            queue.finishRequest(next.getKey());
+                        }
+                    }
+                    return null;
+                }) );
+            }
+            // Status polling in parallel with the transitions
+            Future<?> poller = exec.submit( () -> {
+                start.await();
+                while (running.get()) {
+                    for (int i = 0; i < NREQUESTS; i += 97) {
+                        queue.getStatus( request(i).getKey() );
+                    }
+                }
+                return null;
+            });
+            start.countDown();
+            for (Future<?> task : tasks) {
+                task.get(60, TimeUnit.SECONDS);
+            }
+            running.set(false);
+            poller.get(10, TimeUnit.SECONDS);
+        } finally {
+            exec.shutdownNow();
+        }
+        
+        assertEquals(NREQUESTS, claimed.get());
+        assertEquals(NREQUESTS, claims.size());
+        for (AtomicInteger count : claims.values()) {
+            assertEquals(1, count.get());
+        }
+        assertTrue( queue.getQueue().isEmpty() );
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(0).getKey() ).getStatus());
+    }
+
+    @Test
+    public void testPositionAndEta() {
+        MemQueueManager queue = new MemQueueManager();
+        for (int i = 0; i < 200; i++) {
+            BatchRequest request = request(i);
+            request.setEstimatedTime(i + 1);
+            queue.submit(request);
+        }
+        // Start a few, finish or fail some of those and abort one
+        for (int i = 0; i < 20; i++) {
+            queue.nextRequest();
+        }
+        for (int i = 0; i < 20; i += 3) {
+            queue.finishRequest( request(i).getKey() );
+        }
+        queue.failRequest( request(1).getKey() );
+        queue.failRequest( request(150).getKey() );
+        queue.abortRequest( request(4).getKey() );
+        queue.resubmit( request(50) );
+        
+        // Check against a brute force scan of the queue listing
+        List<BatchStatus> listing = queue.getQueue();
+        long eta = 0;
+        int position = 0;
+        for (BatchStatus s : listing) {
+            position++;
+            eta += s.getEstimatedTime().get();
+            BatchStatus full = queue.getFullStatus(s.getKey());
+            if (full.getStatus() == StatusFlag.Pending) {
+                assertEquals(position, (int) full.getPositionInQueue().get());
+                assertEquals(eta, (long) full.getEta().get());
+            }
+        }
+        assertEquals(200 - 7 - 2, listing.size());
+        
+        // Claims resume in submission order, aborted entry first
+        assertEquals(request(4).getKey(), queue.nextRequest().getKey());
+        assertEquals(request(20).getKey(), queue.nextRequest().getKey());
+    }
+
+    @Test
+    public void testExpiry() {
+        MemQueueManager queue = new MemQueueManager();
+        queue.setCompletedBucketWidth(100);
+        for (int i = 0; i < 50; i++) {
+            queue.submit( request(i) );
+            queue.nextRequest();
+            // Finish times 1000, 1020, ... 1980
+            queue.finish( request(i).getKey(), i % 2 == 0 ? StatusFlag.Completed : StatusFlag.Failed, 1000 + i * 20 );
+        }
+        assertEquals(50, queue.completed.size());
+        
+        queue.removeOldCompletedRequests(1450);
+        assertEquals(27, queue.completed.size());
+        assertEquals(StatusFlag.Unknown, queue.getStatus( request(0).getKey() ).getStatus());
+        assertEquals(StatusFlag.Unknown, queue.getStatus( request(22).getKey() ).getStatus());
+        assertEquals(StatusFlag.Failed, queue.getStatus( request(23).getKey() ).getStatus());
+        assertEquals(StatusFlag.Completed, queue.getStatus( request(24).getKey() ).getStatus());
+        assertNull( queue.findRequest( request(1).getKey() ) );
+        
+        // A resubmitted request is no longer subject to expiry of its old record
+        queue.resubmit( request(30) );
+        queue.removeOldCompletedRequests(5000);
+        assertEquals(0, queue.completed.size());
+        assertEquals(StatusFlag.Pending, queue.getStatus( request(30).getKey() ).getStatus());
+    }
+
+    @Test
+    public void testBackgroundSweep() throws InterruptedException {
+        MemQueueManager queue = new MemQueueManager();
+        queue.setCompletedRetention(50);
+        queue.setSweepInterval(20);
+        queue.startup(null);
+        try {
+            queue.submit( request(1) );
+            queue.nextRequest();
+            queue.finishRequest( request(1).getKey() );
+            assertEquals(StatusFlag.Completed, queue.getStatus( request(1).getKey() ).getStatus());
+            
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getStatus( request(1).getKey() ).getStatus() != StatusFlag.Unknown) {
+                assertTrue( System.currentTimeMillis() < deadline );
+                Thread.sleep(10);
+            }
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchClaim() throws Exception {
+        MemQueueManager queue = new MemQueueManager();
+        assertTrue( queue.nextRequests(5, 10).isEmpty() );
+        for (int i = 0; i < 8; i++) {
+            queue.submit( request(i) );
+        }
+        List<BatchRequest> batch = queue.nextRequests(5, 0);
+        assertEquals(5, batch.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(request(i).getKey(), batch.get(i).getKey());
+            assertEquals(StatusFlag.InProgress, queue.getStatus( request(i).getKey() ).getStatus());
+        }
+        // Returns what is available rather than waiting for a full batch
+        assertEquals(3, queue.nextRequests(5, 1000).size());
+        
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<BatchRequest>> waiting = exec.submit( () -> queue.nextRequests(5, 10000) );
+            Thread.sleep(50);
+            queue.submit( request(10) );
+            assertEquals(request(10).getKey(), waiting.get(5, TimeUnit.SECONDS).get(0).getKey());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLeaseExpiry() {
+        MemQueueManager queue = new MemQueueManager();
+        queue.setLeaseDuration(1000);
+        String key = request(1).getKey();
+        queue.submit( request(1) );
+        queue.submit( request(2) );
+        assertEquals(key, queue.nextRequest().getKey());
+        long expiry = queue.getEntry(key).getLeaseExpiry();
+        assertTrue( expiry > System.currentTimeMillis() );
+        
+        // Live lease is left alone, renewal extends it
+        assertTrue( queue.reapExpiredLeases(expiry - 1).isEmpty() );
+        assertTrue( queue.renewLease(key) );
+        assertTrue( queue.getEntry(key).getLeaseExpiry() >= expiry );
+        
+        // Expired lease goes back to the queue at its original position
+        assertEquals(1, queue.reapExpiredLeases( queue.getEntry(key).getLeaseExpiry() + 1 ).size());
+        assertEquals(StatusFlag.Pending, queue.getStatus(key).getStatus());
+        assertFalse( queue.renewLease(key) );
+        assertEquals(key, queue.nextRequest().getKey());
+        assertEquals(2, queue.getEntry(key).getAttempts());
+        
+        // Finished requests are not reaped
+        queue.finishRequest(key);
+        assertTrue( queue.reapExpiredLeases(Long.MAX_VALUE).isEmpty() );
+        assertEquals(StatusFlag.Completed, queue.getStatus(key).getStatus());
+    }
+
+    @Test
+    public void testMaxAttempts() {
+        MemQueueManager queue = new MemQueueManager();
+        queue.setLeaseDuration(1000);
+        queue.setMaxAttempts(2);
+        String key = request(1).getKey();
+        queue.submit( request(1) );
+        queue.nextRequest();
+        queue.reapExpiredLeases(Long.MAX_VALUE);
+        assertEquals(StatusFlag.Pending, queue.getStatus(key).getStatus());
+        queue.nextRequest();
+        queue.reapExpiredLeases(Long.MAX_VALUE);
+        assertEquals(StatusFlag.Failed, queue.getStatus(key).getStatus());
+        assertNull( queue.nextRequest() );
+        assertEquals(0, queue.getQueue().size());
+    }
+
+    @Test
+    public void testNoLeaseByDefault() {
+        MemQueueManager queue = new MemQueueManager();
+        queue.submit( request(1) );
+        queue.nextRequest();
+        assertEquals(0, queue.requeueExpiredLeases());
+        assertTrue( queue.renewLease( request(1).getKey() ) );
+        assertEquals(StatusFlag.InProgress, queue.getStatus( request(1).getKey() ).getStatus());
+    }
+
+    @Test
+    public void testEvents() {
+        MemQueueManager queue = new MemQueueManager();
+        queue.setLeaseDuration(1000);
+        queue.setMaxAttempts(2);
+        List<BatchEvent> events = new ArrayList<>();
+        BatchListener listener = events::add;
+        queue.addListener(listener);
+        String key1 = request(1).getKey();
+        String key2 = request(2).getKey();
+        queue.submit( request(1) );
+        queue.submit( request(2) );
+        queue.nextRequest();
+        queue.reportProgress(key1, 0.5);
+        queue.abortRequest(key1);
+        queue.nextRequest();
+        queue.finishRequest(key1);
+        queue.nextRequest();
+        queue.reapExpiredLeases(Long.MAX_VALUE);
+        queue.nextRequest();
+        queue.reapExpiredLeases(Long.MAX_VALUE);
+
+        checkEvents(events, 
+                EventType.Submitted, key1, EventType.Submitted, key2, 
+                EventType.Started, key1, EventType.Progress, key1, EventType.Requeued, key1,
+                EventType.Started, key1, EventType.Completed, key1,
+                EventType.Started, key2, EventType.Requeued, key2, 
+                EventType.Started, key2, EventType.Failed, key2);
+        assertEquals(0.5, events.get(3).getProgress().get(), 0.0001);
+        assertEquals(StatusFlag.Failed, events.get(10).getStatus().getStatus());
+        
+        queue.removeListener(listener);
+        queue.submit( request(3) );
+        assertEquals(11, events.size());
+    }
+
+    protected static void checkEvents(List<BatchEvent> events, Object...expected) {
+        assertEquals(expected.length / 2, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(expected[2 * i], events.get(i).getType());
+            assertEquals(expected[2 * i + 1], events.get(i).getKey());
+        }
+    }
+
+    protected static BatchRequest request(int i) {
+        return new BatchRequest("http://localhost/test", "p=foo&q=bar" + i);
+    }
+}
@@ -0,0 +1,246 @@
+/******************************************************************
+ * File:        TestPipe.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.epimorphics.armlib.BatchRequest;
+import com.epimorphics.armlib.Pipe;
+import com.epimorphics.util.EpiException;
+import com.epimorphics.util.FileUtil;
+
+/**
+ * Tests of the chunked pipe buffer and the cache managers' pipes.
+ */
+public class TestPipe {
+
+    @Test
+    public void testChunkRing() throws Exception {
+        ChunkRing ring = new ChunkRing(16, 3);
+        CompletableFuture<byte[]> read = CompletableFuture.supplyAsync( () -> readAll(ring.getInputStream()) );
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (OutputStream out = ring.getOutputStream()) {
+            for (int i = 0; i < 500; i++) {
+                byte[] data = ("row " + i + "\n").getBytes();
+                if (i % 3 == 0) {
+                    for (byte b : data) {
+                        out.write(b);
+                    }
+                } else {
+                    out.write(data);
+                }
+                expected.write(data);
+            }
+        }
+        assertArrayEquals( expected.toByteArray(), read.get(5, TimeUnit.SECONDS) );
+        assertTrue( ring.allocated <= 3 );
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        ChunkRing ring = new ChunkRing(16, 2);
+        ring.getOutputStream().close();
+        assertEquals( -1, ring.getInputStream().read() );
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        ChunkRing ring = new ChunkRing(16, 2);
+        OutputStream out = ring.getOutputStream();
+        out.write( new byte[20] );
+
+        // Producer blocks once both chunks are full
+        CompletableFuture<Void> writer = CompletableFuture.runAsync( () -> {
+            try {
+                out.write( new byte[100] );
+                fail("Write should have been aborted");
+            } catch (IOException e) {
+                // expected
+            }
+        });
+        Thread.sleep(50);
+        assertFalse( writer.isDone() );
+        ring.abort();
+        writer.get(5, TimeUnit.SECONDS);
+
+        try {
+            ring.getInputStream().read();
+            fail("Read should have been aborted");
+        } catch (IOException e) {
+            assertEquals("Upload aborted", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPipeTimeout() throws Exception {
+        String testDir = Files.createTempDirectory("testpipe").toFile().getPath();
+        FileCacheManager cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        cache.setPipeTimeout(100);
+        try {
+            BatchRequest request = new BatchRequest("http://localhost/test", "abandoned");
+            Pipe pipe = cache.upload(request);
+            pipe.getSource().write("a,b\n".getBytes());
+            // Never closed
+            try {
+                pipe.waitForCompletion();
+                fail("Abandoned pipe should time out");
+            } catch (EpiException e) {
+                // expected
+            }
+            assertFalse( cache.isReady(request.getKey()) );
+            assertFalse( new File(testDir, "cache/" + request.getKey() + ".csv").exists() );
+            assertTrue( cache.activePipes.isEmpty() );
+        } finally {
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testAbortedUploadCleanedUp() throws Exception {
+        String testDir = Files.createTempDirectory("testpipe").toFile().getPath();
+        FileCacheManager cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        try {
+            BatchRequest request = new BatchRequest("http://localhost/test", "aborted");
+            Pipe pipe = cache.upload(request);
+            pipe.getSource().write("a,b\n".getBytes());
+            pipe.abort();
+            pipe.waitForCompletion();
+            assertFalse( cache.isReady(request.getKey()) );
+            assertEquals( 0, new File(testDir, "cache").list().length );
+        } finally {
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testBlockedProducerNotTimedOut() throws Exception {
+        String testDir = Files.createTempDirectory("testpipe").toFile().getPath();
+        // Upload which is slow to start reading, so the producer fills the ring and waits
+        FileCacheManager cache = new FileCacheManager() {
+            @Override
+            protected void upload(BatchRequest request, String suffix, InputStream result) {
+                try {
+                    Thread.sleep(400);
+                } catch (InterruptedException e) {
+                    throw new EpiException(e);
+                }
+                super.upload(request, suffix, result);
+            }
+        };
+        cache.setCacheDir(testDir);
+        cache.setPipeTimeout(100);
+        cache.setPipeChunkSize(1024);
+        cache.setPipeChunks(2);
+        try {
+            BatchRequest request = new BatchRequest("http://localhost/test", "blocked");
+            Pipe pipe = cache.upload(request);
+            try (OutputStream out = pipe.getSource()) {
+                for (int row = 0; row < 1000; row++) {
+                    out.write( ("row," + row + "\n").getBytes() );
+                }
+            }
+            pipe.waitForCompletion();
+            assertTrue( cache.isReady(request.getKey()) );
+        } finally {
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testQueuedUploadNotTimedOut() throws Exception {
+        String testDir = Files.createTempDirectory("testpipe").toFile().getPath();
+        FileCacheManager cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        cache.setPipeTimeout(100);
+        cache.setMaxConcurrentUploads(1);
+        try {
+            BatchRequest first = new BatchRequest("http://localhost/test", "first");
+            BatchRequest queued = new BatchRequest("http://localhost/test", "queued");
+            Pipe firstPipe = cache.upload(first);
+            Thread.sleep(20);
+            Pipe queuedPipe = cache.upload(queued);
+            try (OutputStream out = queuedPipe.getSource()) {
+                out.write("c,d\n".getBytes());
+            }
+            // Slow producer which keeps writing, holding the only upload slot
+            try (OutputStream out = firstPipe.getSource()) {
+                for (int i = 0; i < 20; i++) {
+                    out.write("a,b\n".getBytes());
+                    Thread.sleep(20);
+                }
+            }
+            firstPipe.waitForCompletion();
+            queuedPipe.waitForCompletion();
+            assertTrue( cache.isReady(first.getKey()) );
+            assertTrue( cache.isReady(queued.getKey()) );
+        } finally {
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        String testDir = Files.createTempDirectory("testpipe").toFile().getPath();
+        FileCacheManager cache = new FileCacheManager();
+        cache.setCacheDir(testDir);
+        cache.setCompressed(true);
+        cache.setMaxConcurrentUploads(2);
+        cache.setPipeChunkSize(1024);
+        cache.setPipeChunks(4);
+        try {
+            Pipe[] pipes = new Pipe[6];
+            BatchRequest[] requests = new BatchRequest[pipes.length];
+            for (int i = 0; i < pipes.length; i++) {
+                requests[i] = new BatchRequest("http://localhost/test", "n=" + i);
+                pipes[i] = cache.upload(requests[i]);
+            }
+            for (int i = 0; i < pipes.length; i++) {
+                try (OutputStream out = pipes[i].getSource()) {
+                    for (int row = 0; row < 1000; row++) {
+                        out.write( ("row," + i + "," + row + "\n").getBytes() );
+                    }
+                }
+            }
+            for (int i = 0; i < pipes.length; i++) {
+                pipes[i].waitForCompletion();
+                assertTrue( cache.isReady(requests[i].getKey()) );
+            }
+        } finally {
+            cache.shutdown();
+            FileUtil.deleteDirectory(testDir);
+        }
+    }
+
+    protected static byte[] readAll(InputStream in) {
+        try {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new EpiException(e);
+        }
+    }
+}
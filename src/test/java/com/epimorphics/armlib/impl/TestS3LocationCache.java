@@ -0,0 +1,87 @@
+/******************************************************************
+ * File:        TestS3LocationCache.java
+ * Created by:  agent
+ * Created on:  16 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.armlib.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.epimorphics.armlib.impl.S3LocationCache.Location;
+
+/**
+ * Tests of the S3 location cache on its own, see {@link TestS3CacheManager} for its use.
+ */
+public class TestS3LocationCache {
+
+    @Test
+    public void testExpiry() {
+        S3LocationCache cache = new S3LocationCache(10, 1000, 100);
+        cache.put("found.csv", found("found", true, 0));
+        cache.put("missing.csv", missing(0));
+        assertTrue( cache.get("found.csv", 500).isFound() );
+        assertFalse( cache.get("missing.csv", 50).isFound() );
+        // Misses expire sooner
+        assertNull( cache.get("missing.csv", 150) );
+        assertNotNull( cache.get("found.csv", 900) );
+        assertNull( cache.get("found.csv", 1001) );
+        assertEquals(0.6, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void testUploadNotOverwritten() {
+        S3LocationCache cache = new S3LocationCache(10, 1000, 100);
+        cache.put("r.csv", found("r", false, 20));
+        // Lookup which started before the upload was recorded
+        cache.put("r.csv", missing(10));
+        assertTrue( cache.get("r.csv", 30).isFound() );
+    }
+
+    @Test
+    public void testClear() {
+        S3LocationCache cache = new S3LocationCache(2, 1000, 100);
+        cache.put("a.csv", found("a", true, 0));
+        cache.put("b.csv", found("b", false, 0));
+        cache.put("c.csv", missing(0));
+        // Evicted least recently used
+        assertNull( cache.get("a.csv", 0) );
+
+        cache.put("a.csv", found("a", true, 0));
+        cache.clear(false, 10);
+        assertEquals(1, cache.size());
+        assertNotNull( cache.get("a.csv", 0) );
+        cache.clear(true, 20);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLookupOverlappingClear() {
+        S3LocationCache cache = new S3LocationCache(10, 1000, 100);
+        cache.clear(false, 10);
+        // Lookups which started before the clear and finished after it
+        cache.put("a.csv", found("a", false, 5));
+        cache.put("b.csv", found("b", true, 5));
+        assertNull( cache.get("a.csv", 15) );
+        assertNotNull( cache.get("b.csv", 15) );
+
+        cache.clear(true, 20);
+        cache.put("b.csv", found("b", true, 15));
+        assertNull( cache.get("b.csv", 25) );
+        cache.put("b.csv", found("b", true, 25));
+        assertNotNull( cache.get("b.csv", 25) );
+    }
+
+    protected static Location found(String key, boolean sticky, long fetched) {
+        return new Location("base/" + key + ".csv", sticky, 100, "etag", fetched);
+    }
+
+    protected static Location missing(long fetched) {
+        return new Location(null, false, 0, null, fetched);
+    }
+}